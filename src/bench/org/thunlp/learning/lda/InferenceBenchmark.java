@@ -0,0 +1,87 @@
+package org.thunlp.learning.lda;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LdaModel.inference and inferenceFast on one synthetic document, with a
+ * synthetic text model.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class InferenceBenchmark {
+  @Param({"100", "1000"})
+  public int numTopics;
+
+  @Param({"10000", "100000"})
+  public int numWords;
+
+  @Param({"100", "1000"})
+  public int docLength;
+
+  @Param({"30"})
+  public int burnIn;
+
+  @Param({"10"})
+  public int sampling;
+
+  @Param({"false", "true"})
+  public boolean logPwzTable;
+
+  private File dir;
+  private LdaModel model;
+  private String [] words;
+  private double [] pz;
+  private Random random = new Random(1);
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    SyntheticCorpus corpus = new SyntheticCorpus(numWords, numTopics);
+    dir = SyntheticCorpus.tempDir();
+    File file = corpus.writeTextModel(dir, 50.0 / numTopics, 0.01);
+    model = new LdaModel();
+    model.loadModel(file.getPath());
+    words = corpus.text(random, docLength);
+    pz = new double[numTopics];
+    if (logPwzTable) {
+      model.buildLogPwzTable();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    SyntheticCorpus.delete(dir);
+  }
+
+  @Benchmark
+  public double [] inference() {
+    model.inference(words, pz, burnIn, sampling, random);
+    return pz;
+  }
+
+  @Benchmark
+  public double [] inferenceFast() {
+    model.inferenceFast(words, pz);
+    return pz;
+  }
+}
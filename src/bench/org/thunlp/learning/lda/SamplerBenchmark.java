@@ -0,0 +1,100 @@
+package org.thunlp.learning.lda;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-word and per-document sampling steps of GibbsSamplingReducer,
+ * against a synthetic nwz loaded the way the reducer loads it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class SamplerBenchmark {
+  @Param({"100", "1000"})
+  public int numTopics;
+
+  @Param({"10000", "100000"})
+  public int numWords;
+
+  @Param({"100", "1000"})
+  public int docLength;
+
+  private File dir;
+  private GibbsSamplingReducer reducer;
+  private DocumentWritable doc;
+  private int [] nzd;
+  private double [] probs;
+  private double alpha;
+  private double beta = 0.01;
+  private Random random = new Random(1);
+  private int next = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    SyntheticCorpus corpus = new SyntheticCorpus(numWords, numTopics);
+    dir = SyntheticCorpus.tempDir();
+    doc = corpus.document(random, docLength);
+    Path nwz = corpus.writeNwz(dir, doc);
+    alpha = 50.0 / numTopics;
+    JobConf conf = new JobConf();
+    conf.setInt("num.topics", numTopics);
+    conf.setInt("num.words", numWords);
+    conf.set("alpha", Double.toString(alpha));
+    conf.set("beta", Double.toString(beta));
+    conf.set("input.nwz", nwz.toString());
+    reducer = new GibbsSamplingReducer();
+    reducer.configure(conf);
+    nzd = new int[numTopics];
+    reducer.computeNzd(doc, nzd);
+    probs = new double[numTopics];
+    reducer.computeSamplingProbability(nzd, doc.words[0], probs, alpha, beta);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    SyntheticCorpus.delete(dir);
+  }
+
+  @Benchmark
+  public double computeSamplingProbability() {
+    int word = doc.words[next];
+    next = (next + 1) % docLength;
+    return reducer.computeSamplingProbability(nzd, word, probs, alpha, beta);
+  }
+
+  @Benchmark
+  public int sampleInDistribution() {
+    return reducer.sampleInDistribution(probs, random);
+  }
+
+  /**
+   * A full sweep over one document, docLength times the two steps above
+   * plus the count updates.
+   */
+  @Benchmark
+  public double sampleDocument() {
+    return reducer.sampleDocument(doc);
+  }
+}
@@ -0,0 +1,184 @@
+package org.thunlp.learning.lda;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Random;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Synthetic vocabularies, documents and models for the benchmarks. Word
+ * frequencies follow a Zipf law, and the counts of each word are spread over
+ * two main topics and a few random ones, as in a trained model.
+ */
+public class SyntheticCorpus {
+  private static int TOKENS_PER_WORD = 50;
+
+  private int numWords;
+  private int numTopics;
+  private double [] cdf;
+
+  public SyntheticCorpus(int numWords, int numTopics) {
+    this.numWords = numWords;
+    this.numTopics = numTopics;
+    cdf = new double[numWords];
+    double sum = 0.0;
+    for (int w = 0; w < numWords; w++) {
+      sum += 1.0 / (w + 1);
+      cdf[w] = sum;
+    }
+    for (int w = 0; w < numWords; w++) {
+      cdf[w] /= sum;
+    }
+  }
+
+  public static String word(int id) {
+    return "w" + id;
+  }
+
+  public int sampleWord(Random random) {
+    int i = Arrays.binarySearch(cdf, random.nextDouble());
+    return Math.min(i < 0 ? -i - 1 : i, numWords - 1);
+  }
+
+  public DocumentWritable document(Random random, int length) {
+    DocumentWritable doc = new DocumentWritable();
+    doc.setNumWords(length);
+    for (int i = 0; i < length; i++) {
+      doc.words[i] = sampleWord(random);
+      doc.topics[i] = random.nextInt(numTopics);
+    }
+    return doc;
+  }
+
+  public String [] text(Random random, int length) {
+    String [] words = new String[length];
+    for (int i = 0; i < length; i++) {
+      words[i] = word(sampleWord(random));
+    }
+    return words;
+  }
+
+  public Hashtable<String, Integer> wordList() {
+    Hashtable<String, Integer> ids = new Hashtable<String, Integer>();
+    for (int w = 0; w < numWords; w++) {
+      ids.put(word(w), w);
+    }
+    return ids;
+  }
+
+  /**
+   * Counts of a word over topics, the same for the same word.
+   */
+  public void row(int word, int [] counts) {
+    Arrays.fill(counts, 0);
+    double p = cdf[word] - (word > 0 ? cdf[word - 1] : 0.0);
+    int total = (int) Math.max(1, p * numWords * TOKENS_PER_WORD);
+    Random random = new Random(word);
+    int first = (int) ((word * 31L) % numTopics);
+    int second = (int) ((word * 17L + 7) % numTopics);
+    counts[first] += total * 7 / 10;
+    counts[second] += total * 2 / 10;
+    int rest = total - total * 7 / 10 - total * 2 / 10;
+    for (int i = 0; i < rest; i++) {
+      counts[random.nextInt(numTopics)]++;
+    }
+  }
+
+  /**
+   * Write the counts as an nwz directory, the way CombineModelParamReducer
+   * does.
+   */
+  public Path writeNwz(File dir) throws IOException {
+    return writeNwz(dir, null);
+  }
+
+  /**
+   * Write the counts plus the topics of doc, so the sampler can take the
+   * words of doc out of the counts without going negative.
+   */
+  public Path writeNwz(File dir, DocumentWritable doc) throws IOException {
+    int [][] docCounts = new int[numWords][];
+    if (doc != null) {
+      for (int i = 0; i < doc.getNumWords(); i++) {
+        int w = doc.words[i];
+        if (docCounts[w] == null) {
+          docCounts[w] = new int[numTopics];
+        }
+        docCounts[w][doc.topics[i]]++;
+      }
+    }
+    JobConf conf = new JobConf();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path nwz = new Path(new File(dir, "nwz").getAbsolutePath());
+    SequenceFile.Writer writer = SequenceFile.createWriter(
+        fs, conf, new Path(nwz, "part-00000"),
+        IntWritable.class, WordInfoWritable.class);
+    IntWritable key = new IntWritable();
+    WordInfoWritable value = new WordInfoWritable(numTopics);
+    int [] counts = new int[numTopics];
+    for (int w = 0; w < numWords; w++) {
+      row(w, counts);
+      for (int k = 0; k < numTopics; k++) {
+        value.setTopicCount(k, counts[k] +
+            (docCounts[w] == null ? 0 : docCounts[w][k]));
+      }
+      key.set(w);
+      writer.append(key, value);
+    }
+    writer.close();
+    return nwz;
+  }
+
+  /**
+   * Write the counts as a text model, the way ExportModelTool does.
+   */
+  public File writeTextModel(File dir, double alpha, double beta)
+  throws IOException {
+    File model = new File(dir, "model.txt");
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(model), "UTF-8"), 1 << 20);
+    writer.write(alpha + "\n");
+    writer.write(beta + "\n");
+    writer.write(numTopics + "\n");
+    writer.write("1\n");
+    int [] counts = new int[numTopics];
+    for (int w = 0; w < numWords; w++) {
+      row(w, counts);
+      writer.write(word(w));
+      for (int k = 0; k < numTopics; k++) {
+        writer.write(" ");
+        writer.write(Integer.toString(counts[k]));
+      }
+      writer.write("\n");
+    }
+    writer.close();
+    return model;
+  }
+
+  public static File tempDir() throws IOException {
+    File dir = File.createTempFile("lda-bench-", "");
+    dir.delete();
+    dir.mkdirs();
+    return dir;
+  }
+
+  public static void delete(File f) {
+    File [] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+}
@@ -0,0 +1,185 @@
+package org.thunlp.learning.lda;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.thunlp.misc.AnyDoublePair;
+
+/**
+ * TopicVectorIndex.query of an indexed document, over synthetic top-10 topic
+ * vectors drawn around a number of clusters. The setup prints recall@k of the
+ * index against an exact scan for numQueries documents, so the time and the
+ * recall of a configuration come from the same run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class TopicVectorIndexBenchmark {
+  @Param({"200000"})
+  public int numDocs;
+
+  @Param({"100"})
+  public int numTopics;
+
+  @Param({"8"})
+  public int numTables;
+
+  @Param({"16"})
+  public int numBits;
+
+  @Param({"4", "8"})
+  public int numProbes;
+
+  @Param({"10"})
+  public int k;
+
+  @Param({"1000"})
+  public int numClusters;
+
+  @Param({"200"})
+  public int numQueries;
+
+  // Topics kept per document, as InferenceTool top_k.
+  private static int TOP_TOPICS = 10;
+
+  private File dir;
+  private TopicVectorIndex index;
+  // The indexed vectors, for the exact scan.
+  private int [][] docTopics;
+  private double [][] docSqrts;
+  private Random random = new Random(1);
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    TopicVectorIndex.Builder builder =
+      new TopicVectorIndex.Builder(numTables, numBits, 0);
+    int [][] centers = new int[numClusters][TOP_TOPICS];
+    double [][] weights = new double[numClusters][TOP_TOPICS];
+    for (int c = 0; c < numClusters; c++) {
+      for (int i = 0; i < TOP_TOPICS; i++) {
+        centers[c][i] = random.nextInt(numTopics);
+        weights[c][i] = -Math.log(random.nextDouble());
+      }
+    }
+    int [] topics = new int[TOP_TOPICS];
+    double [] p = new double[TOP_TOPICS];
+    docTopics = new int[numDocs][];
+    docSqrts = new double[numDocs][];
+    for (int d = 0; d < numDocs; d++) {
+      int c = random.nextInt(numClusters);
+      double norm = 0.0;
+      for (int i = 0; i < TOP_TOPICS; i++) {
+        // Swap a few topics, and jitter the weights of the rest.
+        topics[i] = random.nextDouble() < 0.1 ?
+            random.nextInt(numTopics) : centers[c][i];
+        p[i] = weights[c][i] * Math.exp(0.3 * random.nextGaussian());
+        norm += p[i];
+      }
+      int length = merge(topics, p, norm);
+      builder.add("doc" + d, topics, p, length);
+      docTopics[d] = Arrays.copyOf(topics, length);
+      docSqrts[d] = new double[length];
+      for (int i = 0; i < length; i++) {
+        docSqrts[d][i] = Math.sqrt(p[i]);
+      }
+    }
+    dir = SyntheticCorpus.tempDir();
+    File file = new File(dir, "index");
+    OutputStream out = new FileOutputStream(file);
+    builder.write(out, numTopics);
+    out.close();
+    index = TopicVectorIndex.load(file.getPath());
+    index.setNumProbes(numProbes);
+    System.out.println("recall@" + k + " " + recall());
+  }
+
+  /**
+   * Normalize p, summing the weights of repeated topics.
+   * @return Number of distinct topics, moved to the front.
+   */
+  private static int merge(int [] topics, double [] p, double norm) {
+    int length = 0;
+    for (int i = 0; i < topics.length; i++) {
+      int j = 0;
+      while (j < length && topics[j] != topics[i]) {
+        j++;
+      }
+      if (j == length) {
+        topics[length] = topics[i];
+        p[length++] = p[i] / norm;
+      } else {
+        p[j] += p[i] / norm;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Fraction of the exact k nearest neighbors of numQueries documents found
+   * by the index.
+   */
+  private double recall() {
+    Random queries = new Random(2);
+    double [] q = new double[numTopics];
+    double [] distances = new double[numDocs];
+    double [] sorted = new double[numDocs];
+    int found = 0;
+    for (int i = 0; i < numQueries; i++) {
+      int doc = queries.nextInt(numDocs);
+      Arrays.fill(q, 0.0);
+      for (int j = 0; j < docTopics[doc].length; j++) {
+        q[docTopics[doc][j]] = docSqrts[doc][j];
+      }
+      // 1 - sum sqrt(p q) orders documents as the Hellinger distance does.
+      for (int d = 0; d < numDocs; d++) {
+        double dot = 0.0;
+        for (int j = 0; j < docTopics[d].length; j++) {
+          dot += q[docTopics[d][j]] * docSqrts[d][j];
+        }
+        distances[d] = d == doc ? Double.MAX_VALUE : 1.0 - dot;
+      }
+      System.arraycopy(distances, 0, sorted, 0, numDocs);
+      Arrays.sort(sorted);
+      // The index keeps floats, allow for rounding at the k-th neighbor.
+      double kth = sorted[k - 1] + 1e-6;
+      for (AnyDoublePair<String> neighbor : index.query(doc, k)) {
+        int d = Integer.parseInt(neighbor.first.substring(3));
+        if (distances[d] <= kth) {
+          found++;
+        }
+      }
+    }
+    return (double) found / (numQueries * k);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    SyntheticCorpus.delete(dir);
+  }
+
+  @Benchmark
+  public AnyDoublePair<String> [] query() {
+    return index.query(random.nextInt(numDocs), k);
+  }
+}
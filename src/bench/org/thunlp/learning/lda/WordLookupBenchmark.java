@@ -0,0 +1,71 @@
+package org.thunlp.learning.lda;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * InitModelMapper turning the text of one document into word ids.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WordLookupBenchmark {
+  @Param({"10000", "100000"})
+  public int numWords;
+
+  @Param({"100", "1000", "10000"})
+  public int docLength;
+
+  // Fraction of the document not in the word list.
+  @Param({"0.2"})
+  public double unknownRate;
+
+  private InitModelMapper mapper;
+  private Text key = new Text("doc");
+  private Text value = new Text();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Random random = new Random(1);
+    SyntheticCorpus corpus = new SyntheticCorpus(numWords, 1);
+    mapper = new InitModelMapper();
+    mapper.setWordList(corpus.wordList());
+    String [] words = corpus.text(random, docLength);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < words.length; i++) {
+      sb.append(i > 0 ? " " : "");
+      sb.append(random.nextDouble() < unknownRate ? "x" + words[i] : words[i]);
+    }
+    value.set(sb.toString());
+  }
+
+  @Benchmark
+  public void map(final Blackhole blackhole) throws IOException {
+    mapper.map(key, value, new OutputCollector<Text, DocumentWritable>() {
+      public void collect(Text k, DocumentWritable doc) {
+        blackhole.consume(doc.getNumWords());
+      }
+    }, Reporter.NULL);
+  }
+}
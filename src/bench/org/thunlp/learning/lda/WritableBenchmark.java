@@ -0,0 +1,122 @@
+package org.thunlp.learning.lda;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of DocumentWritable and of dense and sparse
+ * WordInfoWritable rows, to and from in-memory buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WritableBenchmark {
+  @Param({"100", "1000"})
+  public int numTopics;
+
+  @Param({"10000", "100000"})
+  public int numWords;
+
+  @Param({"100", "1000", "10000"})
+  public int docLength;
+
+  private DocumentWritable doc;
+  private DocumentWritable docCopy = new DocumentWritable();
+  private WordInfoWritable denseRow;
+  private WordInfoWritable sparseRow;
+  private WordInfoWritable rowCopy = new WordInfoWritable();
+  private DataOutputBuffer out = new DataOutputBuffer();
+  private DataInputBuffer in = new DataInputBuffer();
+  private byte [] docBytes;
+  private byte [] denseBytes;
+  private byte [] sparseBytes;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    Random random = new Random(1);
+    SyntheticCorpus corpus = new SyntheticCorpus(numWords, numTopics);
+    doc = corpus.document(random, docLength);
+    denseRow = new WordInfoWritable(numTopics);
+    sparseRow = new WordInfoWritable(numTopics);
+    for (int k = 0; k < numTopics; k++) {
+      denseRow.setTopicCount(k, random.nextInt(1000) + 1);
+    }
+    for (int i = 0; i < 5; i++) {
+      sparseRow.setTopicCount(random.nextInt(numTopics), random.nextInt(100));
+    }
+    docBytes = serialize(doc);
+    denseBytes = serialize(denseRow);
+    sparseBytes = serialize(sparseRow);
+  }
+
+  private byte [] serialize(Writable w)
+  throws IOException {
+    out.reset();
+    w.write(out);
+    byte [] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  @Benchmark
+  public int writeDocument() throws IOException {
+    out.reset();
+    doc.write(out);
+    return out.getLength();
+  }
+
+  @Benchmark
+  public int readDocument() throws IOException {
+    in.reset(docBytes, docBytes.length);
+    docCopy.readFields(in);
+    return docCopy.getNumWords();
+  }
+
+  @Benchmark
+  public int writeDenseWordInfo() throws IOException {
+    out.reset();
+    denseRow.write(out);
+    return out.getLength();
+  }
+
+  @Benchmark
+  public int readDenseWordInfo() throws IOException {
+    in.reset(denseBytes, denseBytes.length);
+    rowCopy.readFields(in);
+    return rowCopy.size();
+  }
+
+  @Benchmark
+  public int writeSparseWordInfo() throws IOException {
+    out.reset();
+    sparseRow.write(out);
+    return out.getLength();
+  }
+
+  @Benchmark
+  public int readSparseWordInfo() throws IOException {
+    in.reset(sparseBytes, sparseBytes.length);
+    rowCopy.readFields(in);
+    return rowCopy.size();
+  }
+}
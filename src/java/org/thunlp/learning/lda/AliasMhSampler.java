@@ -0,0 +1,285 @@
+package org.thunlp.learning.lda;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Metropolis-Hastings sampler with alias-table proposals, in the style of
+ * AliasLDA and LightLDA. For each token we run a short chain alternating two
+ * proposals, starting from the current topic:
+ *
+ *   doc proposal:  q(k) ~ n(d,k) + alpha, drawn by picking a random other
+ *                  token of the document (or a uniform topic), O(1).
+ *   word proposal: q(k) ~ (n(w,k) + beta) / (n(k) + V * beta) evaluated on
+ *                  stale counts, drawn from a sparse per-word alias table over
+ *                  the non-zero topics of the word plus a dense alias table
+ *                  for the beta part shared by all words, O(1).
+ *
+ * Each proposal is accepted with the usual MH ratio against the true
+ * conditional, so the stationary distribution is the same as the one of
+ * GibbsSamplingReducer. An alias table is rebuilt after it has served a
+ * configurable number of draws, which amortizes the O(K) building cost.
+ *
+ * The sampler works on the nwz and nz counts of its owner in place.
+ */
+public class AliasMhSampler {
+  private int numTopics;
+  private double alpha;
+  private double beta;
+  private double betaSum;
+  private WordTopicCounts nwz;
+  private int [] nz;
+  private Random random;
+  private int mhSteps;
+  private int rebuildInterval;
+
+  private AliasTable [] wordTables;
+  private AliasTable smoothingTable;
+  private int [] ndz;
+  private double [] buildWeights;
+  private int [] buildTopics;
+  private int [] buildCounts;
+
+  private long numProposals = 0;
+  private long numAccepted = 0;
+
+  /**
+   * @param mhSteps Number of MH steps per token, alternating doc and word
+   * proposals.
+   * @param rebuildInterval Rebuild an alias table after this many draws.
+   */
+  public AliasMhSampler(
+      WordTopicCounts nwz,
+      int [] nz,
+      int numTopics,
+      double alpha,
+      double beta,
+      int mhSteps,
+      int rebuildInterval,
+      Random random) {
+    this.nwz = nwz;
+    this.nz = nz;
+    this.numTopics = numTopics;
+    this.alpha = alpha;
+    this.beta = beta;
+    this.betaSum = nwz.getNumWords() * beta;
+    this.mhSteps = Math.max(mhSteps, 1);
+    this.rebuildInterval = Math.max(rebuildInterval, 1);
+    this.random = random;
+    ndz = new int[numTopics];
+    buildWeights = new double[numTopics];
+    buildTopics = new int[numTopics];
+    buildCounts = new int[numTopics];
+    wordTables = new AliasTable[nwz.getNumWords()];
+    smoothingTable = new AliasTable();
+    buildSmoothingTable();
+  }
+
+  public long getNumProposals() {
+    return numProposals;
+  }
+
+  public long getNumAccepted() {
+    return numAccepted;
+  }
+
+  /**
+   * Resample all topics of the document, updating the counts in place.
+   * @return The sum of the estimated normalization factors of all tokens.
+   * Each estimate is unbiased for the quantity returned by
+   * GibbsSamplingReducer.computeSamplingProbability, so the LIKELIHOOD counter
+   * stays comparable to the other samplers.
+   */
+  public double sampleDocument(DocumentWritable doc) {
+    int length = doc.getNumWords();
+    Arrays.fill(ndz, 0);
+    for (int i = 0; i < length; i++) {
+      ndz[doc.topics[i]]++;
+    }
+    double likelihood = 0.0;
+    for (int i = 0; i < length; i++) {
+      int word = doc.words[i];
+      int topic = doc.topics[i];
+      ndz[topic]--;
+      nz[topic]--;
+      nwz.add(word, topic, -1);
+
+      AliasTable table = wordTable(word);
+      double normEstimate = 0.0;
+      for (int step = 0; step < mhSteps; step++) {
+        int proposal;
+        double ratio;
+        if (step % 2 == 0) {
+          // Doc proposal: q(k) ~ n(d,k) + alpha, the alpha part cancels with
+          // the conditional, leaving the ratio of the word parts.
+          double docMass = (length - 1) + numTopics * alpha;
+          if (random.nextDouble() * docMass < length - 1) {
+            int j = random.nextInt(length - 1);
+            if (j >= i) {
+              j++;
+            }
+            proposal = doc.topics[j];
+          } else {
+            proposal = random.nextInt(numTopics);
+          }
+          double proposalWord = wordFactor(word, proposal);
+          if (step == 0) {
+            normEstimate = proposalWord * docMass;
+          }
+          ratio = proposalWord / wordFactor(word, topic);
+        } else {
+          // Word proposal from the stale alias tables.
+          double wordMass = table.mass + smoothingTable.mass;
+          if (random.nextDouble() * wordMass < table.mass) {
+            proposal = table.draw(random);
+          } else {
+            proposal = smoothingTable.draw(random);
+          }
+          double proposalTarget = conditional(word, proposal);
+          double proposalQ = staleWeight(table, proposal);
+          ratio = proposalTarget * staleWeight(table, topic) /
+              (conditional(word, topic) * proposalQ);
+        }
+        numProposals++;
+        if (ratio >= 1.0 || random.nextDouble() < ratio) {
+          topic = proposal;
+          numAccepted++;
+        }
+      }
+      likelihood += normEstimate;
+
+      doc.topics[i] = topic;
+      ndz[topic]++;
+      nz[topic]++;
+      nwz.add(word, topic, 1);
+    }
+    return likelihood;
+  }
+
+  private double wordFactor(int word, int topic) {
+    return (nwz.get(word, topic) + beta) / (nz[topic] + betaSum);
+  }
+
+  private double conditional(int word, int topic) {
+    return (ndz[topic] + alpha) * wordFactor(word, topic);
+  }
+
+  private double staleWeight(AliasTable table, int topic) {
+    double w = smoothingTable.weights[topic];
+    int position = Arrays.binarySearch(table.topics, 0, table.size, topic);
+    if (position >= 0) {
+      w += table.weights[position];
+    }
+    return w;
+  }
+
+  private AliasTable wordTable(int word) {
+    AliasTable table = wordTables[word];
+    if (table == null) {
+      table = new AliasTable();
+      wordTables[word] = table;
+      buildWordTable(word, table);
+    } else if (table.draws >= rebuildInterval) {
+      buildWordTable(word, table);
+    }
+    if (smoothingTable.draws >= rebuildInterval) {
+      buildSmoothingTable();
+    }
+    return table;
+  }
+
+  private void buildWordTable(int word, AliasTable table) {
+    int [] counts = buildCounts;
+    nwz.getRow(word, counts);
+    int size = 0;
+    for (int k = 0; k < numTopics; k++) {
+      if (counts[k] > 0) {
+        buildTopics[size] = k;
+        buildWeights[size] = counts[k] / (nz[k] + betaSum);
+        size++;
+      }
+    }
+    table.build(buildTopics, buildWeights, size);
+  }
+
+  private void buildSmoothingTable() {
+    for (int k = 0; k < numTopics; k++) {
+      buildTopics[k] = k;
+      buildWeights[k] = beta / (nz[k] + betaSum);
+    }
+    smoothingTable.build(buildTopics, buildWeights, numTopics);
+  }
+
+  /**
+   * Walker's alias table over a list of topics in increasing order, built
+   * with Vose's method.
+   */
+  private static class AliasTable {
+    int size = 0;
+    int [] topics = new int[0];
+    double [] weights = new double[0];
+    double [] prob = new double[0];
+    int [] alias = new int[0];
+    double mass = 0.0;
+    int draws = 0;
+
+    void build(int [] sourceTopics, double [] sourceWeights, int n) {
+      if (topics.length < n) {
+        topics = new int[n];
+        weights = new double[n];
+        prob = new double[n];
+        alias = new int[n];
+      }
+      size = n;
+      draws = 0;
+      mass = 0.0;
+      for (int i = 0; i < n; i++) {
+        topics[i] = sourceTopics[i];
+        weights[i] = sourceWeights[i];
+        mass += sourceWeights[i];
+      }
+      if (n == 0 || mass <= 0) {
+        mass = 0.0;
+        return;
+      }
+      int [] small = new int[n];
+      int [] large = new int[n];
+      int numSmall = 0;
+      int numLarge = 0;
+      for (int i = 0; i < n; i++) {
+        prob[i] = weights[i] * n / mass;
+        if (prob[i] < 1.0) {
+          small[numSmall++] = i;
+        } else {
+          large[numLarge++] = i;
+        }
+      }
+      while (numSmall > 0 && numLarge > 0) {
+        int s = small[--numSmall];
+        int l = large[--numLarge];
+        alias[s] = l;
+        prob[l] = prob[l] + prob[s] - 1.0;
+        if (prob[l] < 1.0) {
+          small[numSmall++] = l;
+        } else {
+          large[numLarge++] = l;
+        }
+      }
+      while (numLarge > 0) {
+        prob[large[--numLarge]] = 1.0;
+      }
+      while (numSmall > 0) {
+        prob[small[--numSmall]] = 1.0;
+      }
+    }
+
+    int draw(Random random) {
+      draws++;
+      int i = random.nextInt(size);
+      if (random.nextDouble() < prob[i]) {
+        return topics[i];
+      }
+      return topics[alias[i]];
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package org.thunlp.learning.lda;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Sum the partial rows of a word on the map side, before
+ * CombineModelParamReducer. The non-partial reference row is passed through
+ * as it is, and the sums stay partial, so running this zero, one or more
+ * times gives the reducer the same result.
+ */
+public class CombineModelParamCombiner
+implements Reducer<IntWritable, WordInfoWritable,
+                   IntWritable, WordInfoWritable> {
+  private int [] topicCount = null;
+  private WordInfoWritable outvalue = null;
+
+  public void reduce(IntWritable key, Iterator<WordInfoWritable> values,
+      OutputCollector<IntWritable, WordInfoWritable> output, Reporter r)
+      throws IOException {
+    int numPartials = 0;
+    while (values.hasNext()) {
+      WordInfoWritable v = values.next();
+      if (!v.isPartial()) {
+        output.collect(key, v);
+        continue;
+      }
+      if (topicCount == null || topicCount.length != v.size()) {
+        topicCount = new int[v.size()];
+        outvalue = new WordInfoWritable(v.size());
+      }
+      if (numPartials == 0) {
+        for (int i = 0; i < topicCount.length; i++) {
+          topicCount[i] = 0;
+        }
+      }
+      for (int i = 0; i < v.size(); i++) {
+        topicCount[i] += v.getTopicCount(i);
+      }
+      numPartials++;
+    }
+    if (numPartials > 0) {
+      for (int i = 0; i < topicCount.length; i++) {
+        outvalue.setTopicCount(i, topicCount[i]);
+      }
+      outvalue.setIsPartial(true);
+      output.collect(key, outvalue);
+    }
+  }
+
+  public void configure(JobConf conf) {}
+
+  public void close() throws IOException {}
+
+}
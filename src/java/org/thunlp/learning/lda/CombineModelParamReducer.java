@@ -11,7 +11,11 @@ import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 
 /**
- * Combine the word topic counts from different samplers.
+ * Combine the word topic counts from different samplers. The non-partial
+ * value of a word is its count in the previous iteration, if any, and the
+ * partial values are changes made by the samplers, so the new count is the
+ * previous one plus all changes. Words no sampler changed only have the
+ * previous count, which passes through.
  * @author sixiance
  *
  */
@@ -21,7 +25,6 @@ implements Reducer<IntWritable, WordInfoWritable,
   private int [] topicCount = null;
   private int [] referenceCount = null;
   private WordInfoWritable outvalue = null;
-  private boolean takeMean = true;
   
   public void reduce(IntWritable key, Iterator<WordInfoWritable> values,
       OutputCollector<IntWritable, WordInfoWritable> output, Reporter r)
@@ -50,17 +53,13 @@ implements Reducer<IntWritable, WordInfoWritable,
       n++;
     }
     for (int i = 0; i < topicCount.length; i++) {
-      if (takeMean) 
-        outvalue.setTopicCount(i, topicCount[i] - (n-2) * referenceCount[i]);
-      else
-        outvalue.setTopicCount(i, topicCount[i]);
+      outvalue.setTopicCount(i, referenceCount[i] + topicCount[i]);
     }
     outvalue.setIsPartial(false);
     output.collect(key, outvalue);
   }
 
   public void configure(JobConf conf) {
-    takeMean = conf.getBoolean("take.mean", true);
   }
 
   public void close() throws IOException {
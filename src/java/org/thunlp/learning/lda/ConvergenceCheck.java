@@ -0,0 +1,47 @@
+package org.thunlp.learning.lda;
+
+/**
+ * Decide when a training metric, such as the likelihood or the held-out
+ * perplexity, stopped moving: the relative change between the latest value
+ * and the one window values before is below a threshold.
+ */
+public class ConvergenceCheck {
+  private double [] history;
+  private int numValues = 0;
+  private double threshold;
+  private double lastChange = Double.NaN;
+
+  /**
+   * @param threshold Relative change to stop at, 0 or less never stops.
+   */
+  public ConvergenceCheck(int window, double threshold) {
+    history = new double[Math.max(1, window) + 1];
+    this.threshold = threshold;
+  }
+
+  /**
+   * Add the latest value.
+   * @return The relative change over the window, NaN before the window is
+   * full.
+   */
+  public double add(double value) {
+    history[numValues % history.length] = value;
+    numValues++;
+    if (numValues < history.length) {
+      lastChange = Double.NaN;
+    } else {
+      double old = history[numValues % history.length];
+      lastChange = Math.abs(value - old) / Math.max(Math.abs(old), 1e-300);
+    }
+    return lastChange;
+  }
+
+  public double getLastChange() {
+    return lastChange;
+  }
+
+  public boolean isConverged() {
+    return threshold > 0 && !Double.isNaN(lastChange) &&
+        lastChange < threshold;
+  }
+}
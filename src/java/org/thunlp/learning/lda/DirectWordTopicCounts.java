@@ -0,0 +1,55 @@
+package org.thunlp.learning.lda;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Word-topic counts in direct (off-heap) buffers, so a large model neither
+ * counts against the Java heap nor is scanned by the garbage collector. A
+ * single buffer is limited to 2GB, so the rows are spread over chunks of
+ * equal number of rows.
+ */
+public class DirectWordTopicCounts extends WordTopicCounts {
+  private static int MAX_CHUNK_BYTES = 1 << 30;
+  private IntBuffer [] chunks;
+  private int rowsPerChunk;
+
+  public DirectWordTopicCounts(int numWords, int numTopics) {
+    super(numWords, numTopics);
+    rowsPerChunk = Math.max(1, MAX_CHUNK_BYTES / 4 / Math.max(numTopics, 1));
+    int numChunks = (numWords + rowsPerChunk - 1) / rowsPerChunk;
+    chunks = new IntBuffer[numChunks];
+    for (int i = 0; i < numChunks; i++) {
+      int rows = Math.min(rowsPerChunk, numWords - i * rowsPerChunk);
+      chunks[i] = ByteBuffer.allocateDirect(rows * numTopics * 4)
+          .order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+  }
+
+  public int get(int word, int topic) {
+    return chunks[word / rowsPerChunk].get(
+        (word % rowsPerChunk) * numTopics + topic);
+  }
+
+  public void set(int word, int topic, int value) {
+    chunks[word / rowsPerChunk].put(
+        (word % rowsPerChunk) * numTopics + topic, value);
+  }
+
+  public int add(int word, int topic, int delta) {
+    IntBuffer chunk = chunks[word / rowsPerChunk];
+    int index = (word % rowsPerChunk) * numTopics + topic;
+    int value = chunk.get(index) + delta;
+    chunk.put(index, value);
+    return value;
+  }
+
+  public void getRow(int word, int [] row) {
+    IntBuffer chunk = chunks[word / rowsPerChunk];
+    int offset = (word % rowsPerChunk) * numTopics;
+    for (int k = 0; k < numTopics; k++) {
+      row[k] = chunk.get(offset + k);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package org.thunlp.learning.lda;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Documents of one reducer, kept for several sampling sweeps. The documents
+ * are held in memory, or in a local file which every sweep reads and
+ * rewrites, for partitions too large for the heap.
+ *
+ * A sweep is startSweep(), then next() and update() for every document in
+ * the order they were added, then endSweep(). update() may lag behind next(),
+ * as long as the documents are updated in order.
+ */
+public class DocumentBuffer {
+  public static String MEMORY_BUFFER = "memory";
+  public static String DISK_BUFFER = "disk";
+
+  private boolean onDisk;
+  private int size = 0;
+  // Memory.
+  private List<Text> keys = new ArrayList<Text>();
+  private List<DocumentWritable> docs = new ArrayList<DocumentWritable>();
+  private List<Integer> sequences = new ArrayList<Integer>();
+  private int readIndex = 0;
+  private int writeIndex = 0;
+  // Disk.
+  private File current = null;
+  private File next = null;
+  private DataInputStream in = null;
+  private DataOutputStream out = null;
+  private int numRead = 0;
+
+  private Text key = null;
+  private DocumentWritable doc = null;
+  private int sequence = 0;
+
+  public DocumentBuffer(String storage) throws IOException {
+    if (storage.equals(DISK_BUFFER)) {
+      onDisk = true;
+      current = File.createTempFile("lda-docs-", ".buf");
+      next = File.createTempFile("lda-docs-", ".buf");
+      out = open(current);
+      key = new Text();
+      doc = new DocumentWritable();
+    } else if (!storage.equals(MEMORY_BUFFER)) {
+      throw new IOException("Unknown document buffer: " + storage);
+    }
+  }
+
+  private static DataOutputStream open(File f) throws IOException {
+    return new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Append a copy of the document.
+   */
+  public void add(Text key, DocumentWritable doc, int sequence)
+  throws IOException {
+    if (onDisk) {
+      write(key, doc, sequence);
+    } else {
+      Text k = new Text(key);
+      DocumentWritable d = new DocumentWritable();
+      d.set(doc);
+      keys.add(k);
+      docs.add(d);
+      sequences.add(sequence);
+    }
+    size++;
+  }
+
+  private void write(Text key, DocumentWritable doc, int sequence)
+  throws IOException {
+    key.write(out);
+    out.writeInt(sequence);
+    doc.write(out);
+  }
+
+  public void startSweep() throws IOException {
+    if (onDisk) {
+      if (out != null) {
+        out.close();
+      }
+      in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(current), 1 << 16));
+      out = open(next);
+      numRead = 0;
+    } else {
+      readIndex = 0;
+      writeIndex = 0;
+    }
+  }
+
+  /**
+   * Move to the next document, false if all have been read in this sweep.
+   */
+  public boolean next() throws IOException {
+    if (onDisk) {
+      if (numRead == size) {
+        return false;
+      }
+      try {
+        key.readFields(in);
+        sequence = in.readInt();
+        doc.readFields(in);
+      } catch (EOFException e) {
+        throw new IOException("Document buffer " + current + " truncated", e);
+      }
+      numRead++;
+      return true;
+    }
+    if (readIndex == size) {
+      return false;
+    }
+    key = keys.get(readIndex);
+    doc = docs.get(readIndex);
+    sequence = sequences.get(readIndex);
+    readIndex++;
+    return true;
+  }
+
+  public Text key() {
+    return key;
+  }
+
+  /**
+   * The current document. In memory it is the buffered document itself,
+   * on disk it is reused by the next call to next().
+   */
+  public DocumentWritable doc() {
+    return doc;
+  }
+
+  public int sequence() {
+    return sequence;
+  }
+
+  /**
+   * Store the sampled topics of the next document to update, in the order
+   * the documents were read.
+   */
+  public void update(Text key, DocumentWritable doc, int sequence)
+  throws IOException {
+    if (onDisk) {
+      write(key, doc, sequence);
+      return;
+    }
+    DocumentWritable stored = docs.get(writeIndex++);
+    if (stored != doc) {
+      stored.set(doc);
+    }
+  }
+
+  public void endSweep() throws IOException {
+    if (onDisk) {
+      in.close();
+      out.close();
+      out = null;
+      File f = current;
+      current = next;
+      next = f;
+    }
+  }
+
+  public void close() {
+    if (onDisk) {
+      try {
+        if (in != null) {
+          in.close();
+        }
+        if (out != null) {
+          out.close();
+        }
+      } catch (IOException e) {
+        // The files are deleted anyway.
+      }
+      current.delete();
+      next.delete();
+    }
+    keys.clear();
+    docs.clear();
+    sequences.clear();
+    size = 0;
+  }
+}
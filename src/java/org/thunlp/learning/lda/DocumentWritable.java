@@ -3,14 +3,24 @@ package org.thunlp.learning.lda;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 
 public class DocumentWritable implements Writable {
   public int [] words = null;
   public int [] topics = null;
   private int numWords = 0;
   private byte [] buffer = new byte[10240];
+  private DataInputBuffer in = new DataInputBuffer();
+  private DataOutputBuffer out = new DataOutputBuffer();
+  private long [] tokens = new long[0];
+  
+  // First byte of the compact format.
+  public static byte VERSION = (byte) 0x81;
   
   public int getNumWords() {
     return numWords;
@@ -23,9 +33,54 @@ public class DocumentWritable implements Writable {
     }
     numWords = n;
   }
+  
+  public void set(DocumentWritable other) {
+    setNumWords(other.numWords);
+    System.arraycopy(other.words, 0, words, 0, numWords);
+    System.arraycopy(other.topics, 0, topics, 0, numWords);
+  }
 
+  /**
+   * Reads both the compact format and the original one, an int byte size
+   * followed by (word, topic) pairs of 4-byte ints. The original format can
+   * not start with VERSION, since that would be a negative size.
+   */
   public void readFields(DataInput input) throws IOException {
-    int size = input.readInt();
+    byte first = input.readByte();
+    if (first != VERSION) {
+      int size = ((first & 0xFF) << 24) + 
+        (input.readUnsignedByte() << 16) +
+        (input.readUnsignedByte() << 8) +
+        input.readUnsignedByte();
+      readLegacyFields(input, size);
+      return;
+    }
+    
+    int size = WritableUtils.readVInt(input);
+    if (buffer.length < size) {
+      buffer = new byte[size + 1024];
+    }
+    input.readFully(buffer, 0, size);
+    in.reset(buffer, size);
+    setNumWords(WritableUtils.readVInt(in));
+    int topicBytes = in.readByte();
+    int word = 0;
+    for (int i = 0; i < numWords; i++) {
+      word += WritableUtils.readVInt(in);
+      words[i] = word;
+    }
+    for (int i = 0; i < numWords; i++) {
+      if (topicBytes == 1) {
+        topics[i] = in.readUnsignedByte();
+      } else if (topicBytes == 2) {
+        topics[i] = in.readUnsignedShort();
+      } else {
+        topics[i] = WritableUtils.readVInt(in);
+      }
+    }
+  }
+  
+  private void readLegacyFields(DataInput input, int size) throws IOException {
     if (buffer.length < size) {
       buffer = new byte[size + 1024];
     }
@@ -38,17 +93,56 @@ public class DocumentWritable implements Writable {
     }
   }
 
+  /**
+   * Write VERSION, the vint size of the rest, the vint number of words,
+   * the number of bytes per topic (1, 2, or 0 for vint), the vint gaps
+   * between word ids and then the topics. Tokens are written in increasing
+   * order of (word, topic), and are read back in that order; a document is a
+   * bag of words, so samplers do not care. Vints are WritableUtils ones.
+   */
   public void write(DataOutput output) throws IOException {
-    int size = numWords * 2 * 4;
-      if (buffer.length < size) {
-        buffer = new byte[size + 1024];
-      }
+    if (tokens.length < numWords) {
+      tokens = new long[numWords];
+    }
+    int maxTopic = 0;
+    int minTopic = 0;
+    for (int i = 0; i < numWords; i++) {
+      tokens[i] = ((long) words[i] << 32) | (topics[i] & 0xFFFFFFFFL);
+      maxTopic = Math.max(maxTopic, topics[i]);
+      minTopic = Math.min(minTopic, topics[i]);
+    }
+    Arrays.sort(tokens, 0, numWords);
+    int topicBytes = 0;
+    if (minTopic < 0) {
+      topicBytes = 0;
+    } else if (maxTopic < (1 << 8)) {
+      topicBytes = 1;
+    } else if (maxTopic < (1 << 16)) {
+      topicBytes = 2;
+    }
+    
+    out.reset();
+    WritableUtils.writeVInt(out, numWords);
+    out.writeByte(topicBytes);
+    int last = 0;
     for (int i = 0; i < numWords; i++) {
-      intToFourBytes(buffer, i * 2 * 4, words[i]);
-      intToFourBytes(buffer, (i * 2 + 1) * 4, topics[i]);
+      int word = (int) (tokens[i] >> 32);
+      WritableUtils.writeVInt(out, word - last);
+      last = word;
+    }
+    for (int i = 0; i < numWords; i++) {
+      int topic = (int) tokens[i];
+      if (topicBytes == 1) {
+        out.writeByte(topic);
+      } else if (topicBytes == 2) {
+        out.writeShort(topic);
+      } else {
+        WritableUtils.writeVInt(out, topic);
+      }
     }
-    output.writeInt(size);
-    output.write(buffer, 0, size);
+    output.writeByte(VERSION);
+    WritableUtils.writeVInt(output, out.getLength());
+    output.write(out.getData(), 0, out.getLength());
   }
   
   public static int fourBytesToInt(byte [] b, int offset) {
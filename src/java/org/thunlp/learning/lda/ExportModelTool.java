@@ -1,7 +1,10 @@
 package org.thunlp.learning.lda;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -19,29 +22,75 @@ import org.apache.hadoop.mapred.JobConf;
 import org.thunlp.misc.Flags;
 import org.thunlp.tool.FolderReader;
 import org.thunlp.tool.GenericTool;
+import org.thunlp.tool.StringUtil;
 
 /**
  * Export the accumulated NWZs from last n iterations to an independent 
  * text file. Other software can then read the model in plain text file, which
  * will make the resulted model independent of Hadoop framework.
+ * 
+ * The same model is also written in binary next to the text file, with a
+ * ".bin" suffix. LdaModel memory-maps the binary model instead of parsing it.
  * @author Xiance SI
  *
  */
 public class ExportModelTool implements GenericTool {
   protected static Logger LOG = Logger.getAnonymousLogger();
-  protected int [][] nwz;
+  protected WordTopicCounts nwz;
   protected int numTopics;
   protected double alpha;
   protected double beta;
   protected String [] explanations;
   protected Map<Integer, String> wordIds;
+  protected String storage = WordTopicCounts.HEAP_STORAGE;
+  protected boolean writeBinary = true;
+  protected int numTopicWords = 20;
+  
+  public static String BINARY_MODEL_SUFFIX = ".bin";
+  
+  /**
+   * Where to keep nwz while exporting, "heap", "direct" or "hybrid".
+   */
+  public void setStorage(String storage) {
+    this.storage = storage;
+  }
+  
+  /**
+   * Whether to write the binary model next to the text model.
+   */
+  public void setWriteBinary(boolean writeBinary) {
+    this.writeBinary = writeBinary;
+  }
+  
+  /**
+   * Number of top words of each topic to save in <output>.topics, 0 to skip
+   * it. See TopicWordsIndex.
+   */
+  public void setNumTopicWords(int numTopicWords) {
+    this.numTopicWords = numTopicWords;
+  }
   
   public void run(String[] args) throws Exception {
     Flags flags = new Flags();
     flags.add("model", "Path of model directory.");
     flags.add("output", "Output model parameter file.");
     flags.add("iterations_to_use", "Use latest n iterations.");
+    flags.addWithDefaultValue(
+        "nwz_storage", WordTopicCounts.HEAP_STORAGE,
+        "'heap', 'direct' (off-heap) or 'hybrid' (sparse rows) nwz. " +
+        "[default 'heap']");
+    flags.addWithDefaultValue(
+        "binary_model", "true",
+        "also write a memory-mappable binary model to <output>.bin. " +
+        "[default true]");
+    flags.addWithDefaultValue(
+        "topic_words", "20",
+        "top words of each topic to save in <output>.topics, 0 to skip. " +
+        "[default 20]");
     flags.parseAndCheck(args);
+    setStorage(flags.getString("nwz_storage"));
+    setWriteBinary(flags.getBoolean("binary_model"));
+    setNumTopicWords(flags.getInt("topic_words"));
     
     int n = flags.getInt("iterations_to_use");
     Path modelPath = new Path(flags.getString("model"));
@@ -53,9 +102,62 @@ public class ExportModelTool implements GenericTool {
   public void exportModel(Path modelPath, Path output, int n)
   throws IOException {
     wordIds = loadWords(new Path(modelPath, "words"));
-    nwz = new int[wordIds.size()][];
-    loadModel(modelPath, n);
+    writeModel(output, loadModel(modelPath, n));
+  }
+  
+  /**
+   * Export counts held in memory, as LocalLdaTrainer does.
+   * @param nwz Sum of the counts of the last n iterations.
+   */
+  public void exportModel(WordTopicCounts nwz, Map<Integer, String> wordIds,
+      double alpha, double beta, Path output, int n) throws IOException {
+    this.nwz = nwz;
+    this.wordIds = wordIds;
+    this.numTopics = nwz.getNumTopics();
+    this.alpha = alpha;
+    this.beta = beta;
+    writeModel(output, n);
+  }
+  
+  private void writeModel(Path output, int n) throws IOException {
     outputModelNwz(output, n);
+    if (writeBinary) {
+      outputBinaryModel(new Path(output.toString() + BINARY_MODEL_SUFFIX), n);
+    }
+    if (numTopicWords > 0) {
+      outputTopicWords(
+          new Path(output.toString() + TopicWordsIndex.TOPICS_SUFFIX), n);
+    }
+  }
+  
+  /**
+   * Save the top words of all topics, so LdaModel.explain does not need to
+   * scan the vocabulary.
+   */
+  public void outputTopicWords(Path output, int n) throws IOException {
+    FileSystem fs = FileSystem.get(new JobConf());
+    int [] topicSum = new int[numTopics];
+    nwz.topicSums(topicSum);
+    TopicWordsIndex index = TopicWordsIndex.build(
+        new TopicWordsIndex.Counts() {
+          public int getNumWords() {
+            return nwz.getNumWords();
+          }
+          public int getNumTopics() {
+            return numTopics;
+          }
+          public void getRow(int word, int [] counts) {
+            nwz.getRow(word, counts);
+          }
+          public String getWord(int word) {
+            return wordIds.get(word);
+          }
+        }, topicSum, n * beta, numTopicWords,
+        Runtime.getRuntime().availableProcessors());
+    OutputStream out = fs.create(output);
+    index.write(out);
+    out.close();
+    LOG.info("Topic words exported.");
   }
  
   public void outputModelNwz(Path output, int n) throws IOException {
@@ -66,18 +168,90 @@ public class ExportModelTool implements GenericTool {
     writer.write(beta + "\n");
     writer.write(numTopics + "\n");
     writer.write(n + "\n");
-    for (int w = 0; w < nwz.length; w++) {
+    for (int w = 0; w < nwz.getNumWords(); w++) {
       writer.write(wordIds.get(w));
-      int [] counts = nwz[w];
       for (int i = 0; i < numTopics; i++) {
         writer.write(" ");
-        writer.write(Integer.toString(counts[i]));
+        writer.write(Integer.toString(nwz.get(w, i)));
       }
       writer.write("\n");
     }
     writer.close();
     LOG.info("Model exported.");
   }
+  
+  /**
+   * Write the model in the binary layout described at
+   * LdaModel.BINARY_MODEL_MAGIC.
+   */
+  public void outputBinaryModel(Path output, int n) throws IOException {
+    FileSystem fs = FileSystem.get(new JobConf());
+    int numWords = nwz.getNumWords();
+    
+    // Sort the vocabulary by UTF-8 bytes, for binary search.
+    final byte [][] encoded = new byte[numWords][];
+    Integer [] order = new Integer[numWords];
+    for (int w = 0; w < numWords; w++) {
+      encoded[w] = StringUtil.toUtf8(wordIds.get(w));
+      order[w] = w;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return compareBytes(encoded[a], encoded[b]);
+      }
+    });
+    
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(fs.create(output), 1 << 20));
+    out.writeInt(LdaModel.BINARY_MODEL_MAGIC);
+    out.writeDouble(alpha);
+    out.writeDouble(beta);
+    out.writeInt(numTopics);
+    out.writeInt(n);
+    out.writeInt(numWords);
+    int offset = 0;
+    for (int i = 0; i < numWords; i++) {
+      out.writeInt(offset);
+      offset += encoded[order[i]].length;
+    }
+    out.writeInt(offset);
+    for (int i = 0; i < numWords; i++) {
+      out.write(encoded[order[i]]);
+    }
+    for (int i = offset; i % 4 != 0; i++) {
+      out.writeByte(0);
+    }
+    
+    int [] row = new int[numTopics];
+    int [] topicSum = new int[numTopics];
+    nwz.topicSums(topicSum);
+    for (int k = 0; k < numTopics; k++) {
+      out.writeInt(topicSum[k]);
+    }
+    for (int i = 0; i < numWords; i++) {
+      nwz.getRow(order[i], row);
+      int sum = 0;
+      for (int k = 0; k < numTopics; k++) {
+        out.writeInt(row[k]);
+        sum += row[k];
+      }
+      out.writeInt(sum);
+    }
+    out.close();
+    LOG.info("Binary model exported.");
+  }
+  
+  private static int compareBytes(byte [] a, byte [] b) {
+    int common = Math.min(a.length, b.length);
+    for (int i = 0; i < common; i++) {
+      int x = a[i] & 0xFF;
+      int y = b[i] & 0xFF;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return a.length - b.length;
+  }
 
   /**
    * Load word to id mapping.
@@ -95,7 +269,13 @@ public class ExportModelTool implements GenericTool {
     return keymap;
   }
   
-  public void loadModel(Path model, int n) throws IOException {
+  /**
+   * Load the parameters and the sum of the last n iterations of nwz. The
+   * random initial state nwz.00000 is only used when no sampled iteration
+   * exists.
+   * @return Number of iterations loaded, which may be fewer than n.
+   */
+  public int loadModel(Path model, int n) throws IOException {
     JobConf conf = new JobConf();
     FileSystem fs = FileSystem.get(conf);
 
@@ -110,6 +290,7 @@ public class ExportModelTool implements GenericTool {
         " num_topics:" + numTopics);
 
     explanations = new String[numTopics];
+    nwz = WordTopicCounts.create(storage, wordIds.size(), numTopics);
     
     // Load last n iterations of nwz.
     Path [] files = {model};
@@ -125,14 +306,21 @@ public class ExportModelTool implements GenericTool {
       }
     });
 
-    if (modelFiles.length < n) {
-      n = modelFiles.length;
+    // Sorted from the latest, so the initial state is last.
+    int numFiles = modelFiles.length;
+    if (numFiles > 1 &&
+        modelFiles[numFiles - 1].getPath().getName().equals("nwz.00000")) {
+      numFiles--;
+    }
+    if (numFiles < n) {
+      n = numFiles;
     }
 
     for (int i = 0; i < n; i++) {
       loadNWZ(modelFiles[i].getPath());
       LOG.info("NWZ " + modelFiles[i].toString() + " loaded.");
     }
+    return n;
   }
   
   public void loadNWZ(Path input) throws IOException {
@@ -141,14 +329,8 @@ public class ExportModelTool implements GenericTool {
     FolderReader reader = new FolderReader(input);
     int n = 0;
     while (reader.next(word, topicCounts)) {
-      int [] counts = nwz[word.get()];
-      if (counts == null) {
-        counts = new int[numTopics];
-        Arrays.fill(counts, 0);
-        nwz[word.get()] = counts;
-      }
       for (int i = 0; i < numTopics; i++) {
-        counts[i] += topicCounts.getTopicCount(i);
+        nwz.add(word.get(), i, topicCounts.getTopicCount(i));
       }
       ++n;
     }
@@ -0,0 +1,41 @@
+package org.thunlp.learning.lda;
+
+/**
+ * Word-topic counts in one row-major int[] on the heap.
+ */
+public class FlatWordTopicCounts extends WordTopicCounts {
+  private int [] counts;
+
+  public FlatWordTopicCounts(int numWords, int numTopics) {
+    super(numWords, numTopics);
+    long size = (long) numWords * numTopics;
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException(numWords + " words x " + numTopics +
+          " topics does not fit in one array, use direct storage.");
+    }
+    counts = new int[(int) size];
+  }
+
+  public int get(int word, int topic) {
+    return counts[word * numTopics + topic];
+  }
+
+  public void set(int word, int topic, int value) {
+    counts[word * numTopics + topic] = value;
+  }
+
+  public int add(int word, int topic, int delta) {
+    return counts[word * numTopics + topic] += delta;
+  }
+
+  public void getRow(int word, int [] row) {
+    System.arraycopy(counts, word * numTopics, row, 0, numTopics);
+  }
+
+  public void addRow(int word, int [] row) {
+    int offset = word * numTopics;
+    for (int k = 0; k < numTopics; k++) {
+      counts[offset + k] += row[k];
+    }
+  }
+}
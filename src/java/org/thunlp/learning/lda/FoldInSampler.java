@@ -0,0 +1,142 @@
+package org.thunlp.learning.lda;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Gibbs sampling of the topics of one document with p(w|z) fixed, as used to
+ * fold new or held-out documents into a trained model, see WarmStart,
+ * OnlineLdaMapper and PerplexityMapper.
+ *
+ * p(w|z) = (n(w,z) + beta) / (n(z) + V * beta), with beta of the counts
+ * given; counts of an exported model are summed over its training
+ * iterations, so forModel scales beta the same way, see LdaModel.pwz.
+ * Not thread-safe, the buffers are shared by all calls.
+ */
+public abstract class FoldInSampler {
+  private int numTopics;
+  private double alpha;
+  private double beta;
+  private double [] phiNorm;
+  private double [] probs;
+  private int [] ndz;
+  private Random random;
+
+  /**
+   * @param topicSums n(z), the sums of the counts of each topic.
+   */
+  protected FoldInSampler(int numTopics, int numWords, double alpha,
+      double beta, int [] topicSums, Random random) {
+    this.numTopics = numTopics;
+    this.alpha = alpha;
+    this.beta = beta;
+    this.random = random;
+    phiNorm = new double[numTopics];
+    for (int k = 0; k < numTopics; k++) {
+      phiNorm[k] = 1.0 / (topicSums[k] + numWords * beta);
+    }
+    probs = new double[numTopics];
+    ndz = new int[numTopics];
+  }
+
+  /**
+   * Fold into an exported model.
+   */
+  public static FoldInSampler forModel(final LdaModel model, Random random) {
+    return new FoldInSampler(model.getNumTopics(), model.getNumWords(),
+        model.getAlpha(),
+        model.getNumTrainingIterations() * model.getBeta(),
+        model.topicSum, random) {
+      protected int count(int word, int topic) {
+        return model.count(word, topic);
+      }
+    };
+  }
+
+  /**
+   * Fold into the n(w,z) of a training iteration.
+   */
+  public static FoldInSampler forCounts(final WordTopicCounts nwz, int [] nz,
+      double alpha, double beta, Random random) {
+    return new FoldInSampler(nwz.getNumTopics(), nwz.getNumWords(),
+        alpha, beta, nz, random) {
+      protected int count(int word, int topic) {
+        return nwz.get(word, topic);
+      }
+    };
+  }
+
+  protected abstract int count(int word, int topic);
+
+  public int getNumTopics() {
+    return numTopics;
+  }
+
+  /**
+   * p(w|z) of the counts.
+   */
+  public double phi(int word, int topic) {
+    return (count(word, topic) + beta) * phiNorm[topic];
+  }
+
+  /**
+   * Topic counts of the document of the last sample call.
+   */
+  public int [] getNdz() {
+    return ndz;
+  }
+
+  /**
+   * Give the first n words uniformly random topics.
+   */
+  public void randomTopics(int [] topics, int n) {
+    for (int i = 0; i < n; i++) {
+      topics[i] = random.nextInt(numTopics);
+    }
+  }
+
+  /**
+   * Resample the topics of words[0..n) numSweeps times, starting from the
+   * topics given. Words below 0 are not in the counts, their topics only
+   * follow the other topics of the document. Leaves the topic counts of the
+   * document in getNdz().
+   */
+  public void sample(int [] words, int [] topics, int n, int numSweeps) {
+    Arrays.fill(ndz, 0);
+    for (int i = 0; i < n; i++) {
+      ndz[topics[i]]++;
+    }
+    for (int sweep = 0; sweep < numSweeps; sweep++) {
+      for (int i = 0; i < n; i++) {
+        int word = words[i];
+        ndz[topics[i]]--;
+        for (int k = 0; k < numTopics; k++) {
+          probs[k] = ndz[k] + alpha;
+          if (word >= 0) {
+            probs[k] *= phi(word, k);
+          }
+        }
+        topics[i] = draw(probs);
+        ndz[topics[i]]++;
+      }
+    }
+  }
+
+  /**
+   * Draw a topic from unnormalized probabilities.
+   */
+  public int draw(double [] probs) {
+    double norm = 0.0;
+    for (int k = 0; k < numTopics; k++) {
+      norm += probs[k];
+    }
+    double sample = random.nextDouble() * norm;
+    for (int k = 0; k < numTopics; k++) {
+      sample -= probs[k];
+      if (sample < 0) {
+        return k;
+      }
+    }
+    return numTopics - 1;
+  }
+}
@@ -1,9 +1,13 @@
 package org.thunlp.learning.lda;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
@@ -13,26 +17,31 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
-import org.thunlp.tool.FolderReader;
 
 /**
  * Perform Gibbs Sampling on documents. When starting, the reducer loads p(w|z)
  * from the model file. Then it uses p(w|z) to sample topics for input documents
- * After all entries reduced, the reducer output the modified p(w|z) back to the
- * file system. 
+ * After all entries reduced, the reducer output the changes it made to n(w,z)
+ * back to the file system, one partial row per changed word, see
+ * CombineModelParamReducer.
+ *
+ * With sweeps.per.job above 1, the reducer buffers its documents, see
+ * DocumentBuffer, and samples them that many times on close. The counts of
+ * the other reducers are then that many sweeps stale.
  * @author sixiance
  *
  */
 public class GibbsSamplingReducer 
-implements Reducer<Text, DocumentWritable, Text, DocumentWritable>{
+implements Reducer<Text, Writable, Text, Writable>{
   private static Logger LOG = Logger.getAnonymousLogger();
   private int numTopics = 0;
   private double [] probs = null;
-  private int[][] nwz = null;
+  private WordTopicCounts nwz = null;
   private int [] nzd = null;
   private int [] nz = null;
   private Random randomProvider = new Random();
@@ -40,38 +49,296 @@ implements Reducer<Text, DocumentWritable, Text, DocumentWritable>{
   private double beta = 0.0;
   private String outputNwz = null;
   private int numWords = 0;
+  private String storage = WordTopicCounts.HEAP_STORAGE;
+  private String samplerType = GibbsSamplingTool.GIBBS_SAMPLER;
+  private SparseGibbsSampler sparseSampler = null;
+  private AliasMhSampler aliasSampler = null;
+  private int mhSteps = 2;
+  private int aliasRebuildInterval = 0;
+  private ParallelGibbsSampler parallelSampler = null;
+  private int batchSize = 0;
+  private List<Text> batchKeys = new ArrayList<Text>();
+  private List<DocumentWritable> batchDocs = new ArrayList<DocumentWritable>();
+  private double [] batchLikelihoods = null;
+  private int batchFill = 0;
+  private int [] batchSequences = null;
+  private OutputCollector<Text, Writable> lastOutput = null;
+  private Reporter lastReporter = null;
+  // Split layout: words of this partition, joined with the input topics.
+  private Path wordsPath = null;
+  private SequenceFile.Reader wordsReader = null;
+  private Text wordsKey = new Text();
+  private DocumentWritable joined = new DocumentWritable();
+  private List<TopicAssignmentWritable> group =
+    new ArrayList<TopicAssignmentWritable>();
+  private TopicAssignmentWritable assignment = new TopicAssignmentWritable();
+  private WordTopicDeltas deltas = null;
+  private int numSweeps = 1;
+  private DocumentBuffer sweepBuffer = null;
+  private boolean lastSweep = true;
+  // Telemetry, reported as counters on close, summed over all sweeps.
+  private long loadMillis = 0;
+  private long samplingNanos = 0;
+  private long numDocs = 0;
+  private long numTokens = 0;
+  private long numTopicChanges = 0;
+  private int [] previousTopics = new int[1024];
+  private List<int []> batchPrevious = new ArrayList<int []>();
 
   @Override
-  public void reduce(Text key, Iterator<DocumentWritable> values,
-      OutputCollector<Text, DocumentWritable> output, Reporter reporter)
+  public void reduce(Text key, Iterator<Writable> values,
+      OutputCollector<Text, Writable> output, Reporter reporter)
   throws IOException {
+    lastOutput = output;
+    lastReporter = reporter;
+    if (wordsReader != null) {
+      int size = readGroup(values);
+      for (int i = 0; i < size; i++) {
+        TopicAssignmentWritable topics = group.get(i);
+        sampleOrBuffer(key, joinWords(key, topics), topics.getSequence(),
+            output, reporter);
+      }
+      return;
+    }
     while (values.hasNext()) {
-      DocumentWritable doc = values.next();
-      computeNzd(doc, nzd);
-      double likelihood = 0.0;
-      // Sample for each word.
-      for (int i = 0; i < doc.getNumWords(); i++) {
-        int topic = doc.topics[i];
-        int word = doc.words[i];
-        nzd[topic]--;
-        nz[topic]--;
-        nwz[word][topic]--;
-        likelihood += 
-          computeSamplingProbability(nzd, word, probs, alpha, beta);
-        topic = sampleInDistribution(probs, randomProvider);
-        doc.topics[i] = topic;
-        nzd[topic]++;
-        nz[topic]++;
-        nwz[word][topic]++;
+      sampleOrBuffer(key, (DocumentWritable) values.next(), 0,
+          output, reporter);
+    }
+  }
+
+  private void sampleOrBuffer(Text key, DocumentWritable doc, int sequence,
+      OutputCollector<Text, Writable> output, Reporter reporter)
+  throws IOException {
+    if (sweepBuffer != null) {
+      sweepBuffer.add(key, doc, sequence);
+    } else {
+      sampleAndCollect(key, doc, sequence, output, reporter);
+    }
+  }
+
+  /**
+   * Sample the buffered documents numSweeps times, and output them after
+   * the last sweep.
+   */
+  private void runSweeps(
+      OutputCollector<Text, Writable> output, Reporter reporter)
+  throws IOException {
+    for (int sweep = 0; sweep < numSweeps; sweep++) {
+      long startTime = System.currentTimeMillis();
+      lastSweep = sweep + 1 == numSweeps;
+      sweepBuffer.startSweep();
+      int n = 0;
+      while (sweepBuffer.next()) {
+        sampleAndCollect(sweepBuffer.key(), sweepBuffer.doc(),
+            sweepBuffer.sequence(), output, reporter);
+        if (++n % 1000 == 0) {
+          reporter.progress();
+        }
       }
+      if (parallelSampler != null) {
+        flushBatch(output, reporter);
+      }
+      sweepBuffer.endSweep();
+      reporter.setStatus("sweep " + (sweep + 1) + " of " + numSweeps);
+      LOG.info("Sweep " + (sweep + 1) + " of " + numSweeps + " over " + n +
+          " documents using " + (System.currentTimeMillis() - startTime) +
+          " milliseconds.");
+    }
+  }
+
+  private void sampleAndCollect(Text key, DocumentWritable doc, int sequence,
+      OutputCollector<Text, Writable> output, Reporter reporter)
+  throws IOException {
+    if (parallelSampler != null) {
+      addToBatch(key, doc, sequence);
+      if (batchFill == batchSize) {
+        flushBatch(output, reporter);
+      }
+      return;
+    }
+    deltas.add(doc, -1);
+    int [] previous = copyTopics(doc, previousTopics);
+    previousTopics = previous;
+    long startTime = System.nanoTime();
+    double likelihood = 0.0;
+    if (sparseSampler != null) {
+      likelihood = sparseSampler.sampleDocument(doc);
+    } else if (aliasSampler != null) {
+      long proposals = aliasSampler.getNumProposals();
+      long accepted = aliasSampler.getNumAccepted();
+      likelihood = aliasSampler.sampleDocument(doc);
+      reporter.incrCounter(
+          GibbsSamplingTool.GibbsSamplingCounter.MH_PROPOSALS,
+          aliasSampler.getNumProposals() - proposals);
       reporter.incrCounter(
-          GibbsSamplingTool.GibbsSamplingCounter.LIKELIHOOD,
-          (long) (likelihood / doc.getNumWords() *
-              GibbsSamplingTool.RESOLUTION));
+          GibbsSamplingTool.GibbsSamplingCounter.MH_ACCEPTED,
+          aliasSampler.getNumAccepted() - accepted);
+    } else {
+      likelihood = sampleDocument(doc);
+    }
+    samplingNanos += System.nanoTime() - startTime;
+    countChanges(doc, previous);
+    deltas.add(doc, 1);
+    emit(output, reporter, key, doc, sequence, likelihood);
+  }
+
+  /**
+   * Count the likelihood and output a sampled document, or keep it for the
+   * next sweep.
+   */
+  private void emit(OutputCollector<Text, Writable> output, Reporter reporter,
+      Text key, DocumentWritable doc, int sequence, double likelihood)
+  throws IOException {
+    if (!lastSweep) {
+      sweepBuffer.update(key, doc, sequence);
+      return;
+    }
+    reporter.incrCounter(
+        GibbsSamplingTool.GibbsSamplingCounter.LIKELIHOOD,
+        (long) (likelihood / doc.getNumWords() /
+            GibbsSamplingTool.RESOLUTION));
+    collect(output, key, doc, sequence);
+  }
+
+  /**
+   * Copy the topics of the document into buffer, or a larger one.
+   */
+  private static int [] copyTopics(DocumentWritable doc, int [] buffer) {
+    if (buffer.length < doc.getNumWords()) {
+      buffer = new int[doc.getNumWords() * 2];
+    }
+    System.arraycopy(doc.topics, 0, buffer, 0, doc.getNumWords());
+    return buffer;
+  }
+
+  private void countChanges(DocumentWritable doc, int [] previous) {
+    numDocs++;
+    numTokens += doc.getNumWords();
+    for (int i = 0; i < doc.getNumWords(); i++) {
+      if (doc.topics[i] != previous[i]) {
+        numTopicChanges++;
+      }
+    }
+  }
+
+  /**
+   * Output the document, or only its topics with the split layout.
+   */
+  private void collect(OutputCollector<Text, Writable> output, Text key,
+      DocumentWritable doc, int sequence) throws IOException {
+    if (wordsReader != null) {
+      assignment.set(doc);
+      assignment.setSequence(sequence);
+      output.collect(key, assignment);
+    } else {
       output.collect(key, doc);
     }
   }
 
+  /**
+   * Copy the topics of one key into group, in the order of their sequence
+   * numbers, which is the order of their words in the words file.
+   */
+  private int readGroup(Iterator<Writable> values) {
+    int size = 0;
+    while (values.hasNext()) {
+      if (size == group.size()) {
+        group.add(new TopicAssignmentWritable());
+      }
+      group.get(size++).set((TopicAssignmentWritable) values.next());
+    }
+    if (size > 1) {
+      Collections.sort(group.subList(0, size),
+          new Comparator<TopicAssignmentWritable>() {
+        public int compare(
+            TopicAssignmentWritable a, TopicAssignmentWritable b) {
+          return a.getSequence() - b.getSequence();
+        }
+      });
+    }
+    return size;
+  }
+
+  /**
+   * Read the next document of the words file, and give it the topics.
+   * Reducers of the same partition receive the same keys in the same order
+   * in every iteration, so the words file is read sequentially.
+   */
+  private DocumentWritable joinWords(Text key, TopicAssignmentWritable topics)
+  throws IOException {
+    if (!wordsReader.next(wordsKey, joined) || !wordsKey.equals(key) ||
+        joined.getNumWords() != topics.getNumTopics()) {
+      throw new IOException("Words of document " + key + " #" +
+          topics.getSequence() + " not found in " + wordsPath +
+          ", the split layout is out of sync.");
+    }
+    System.arraycopy(topics.topics, 0, joined.topics, 0, joined.getNumWords());
+    return joined;
+  }
+
+  private void addToBatch(Text key, DocumentWritable doc, int sequence) {
+    if (batchFill == batchKeys.size()) {
+      batchKeys.add(new Text());
+      batchDocs.add(new DocumentWritable());
+      batchPrevious.add(new int[0]);
+    }
+    batchKeys.get(batchFill).set(key);
+    batchDocs.get(batchFill).set(doc);
+    batchPrevious.set(batchFill, copyTopics(doc, batchPrevious.get(batchFill)));
+    deltas.add(doc, -1);
+    batchSequences[batchFill] = sequence;
+    batchFill++;
+  }
+
+  /**
+   * Sample the buffered documents with the worker pool, and output them in
+   * the order they arrived.
+   */
+  private void flushBatch(
+      OutputCollector<Text, Writable> output, Reporter reporter)
+  throws IOException {
+    if (batchFill == 0) {
+      return;
+    }
+    long startTime = System.nanoTime();
+    parallelSampler.sampleDocuments(batchDocs, batchFill, batchLikelihoods);
+    samplingNanos += System.nanoTime() - startTime;
+    for (int i = 0; i < batchFill; i++) {
+      DocumentWritable doc = batchDocs.get(i);
+      countChanges(doc, batchPrevious.get(i));
+      deltas.add(doc, 1);
+      emit(output, reporter, batchKeys.get(i), doc, batchSequences[i],
+          batchLikelihoods[i]);
+    }
+    batchFill = 0;
+  }
+
+  /**
+   * Resample all topics of the document by walking the full conditional of
+   * each word.
+   * @return The sum of the normalization factors of all words.
+   */
+  public double sampleDocument(DocumentWritable doc) {
+    computeNzd(doc, nzd);
+    double likelihood = 0.0;
+    // Sample for each word.
+    for (int i = 0; i < doc.getNumWords(); i++) {
+      int topic = doc.topics[i];
+      int word = doc.words[i];
+      nzd[topic]--;
+      nz[topic]--;
+      nwz.add(word, topic, -1);
+      likelihood += 
+        computeSamplingProbability(nzd, word, probs, alpha, beta);
+      topic = sampleInDistribution(probs, randomProvider);
+      doc.topics[i] = topic;
+      nzd[topic]++;
+      nz[topic]++;
+      nwz.add(word, topic, 1);
+    }
+    return likelihood;
+  }
+
   public void computeNzd(DocumentWritable doc, int [] ndz) {
     Arrays.fill(ndz, 0);
     for (int i = 0; i < doc.getNumWords(); i++) {
@@ -100,8 +367,9 @@ implements Reducer<Text, DocumentWritable, Text, DocumentWritable>{
     Arrays.fill(probs, 0.0);
     double norm = 0.0;
     double dummyNorm = 1.0;
+    double betaSum = numWords * beta;
     for (int i = 0; i < numTopics; i++) {
-      double pwz = (nwz[word][i] + beta) / (nz[i] + nwz.length * beta);
+      double pwz = (nwz.get(word, i) + beta) / (nz[i] + betaSum);
       double pzd = (nzd[i] + alpha) / dummyNorm;
       probs[i] = pwz * pzd;
       norm += probs[i];
@@ -124,48 +392,82 @@ implements Reducer<Text, DocumentWritable, Text, DocumentWritable>{
     numTopics = conf.getInt("num.topics", 0);
     numWords = conf.getInt("num.words", 0);
     probs = new double[numTopics];
+    deltas = new WordTopicDeltas(numTopics);
     nzd = new int[numTopics];
     nz = new int[numTopics];
     outputNwz = conf.get("output.nwz");
+    storage = conf.get("nwz.storage", WordTopicCounts.HEAP_STORAGE);
     alpha = (double) conf.getFloat("alpha", 0.0f);
     beta = (double) conf.getFloat("beta", 0.0f);
+    samplerType = conf.get("sampler", GibbsSamplingTool.GIBBS_SAMPLER);
+    mhSteps = conf.getInt("mh.steps", 2);
+    aliasRebuildInterval = conf.getInt("alias.rebuild.interval", numTopics);
+    int numThreads = conf.getInt("sampler.threads", 1);
+    numSweeps = conf.getInt("sweeps.per.job", 1);
+    if (numSweeps > 1) {
+      try {
+        sweepBuffer = new DocumentBuffer(
+            conf.get("sweeps.buffer", DocumentBuffer.MEMORY_BUFFER));
+      } catch (IOException e) {
+        throw new RuntimeException("Cannot create document buffer", e);
+      }
+    }
     
     try {
+      long startTime = System.currentTimeMillis();
       loadModelParameters(conf.get("input.nwz"));
+      loadMillis = System.currentTimeMillis() - startTime;
     } catch (IOException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
     }
+    
+    String docWords = conf.get("doc.words");
+    if (docWords != null) {
+      wordsPath = TopicAssignmentWritable.wordsPart(docWords, conf);
+      try {
+        wordsReader =
+          new SequenceFile.Reader(FileSystem.get(conf), wordsPath, conf);
+      } catch (IOException e) {
+        throw new RuntimeException("Cannot open words file " + wordsPath, e);
+      }
+    }
+    
+    if (samplerType.equals(GibbsSamplingTool.SPARSE_SAMPLER)) {
+      sparseSampler = new SparseGibbsSampler(
+          nwz, nz, numTopics, alpha, beta, randomProvider);
+    } else if (samplerType.equals(GibbsSamplingTool.ALIAS_SAMPLER)) {
+      aliasSampler = new AliasMhSampler(
+          nwz, nz, numTopics, alpha, beta,
+          mhSteps, aliasRebuildInterval, randomProvider);
+    } else if (!samplerType.equals(GibbsSamplingTool.GIBBS_SAMPLER)) {
+      throw new RuntimeException("Unknown sampler: " + samplerType);
+    } else if (numThreads > 1) {
+      batchSize = conf.getInt("sampler.batch.size", 1000) * numThreads;
+      batchLikelihoods = new double[batchSize];
+      batchSequences = new int[batchSize];
+      parallelSampler = new ParallelGibbsSampler(
+          nwz, nz, numTopics, alpha, beta, numThreads, randomProvider);
+    }
+    if (numThreads > 1 && parallelSampler == null) {
+      LOG.warning("Sampler " + samplerType + " is single-threaded, ignore " +
+          "sampler.threads=" + numThreads);
+    }
+    LOG.info("Use sampler " + samplerType + " with " + 
+        (parallelSampler == null ? 1 : numThreads) + " threads");
   }
 
   private void loadModelParameters(String modelParamFile) throws IOException {
     long startTime = System.currentTimeMillis();
-    Path modelParamPath = new Path(modelParamFile);
-    FolderReader fr = new FolderReader(modelParamPath);
-    IntWritable key = new IntWritable();
-    WordInfoWritable value = new WordInfoWritable(numTopics);
-    Arrays.fill(nz, 0);
-    nwz = new int[numWords][];
-    while (fr.next(key, value)) {
-      int [] count = new int[numTopics];
-      for (int i = 0; i < numTopics; i++) {
-        count[i] = value.getTopicCount(i);
-        nz[i] += count[i];
-      }
-      nwz[key.get()] = count;
-    }
-    // Ensure each word has its count.
-    for (int i = 0; i < numWords; i++) {
-      if (nwz[i] == null) {
-        nwz[i] = new int[numTopics];
-      }
-    }
-    fr.close();
+    nwz = WordTopicCounts.load(
+        new Path(modelParamFile), storage, numWords, numTopics, nz);
     long duration = System.currentTimeMillis() - startTime;
     LOG.info("Load model parameters using " + duration + " milliseconds.");
   }
 
   /**
+   * Write the changed rows of n(w,z) as partial WordInfoWritables holding
+   * the deltas. Unchanged words are not written.
    * @param modelParamPart
    * @throws IOException
    */
@@ -180,22 +482,77 @@ implements Reducer<Text, DocumentWritable, Text, DocumentWritable>{
         WordInfoWritable.class);
     IntWritable key = new IntWritable();
     WordInfoWritable value = new WordInfoWritable(numTopics);
-    for (int i = 0; i < nwz.length; i++) {
-      key.set(i);
-      for (int j = 0; j < numTopics; j++) {
-        value.setTopicCount(j, nwz[i][j]); 
+    value.setIsPartial(true);
+    long [] changes = deltas.nonZeroKeys();
+    int numRows = 0;
+    for (int i = 0; i < changes.length;) {
+      int word = (int) (changes[i] / numTopics);
+      int start = i;
+      for (; i < changes.length && changes[i] / numTopics == word; i++) {
+        int topic = (int) (changes[i] % numTopics);
+        value.setTopicCount(topic, deltas.get(word, topic));
       }
-      value.setIsPartial(true);
+      key.set(word);
       writer.append(key, value);
+      for (int j = start; j < i; j++) {
+        value.setTopicCount((int) (changes[j] % numTopics), 0);
+      }
+      numRows++;
     }
     writer.close();
     long duration = System.currentTimeMillis() - startTime;
-    LOG.info("Save model parameters using " + duration + " milliseconds.");
+    LOG.info("Save " + changes.length + " changed counts of " + numRows +
+        " words using " + duration + " milliseconds.");
   }
 
   public void close() throws IOException {
+    if (sweepBuffer != null) {
+      if (lastOutput != null) {
+        runSweeps(lastOutput, lastReporter);
+      }
+      sweepBuffer.close();
+    }
+    if (parallelSampler != null) {
+      if (lastOutput != null) {
+        flushBatch(lastOutput, lastReporter);
+      }
+      parallelSampler.close();
+    }
+    if (wordsReader != null) {
+      if (wordsReader.next(wordsKey)) {
+        LOG.warning("Documents without topics left in " + wordsPath +
+            ", starting at " + wordsKey);
+      }
+      wordsReader.close();
+    }
     String partName = "part-" + Math.abs(randomProvider.nextInt());
+    long startTime = System.currentTimeMillis();
     saveModelParameters(outputNwz + "/" + partName); 
+    if (lastReporter != null) {
+      reportTelemetry(lastReporter, System.currentTimeMillis() - startTime);
+    }
+  }
+
+  private void reportTelemetry(Reporter reporter, long saveMillis) {
+    Runtime runtime = Runtime.getRuntime();
+    long heapMb = (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+    reporter.incrCounter(GibbsSamplingTool.GibbsSamplingCounter.DOCS, numDocs);
+    reporter.incrCounter(
+        GibbsSamplingTool.GibbsSamplingCounter.TOKENS, numTokens);
+    reporter.incrCounter(
+        GibbsSamplingTool.GibbsSamplingCounter.TOPIC_CHANGES, numTopicChanges);
+    reporter.incrCounter(
+        GibbsSamplingTool.GibbsSamplingCounter.SAMPLING_MILLIS,
+        samplingNanos / 1000000);
+    reporter.incrCounter(
+        GibbsSamplingTool.GibbsSamplingCounter.LOAD_MILLIS, loadMillis);
+    reporter.incrCounter(
+        GibbsSamplingTool.GibbsSamplingCounter.SAVE_MILLIS, saveMillis);
+    reporter.incrCounter(
+        GibbsSamplingTool.GibbsSamplingCounter.HEAP_MB, heapMb);
+    LOG.info("Sampled " + numTokens + " words of " + numDocs + " docs in " +
+        samplingNanos / 1000000 + " milliseconds, " + numTopicChanges +
+        " topic changes, " + heapMb + "M heap used.");
   }
 
 }
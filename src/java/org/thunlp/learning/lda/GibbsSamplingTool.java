@@ -1,9 +1,11 @@
 package org.thunlp.learning.lda;
 
 import java.io.IOException;
+import java.util.logging.Logger;
 
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobClient;
@@ -33,8 +35,102 @@ import org.thunlp.tool.GenericTool;
  *
  */
 public class GibbsSamplingTool implements GenericTool {
-  public enum GibbsSamplingCounter {LIKELIHOOD};
+  private static Logger LOG = Logger.getAnonymousLogger();
+  public enum GibbsSamplingCounter {
+    LIKELIHOOD, MH_PROPOSALS, MH_ACCEPTED,
+    // Telemetry, see IterationMetrics.
+    DOCS, TOKENS, TOPIC_CHANGES, SAMPLING_MILLIS, LOAD_MILLIS, SAVE_MILLIS,
+    HEAP_MB};
+  // Units of the LIKELIHOOD counter, the reducers divide by it.
   public static double RESOLUTION = 0.01;
+  public static String GIBBS_SAMPLER = "gibbs";
+  public static String SPARSE_SAMPLER = "sparse";
+  public static String ALIAS_SAMPLER = "alias";
+  
+  private String sampler = GIBBS_SAMPLER;
+  private int mhSteps = 2;
+  private int aliasRebuildInterval = -1;
+  private int numThreads = 1;
+  private String storage = WordTopicCounts.HEAP_STORAGE;
+  private Path documentWords = null;
+  private int sweepsPerJob = 1;
+  private String sweepBuffer = DocumentBuffer.MEMORY_BUFFER;
+  private IterationMetrics lastMetrics = null;
+  
+  /**
+   * Select the sampler used by GibbsSamplingReducer. "gibbs" walks all topics
+   * for every word, "sparse" uses the SparseLDA bucketed sampler, see
+   * SparseGibbsSampler, and "alias" uses the Metropolis-Hastings sampler with
+   * alias-table proposals, see AliasMhSampler. All of them produce the same
+   * documents and nwz layout.
+   */
+  public void setSampler(String sampler) {
+    this.sampler = sampler;
+  }
+  
+  /**
+   * Number of Metropolis-Hastings steps per word for the "alias" sampler.
+   */
+  public void setMhSteps(int mhSteps) {
+    this.mhSteps = mhSteps;
+  }
+  
+  /**
+   * Rebuild an alias table after it has served this many proposals, -1 means
+   * the number of topics.
+   */
+  public void setAliasRebuildInterval(int aliasRebuildInterval) {
+    this.aliasRebuildInterval = aliasRebuildInterval;
+  }
+  
+  /**
+   * Number of sampling threads in each reducer, see ParallelGibbsSampler.
+   * Only the "gibbs" sampler uses more than one thread.
+   */
+  public void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+  }
+  
+  /**
+   * Where reducers keep nwz, "heap", "direct" or "hybrid", see
+   * WordTopicCounts.
+   */
+  public void setStorage(String storage) {
+    this.storage = storage;
+  }
+  
+  /**
+   * Use the split document layout: the input and output documents are
+   * TopicAssignmentWritables, and the words are read from the directory
+   * written by InitModelTool.initModel with the same setting.
+   */
+  public void setDocumentWords(Path documentWords) {
+    this.documentWords = documentWords;
+  }
+  
+  /**
+   * Number of sampling sweeps in one job. Above 1, each reducer keeps its
+   * documents and samples them that many times against its own counts,
+   * which saves jobs at the cost of staler counts of the other reducers.
+   */
+  public void setSweepsPerJob(int sweepsPerJob) {
+    this.sweepsPerJob = sweepsPerJob;
+  }
+
+  /**
+   * Where reducers keep their documents between sweeps, "memory" or "disk",
+   * see DocumentBuffer.
+   */
+  public void setSweepBuffer(String sweepBuffer) {
+    this.sweepBuffer = sweepBuffer;
+  }
+  
+  /**
+   * Telemetry of the last call to sampling, null if it could not be read.
+   */
+  public IterationMetrics getLastMetrics() {
+    return lastMetrics;
+  }
   
   public void run(String[] args) throws Exception {
     Flags flags = new Flags();
@@ -46,7 +142,41 @@ public class GibbsSamplingTool implements GenericTool {
     flags.add("beta");
     flags.add("num_topics");
     flags.add("num_words");
+    flags.addWithDefaultValue(
+        "sampler", GIBBS_SAMPLER,
+        "'gibbs', 'sparse' or 'alias'. [default 'gibbs']");
+    flags.addWithDefaultValue(
+        "mh_steps", "2", "MH steps per word of the alias sampler. [default 2]");
+    flags.addWithDefaultValue(
+        "alias_rebuild_interval", "-1",
+        "draws before an alias table is rebuilt. [default num_topics]");
+    flags.addWithDefaultValue(
+        "num_threads", "1", "sampling threads per reducer. [default 1]");
+    flags.addWithDefaultValue(
+        "nwz_storage", WordTopicCounts.HEAP_STORAGE,
+        "'heap', 'direct' (off-heap) or 'hybrid' (sparse rows) nwz. " +
+        "[default 'heap']");
+    flags.addWithDefaultValue(
+        "doc_words", "",
+        "words of the split document layout, empty if input_docs are " +
+        "complete documents. [default '']");
+    flags.addWithDefaultValue(
+        "sweeps_per_job", "1", "sampling sweeps in one job. [default 1]");
+    flags.addWithDefaultValue(
+        "sweep_buffer", DocumentBuffer.MEMORY_BUFFER,
+        "'memory' or 'disk', where reducers keep documents between sweeps. " +
+        "[default 'memory']");
     flags.parseAndCheck(args);
+    setSweepsPerJob(flags.getInt("sweeps_per_job"));
+    setSweepBuffer(flags.getString("sweep_buffer"));
+    setSampler(flags.getString("sampler"));
+    setMhSteps(flags.getInt("mh_steps"));
+    setAliasRebuildInterval(flags.getInt("alias_rebuild_interval"));
+    setNumThreads(flags.getInt("num_threads"));
+    setStorage(flags.getString("nwz_storage"));
+    if (flags.getString("doc_words").length() > 0) {
+      setDocumentWords(new Path(flags.getString("doc_words")));
+    }
   
     double likelihood = sampling(
         new Path(flags.getString("input_docs")),
@@ -98,18 +228,70 @@ public class GibbsSamplingTool implements GenericTool {
     job.set("beta", Double.toString(beta));
     job.set("num.topics", Integer.toString(numTopics));
     job.set("num.words", Integer.toString(numWords));
+    job.set("sampler", sampler);
+    job.setInt("mh.steps", mhSteps);
+    job.setInt("alias.rebuild.interval",
+        aliasRebuildInterval > 0 ? aliasRebuildInterval : numTopics);
+    job.setInt("sampler.threads", numThreads);
+    job.set("nwz.storage", storage);
+    job.setInt("sweeps.per.job", sweepsPerJob);
+    job.set("sweeps.buffer", sweepBuffer);
     job.setMapReduce(IdentityMapper.class, GibbsSamplingReducer.class);
-    job.setKeyValueClass(
-        Text.class, DocumentWritable.class,
-        Text.class, DocumentWritable.class);
+    if (documentWords != null) {
+      // Every reducer reads the words of its own partition, so the number of
+      // reducers must stay the one of the initialization.
+      Path words = documentWords.makeQualified(fs);
+      job.set("doc.words", words.toString());
+      job.setNumReduceTasks(fs.listStatus(words, new PathFilter() {
+        public boolean accept(Path p) {
+          return p.getName().startsWith("part-");
+        }
+      }).length);
+      job.setKeyValueClass(
+          Text.class, TopicAssignmentWritable.class,
+          Text.class, TopicAssignmentWritable.class);
+    } else {
+      job.setKeyValueClass(
+          Text.class, DocumentWritable.class,
+          Text.class, DocumentWritable.class);
+    }
+    long startTime = System.currentTimeMillis();
     RunningJob runningJob = JobClient.runJob(job);
     runningJob.waitForCompletion();
+    long jobMillis = System.currentTimeMillis() - startTime;
     double likelihood = 
-      runningJob.getCounters().getCounter(GibbsSamplingCounter.LIKELIHOOD) /
+      runningJob.getCounters().getCounter(GibbsSamplingCounter.LIKELIHOOD) *
       GibbsSamplingTool.RESOLUTION;
+    if (sampler.equals(ALIAS_SAMPLER)) {
+      long proposals = runningJob.getCounters().getCounter(
+          GibbsSamplingCounter.MH_PROPOSALS);
+      long accepted = runningJob.getCounters().getCounter(
+          GibbsSamplingCounter.MH_ACCEPTED);
+      LOG.info("MH acceptance rate " + 
+          (proposals > 0 ? (double) accepted / proposals : 0.0));
+    }
+    
+    lastMetrics = null;
+    try {
+      lastMetrics = IterationMetrics.fromJob(job, runningJob);
+      lastMetrics.likelihood = likelihood;
+      lastMetrics.sweeps = sweepsPerJob;
+      lastMetrics.jobMillis = jobMillis;
+      if (lastMetrics.numStragglers > 0) {
+        LOG.warning(lastMetrics.numStragglers + " reducers ran over " +
+            IterationMetrics.STRAGGLER_FACTOR + " times the median of " +
+            lastMetrics.medianReducerMillis + " milliseconds.");
+      }
+    } catch (IOException e) {
+      LOG.warning("Cannot read job telemetry: " + e);
+    }
     
+    startTime = System.currentTimeMillis();
     combineModelParam(inputNwz, tmpNwz, outputNwz);
     fs.delete(tmpNwz);
+    if (lastMetrics != null) {
+      lastMetrics.combineMillis = System.currentTimeMillis() - startTime;
+    }
     
     return likelihood;
   }
@@ -122,6 +304,7 @@ public class GibbsSamplingTool implements GenericTool {
     SequenceFileInputFormat.addInputPath(job, refNwz);
     SequenceFileOutputFormat.setOutputPath(job, outputNwz);
     job.setMapReduce(IdentityMapper.class, CombineModelParamReducer.class);
+    job.setCombinerClass(CombineModelParamCombiner.class);
     job.setKeyValueClass(
         IntWritable.class, WordInfoWritable.class,
         IntWritable.class, WordInfoWritable.class);
@@ -0,0 +1,189 @@
+package org.thunlp.learning.lda;
+
+/**
+ * Word-topic counts that keep each word either as a dense row of numTopics
+ * ints, or as a sorted list of (topic, count) pairs of its non-zero topics.
+ * After a few iterations most words are concentrated in a handful of topics,
+ * so the long tail of the vocabulary costs a few pairs instead of a full row.
+ *
+ * A sparse word is promoted to a dense row when it has more than
+ * numTopics / 3 non-zero topics, and a dense word is demoted back when it
+ * drops below numTopics / 6, so words do not flip on every update.
+ */
+public class HybridWordTopicCounts extends WordTopicCounts {
+  // Dense row, or interleaved (topic, count) pairs sorted by topic.
+  private int [][] rows;
+  private boolean [] dense;
+  private int [] nonZeros;
+  private int promoteThreshold;
+  private int demoteThreshold;
+
+  public HybridWordTopicCounts(int numWords, int numTopics) {
+    super(numWords, numTopics);
+    rows = new int[numWords][];
+    dense = new boolean[numWords];
+    nonZeros = new int[numWords];
+    promoteThreshold = Math.max(numTopics / 3, 1);
+    demoteThreshold = numTopics / 6;
+  }
+
+  public boolean isDense(int word) {
+    return dense[word];
+  }
+
+  public int getNumNonZeros(int word) {
+    return nonZeros[word];
+  }
+
+  public int get(int word, int topic) {
+    int [] row = rows[word];
+    if (dense[word]) {
+      return row[topic];
+    }
+    int position = find(row, nonZeros[word], topic);
+    return position >= 0 ? row[position * 2 + 1] : 0;
+  }
+
+  public void set(int word, int topic, int value) {
+    add(word, topic, value - get(word, topic));
+  }
+
+  public int add(int word, int topic, int delta) {
+    if (delta == 0) {
+      return get(word, topic);
+    }
+    if (dense[word]) {
+      int [] row = rows[word];
+      int old = row[topic];
+      int value = old + delta;
+      row[topic] = value;
+      if (old == 0) {
+        nonZeros[word]++;
+      } else if (value == 0) {
+        nonZeros[word]--;
+        if (nonZeros[word] < demoteThreshold) {
+          demote(word);
+        }
+      }
+      return value;
+    }
+
+    int [] row = rows[word];
+    int size = nonZeros[word];
+    int position = find(row, size, topic);
+    if (position >= 0) {
+      int value = row[position * 2 + 1] + delta;
+      if (value == 0) {
+        System.arraycopy(row, position * 2 + 2, row, position * 2,
+            (size - position - 1) * 2);
+        nonZeros[word]--;
+      } else {
+        row[position * 2 + 1] = value;
+      }
+      return value;
+    }
+
+    // Insert a new topic.
+    if (size + 1 > promoteThreshold) {
+      promote(word);
+      return add(word, topic, delta);
+    }
+    position = -position - 1;
+    if (row == null || row.length < (size + 1) * 2) {
+      int [] grown = new int[Math.min(numTopics, size * 2 + 2) * 2];
+      if (row != null) {
+        System.arraycopy(row, 0, grown, 0, size * 2);
+      }
+      row = grown;
+      rows[word] = row;
+    }
+    System.arraycopy(row, position * 2, row, position * 2 + 2,
+        (size - position) * 2);
+    row[position * 2] = topic;
+    row[position * 2 + 1] = delta;
+    nonZeros[word]++;
+    return delta;
+  }
+
+  public void getRow(int word, int [] counts) {
+    int [] row = rows[word];
+    if (dense[word]) {
+      System.arraycopy(row, 0, counts, 0, numTopics);
+      return;
+    }
+    for (int k = 0; k < numTopics; k++) {
+      counts[k] = 0;
+    }
+    for (int i = 0; i < nonZeros[word]; i++) {
+      counts[row[i * 2]] = row[i * 2 + 1];
+    }
+  }
+
+  /**
+   * Copy the non-zero topics of a word in increasing order into topics, and
+   * their counts into counts.
+   * @return Number of non-zero topics.
+   */
+  public int getNonZeros(int word, int [] topics, int [] counts) {
+    int [] row = rows[word];
+    int size = 0;
+    if (dense[word]) {
+      for (int k = 0; k < numTopics; k++) {
+        if (row[k] != 0) {
+          topics[size] = k;
+          counts[size] = row[k];
+          size++;
+        }
+      }
+      return size;
+    }
+    for (int i = 0; i < nonZeros[word]; i++) {
+      topics[i] = row[i * 2];
+      counts[i] = row[i * 2 + 1];
+    }
+    return nonZeros[word];
+  }
+
+  private void promote(int word) {
+    int [] row = new int[numTopics];
+    getRow(word, row);
+    rows[word] = row;
+    dense[word] = true;
+  }
+
+  private void demote(int word) {
+    int [] row = rows[word];
+    int [] pairs = new int[Math.max(nonZeros[word], 1) * 2];
+    int size = 0;
+    for (int k = 0; k < numTopics; k++) {
+      if (row[k] != 0) {
+        pairs[size * 2] = k;
+        pairs[size * 2 + 1] = row[k];
+        size++;
+      }
+    }
+    rows[word] = pairs;
+    dense[word] = false;
+  }
+
+  /**
+   * Binary search topic in the first size pairs of row.
+   * @return Index of the pair, or -(insertion point) - 1.
+   */
+  private static int find(int [] row, int size, int topic) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int t = row[mid * 2];
+      if (t < topic) {
+        low = mid + 1;
+      } else if (t > topic) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+}
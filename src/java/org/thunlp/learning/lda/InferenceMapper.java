@@ -0,0 +1,176 @@
+package org.thunlp.learning.lda;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Infer the topic distribution of each document with an exported LdaModel.
+ * Key in: document id, or the line offset for text input.
+ * Value in: Space-separated words of a document.
+ * Key out: document id.
+ * Value out: Top topics of the document, "topic:p topic:p ...", in decreasing
+ * order of p.
+ *
+ * The model is loaded once per JVM and shared by all tasks the JVM runs, and
+ * by all threads when the job uses MultithreadedMapRunner, so map() must stay
+ * thread-safe.
+ */
+public class InferenceMapper
+implements Mapper<Writable, Text, Text, Text> {
+  private static Logger LOG = Logger.getAnonymousLogger();
+
+  public static enum InferenceCounter {DOCS, WORDS};
+
+  private static LdaModel cachedModel = null;
+  private static String cachedModelPath = null;
+
+  private LdaModel model;
+  private boolean fast;
+  private int numBurnInIterations;
+  private int numSamplingIterations;
+  private int topK;
+  private double minProb;
+  private ThreadLocal<double []> pz = new ThreadLocal<double []>() {
+    protected double [] initialValue() {
+      return new double[model.getNumTopics()];
+    }
+  };
+  private ThreadLocal<int []> top = new ThreadLocal<int []>() {
+    protected int [] initialValue() {
+      return new int[topK];
+    }
+  };
+
+  public void configure(JobConf job) {
+    fast = job.get("inference.method", InferenceTool.GIBBS_METHOD)
+      .equals(InferenceTool.FAST_METHOD);
+    numBurnInIterations = job.getInt("inference.burn.in", 30);
+    numSamplingIterations = job.getInt("inference.sampling", 10);
+    minProb = Double.parseDouble(job.get("inference.min.prob", "0"));
+    try {
+      model = getModel(localModelPath(job));
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot load model", e);
+    }
+    if (fast && job.getBoolean("inference.logpwz.table", false)) {
+      model.buildLogPwzTable();
+    }
+    topK = Math.min(job.getInt("inference.top.k", 10), model.getNumTopics());
+    if (topK <= 0) {
+      topK = model.getNumTopics();
+    }
+  }
+
+  public void map(Writable key, Text value,
+      OutputCollector<Text, Text> output, Reporter reporter)
+  throws IOException {
+    String [] words = value.toString().split(" +");
+    double [] p = pz.get();
+    if (fast) {
+      model.inferenceFast(words, p);
+    } else {
+      model.inference(words, p, numBurnInIterations, numSamplingIterations);
+    }
+
+    int [] topics = top.get();
+    int size = selectTopTopics(p, topics);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      sb.append(topics[i]);
+      sb.append(':');
+      sb.append((float) p[topics[i]]);
+    }
+    Text outkey = new Text(key.toString());
+    Text outvalue = new Text(sb.toString());
+    synchronized (output) {
+      output.collect(outkey, outvalue);
+    }
+    reporter.incrCounter(InferenceCounter.DOCS, 1);
+    reporter.incrCounter(InferenceCounter.WORDS, words.length);
+  }
+
+  /**
+   * Partial insertion sort of the topK most probable topics with p at least
+   * minProb.
+   * @return Number of topics selected.
+   */
+  private int selectTopTopics(double [] p, int [] topics) {
+    int size = 0;
+    for (int k = 0; k < p.length; k++) {
+      if (p[k] < minProb || (size == topK && p[k] <= p[topics[size - 1]])) {
+        continue;
+      }
+      int i = size < topK ? size++ : size - 1;
+      while (i > 0 && p[topics[i - 1]] < p[k]) {
+        topics[i] = topics[i - 1];
+        i--;
+      }
+      topics[i] = k;
+    }
+    return size;
+  }
+
+  public void close() {
+  }
+
+  /**
+   * Find the local copy of the model shipped through DistributedCache. The
+   * local job runner does not populate the cache, in which case the model is
+   * copied to the local disk once.
+   */
+  static String localModelPath(JobConf job) throws IOException {
+    Path model = new Path(job.get("inference.model"));
+    Path [] cached = DistributedCache.getLocalCacheFiles(job);
+    if (cached != null) {
+      for (Path p : cached) {
+        if (p.getName().equals(model.getName())) {
+          return p.toString();
+        }
+      }
+    }
+    FileSystem fs = model.getFileSystem(job);
+    if (fs.getUri().getScheme().equals("file")) {
+      return model.toUri().getPath();
+    }
+    File local = new File(System.getProperty("java.io.tmpdir"),
+        "lda-" + Integer.toHexString(model.toString().hashCode()) + "-" +
+        model.getName());
+    if (!local.exists()) {
+      // Other JVMs on this host may copy at the same time.
+      LOG.info("Copy " + model + " to " + local);
+      File tmp = new File(local.getAbsolutePath() + "." + System.nanoTime());
+      fs.copyToLocalFile(model, new Path(tmp.getAbsolutePath()));
+      if (!tmp.renameTo(local)) {
+        tmp.delete();
+      }
+    }
+    return local.getAbsolutePath();
+  }
+
+  static synchronized LdaModel getModel(String path)
+  throws IOException {
+    if (cachedModel == null || !path.equals(cachedModelPath)) {
+      LdaModel m = new LdaModel();
+      m.loadModel(path);
+      cachedModel = m;
+      cachedModelPath = path;
+    } else {
+      LOG.info("Reuse model " + path + " loaded by a previous task.");
+    }
+    return cachedModel;
+  }
+}
@@ -0,0 +1,174 @@
+package org.thunlp.learning.lda;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.TextInputFormat;
+import org.apache.hadoop.mapred.lib.MultithreadedMapRunner;
+import org.thunlp.mapred.MapOnlyJobConf;
+import org.thunlp.misc.Flags;
+import org.thunlp.tool.GenericTool;
+
+/**
+ * Assign topics to the documents of a new corpus with an exported model, in a
+ * map-only job. The output is a SequenceFile of "doc id":"topic:p topic:p ...",
+ * see InferenceMapper.
+ *
+ * The model is shipped to the task nodes through DistributedCache, and task
+ * JVMs are reused so each JVM loads the model only once. When the binary model
+ * written by ExportModelTool exists next to the text model, it is used instead.
+ */
+public class InferenceTool implements GenericTool {
+  private static Logger LOG = Logger.getAnonymousLogger();
+
+  public static String GIBBS_METHOD = "gibbs";
+  public static String FAST_METHOD = "fast";
+
+  private String method = GIBBS_METHOD;
+  private int numThreads = 4;
+  private int topK = 10;
+  private double minProb = 0.0;
+  private int numBurnInIterations = 30;
+  private int numSamplingIterations = 10;
+  private boolean textInput = false;
+  private boolean logPwzTable = false;
+
+  /**
+   * "gibbs" samples each document as LdaModel.inference does, "fast" uses
+   * LdaModel.inferenceFast.
+   */
+  public void setMethod(String method) {
+    this.method = method;
+  }
+
+  /**
+   * Number of inference threads in each mapper.
+   */
+  public void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * Keep at most topK topics per document, 0 keeps all.
+   */
+  public void setTopK(int topK) {
+    this.topK = topK;
+  }
+
+  /**
+   * Drop topics with probability below minProb.
+   */
+  public void setMinProb(double minProb) {
+    this.minProb = minProb;
+  }
+
+  /**
+   * Let the fast method keep log p(w|z) of the whole model on the heap, see
+   * LdaModel.buildLogPwzTable.
+   */
+  public void setLogPwzTable(boolean logPwzTable) {
+    this.logPwzTable = logPwzTable;
+  }
+
+  public void setIterations(int numBurnInIterations,
+      int numSamplingIterations) {
+    this.numBurnInIterations = numBurnInIterations;
+    this.numSamplingIterations = numSamplingIterations;
+  }
+
+  /**
+   * Read text files with one document per line instead of SequenceFiles of
+   * "doc id":"space-separated words".
+   */
+  public void setTextInput(boolean textInput) {
+    this.textInput = textInput;
+  }
+
+  public void run(String[] args) throws Exception {
+    Flags flags = new Flags();
+    flags.add("input", "Documents, see input_format.");
+    flags.add("output", "Output SequenceFile of doc id:topic distribution.");
+    flags.add("model", "Model exported by ExportModelTool.");
+    flags.addWithDefaultValue(
+        "input_format", "sequence",
+        "'sequence' for SequenceFiles of doc id:words, or 'text' for one " +
+        "document per line. [default 'sequence']");
+    flags.addWithDefaultValue(
+        "method", GIBBS_METHOD,
+        "'gibbs' sampling or 'fast' naive bayes inference. [default 'gibbs']");
+    flags.addWithDefaultValue(
+        "num_threads", "4", "inference threads per mapper. [default 4]");
+    flags.addWithDefaultValue(
+        "top_k", "10", "topics to keep per document, 0 for all. [default 10]");
+    flags.addWithDefaultValue(
+        "min_prob", "0", "drop topics with lower probability. [default 0]");
+    flags.addWithDefaultValue(
+        "burn_in", "30", "burn-in iterations of gibbs method. [default 30]");
+    flags.addWithDefaultValue(
+        "sampling", "10", "sampling iterations of gibbs method. [default 10]");
+    flags.addWithDefaultValue(
+        "logpwz_table", "false",
+        "keep a table of log p(w|z) on the heap for the fast method, " +
+        "numWords * numTopics floats. [default false]");
+    flags.parseAndCheck(args);
+
+    setMethod(flags.getString("method"));
+    setNumThreads(flags.getInt("num_threads"));
+    setTopK(flags.getInt("top_k"));
+    setMinProb(flags.getDouble("min_prob"));
+    setIterations(flags.getInt("burn_in"), flags.getInt("sampling"));
+    setTextInput(flags.getString("input_format").equals("text"));
+    setLogPwzTable(flags.getBoolean("logpwz_table"));
+
+    inference(
+        new Path(flags.getString("input")),
+        new Path(flags.getString("output")),
+        new Path(flags.getString("model")));
+  }
+
+  public void inference(Path input, Path output, Path model)
+  throws IOException {
+    if (!method.equals(GIBBS_METHOD) && !method.equals(FAST_METHOD)) {
+      throw new RuntimeException("Unknown inference method " + method);
+    }
+    MapOnlyJobConf job = new MapOnlyJobConf(this.getClass());
+    FileSystem fs = model.getFileSystem(job);
+    Path binary = new Path(model.toString() +
+        ExportModelTool.BINARY_MODEL_SUFFIX);
+    if (fs.exists(binary)) {
+      model = binary;
+    }
+    model = fs.makeQualified(model);
+    LOG.info("Infer topics of " + input + " with " + model);
+
+    job.setJobName("lda-inference");
+    job.setMapperClass(InferenceMapper.class);
+    job.setKeyValueClass(Text.class, Text.class);
+    if (textInput) {
+      job.setInputFormat(TextInputFormat.class);
+    }
+    if (numThreads > 1) {
+      job.setMapRunnerClass(MultithreadedMapRunner.class);
+      job.setInt("mapred.map.multithreadedrunner.threads", numThreads);
+    }
+    job.setNumTasksToExecutePerJvm(-1);
+    DistributedCache.addCacheFile(model.toUri(), job);
+    job.set("inference.model", model.toString());
+    job.set("inference.method", method);
+    job.setInt("inference.top.k", topK);
+    job.set("inference.min.prob", Double.toString(minProb));
+    job.setInt("inference.burn.in", numBurnInIterations);
+    job.setInt("inference.sampling", numSamplingIterations);
+    job.setBoolean("inference.logpwz.table", logPwzTable);
+    FileInputFormat.addInputPath(job, input);
+    SequenceFileOutputFormat.setOutputPath(job, output);
+    JobClient.runJob(job);
+  }
+}
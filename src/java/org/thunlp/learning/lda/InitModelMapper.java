@@ -10,6 +10,7 @@ import java.util.logging.Logger;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
@@ -18,20 +19,21 @@ import org.thunlp.tool.FolderReader;
 
 /**
  * Convert space-separated words to DocumentWritable.
- * Key in&out: document id(not used).
+ * Key in&out: document id(not used), the line offset for text input.
  * Value in: Space-separated words of a document.
  * Value out: A DocumentWritable contains exactly the input document.
  * @author sixiance
  *
  */
 public class InitModelMapper 
-implements Mapper<Text, Text, Text, DocumentWritable> {
+implements Mapper<Writable, Text, Text, DocumentWritable> {
   private static Logger LOG = Logger.getAnonymousLogger();
   Map<String, Integer> wordmap = null;
   DocumentWritable doc = new DocumentWritable();
+  Text outkey = new Text();
   List<Integer> wordbuf = new ArrayList<Integer>();
   
-  public void map(Text key, Text value,
+  public void map(Writable key, Text value,
       OutputCollector<Text, DocumentWritable> output, Reporter r)
   throws IOException {
     String [] words = value.toString().split(" +");
@@ -47,7 +49,7 @@ implements Mapper<Text, Text, Text, DocumentWritable> {
     for (int i = 0; i < wordbuf.size(); i++) {
       doc.words[i] = wordbuf.get(i);
     }
-    output.collect(key, doc);
+    output.collect(WordListMapper.documentId(key, outkey), doc);
   }
 
   public void configure(JobConf conf) {
@@ -3,57 +3,74 @@ package org.thunlp.learning.lda;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Random;
-import java.util.Map.Entry;
 
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
+import org.thunlp.tool.FolderReader;
 
 /**
- * Assign random topics to each word in the document. Output the overall n(w,z)
+ * Assign random topics to each word in the document, or with "warm.start.mode"
+ * set, topics from a previous model, see WarmStart. Output the overall n(w,z)
  * to a sequence file when all keys reduced.
  * Key in&out: Document id, not used.
  * Value in: DocumentWritable.
- * Value out: DocumentWritable with all topics initialized randomly.
+ * Value out: DocumentWritable with all topics initialized, or with
+ * the split layout, a TopicAssignmentWritable. The words then go to
+ * <output.doc.words>/part-NNNNN, NNNNN being the reduce partition, in the
+ * order of the topics.
  * @author sixiance
  *
  */
 public class InitModelReducer 
-implements Reducer<Text, DocumentWritable, Text, DocumentWritable>{
+implements Reducer<Text, DocumentWritable, Text, Writable>{
   int numTopics = 0;
   int numWords = 0;
-  int [][] nwz = null;
+  WordTopicCounts nwz = null;
   String outputNwz = null;
   Random randomProvider = new Random();
+  SequenceFile.Writer wordsWriter = null;
+  TopicAssignmentWritable assignment = new TopicAssignmentWritable();
+  WarmStart warmStart = null;
 
   public void reduce(Text key, Iterator<DocumentWritable> values,
-      OutputCollector<Text, DocumentWritable> output, Reporter reporter)
+      OutputCollector<Text, Writable> output, Reporter reporter)
   throws IOException {
+    int sequence = 0;
     while (values.hasNext()) {
       DocumentWritable doc = values.next();
-      // Random initialize each word.
-      for (int i = 0; i < doc.getNumWords(); i++) {
-        int word = doc.words[i];
-        int topic = randomProvider.nextInt(numTopics);
-        doc.topics[i] = topic;
-        int [] counts = nwz[word]; 
-        if (counts == null) {
-          counts = new int[numTopics];
-          counts[topic]++;
-          nwz[word] = counts;
-        } else {
-          counts[topic]++;
+      if (wordsWriter != null) {
+        // Words are read back sorted, keep the topics in the same order.
+        Arrays.sort(doc.words, 0, doc.getNumWords());
+        Arrays.fill(doc.topics, 0, doc.getNumWords(), 0);
+        wordsWriter.append(key, doc);
+      }
+      if (warmStart != null) {
+        warmStart.assignTopics(doc);
+      } else {
+        // Random initialize each word.
+        for (int i = 0; i < doc.getNumWords(); i++) {
+          doc.topics[i] = randomProvider.nextInt(numTopics);
         }
       }
-      output.collect(key, doc);
+      for (int i = 0; i < doc.getNumWords(); i++) {
+        nwz.add(doc.words[i], doc.topics[i], 1);
+      }
+      if (wordsWriter != null) {
+        assignment.set(doc);
+        assignment.setSequence(sequence++);
+        output.collect(key, assignment);
+      } else {
+        output.collect(key, doc);
+      }
     }
   }
 
@@ -61,22 +78,60 @@ implements Reducer<Text, DocumentWritable, Text, DocumentWritable>{
     numTopics = conf.getInt("num.topics", 0);
     numWords = conf.getInt("num.words", 0);
     outputNwz = conf.get("output.nwz");
-    nwz = new int[numWords][];
+    nwz = WordTopicCounts.create(
+        conf.get("nwz.storage", WordTopicCounts.HEAP_STORAGE),
+        numWords, numTopics);
+    String outputWords = conf.get("output.doc.words");
+    if (outputWords != null) {
+      try {
+        wordsWriter = SequenceFile.createWriter(
+            FileSystem.get(conf), conf,
+            TopicAssignmentWritable.wordsPart(outputWords, conf),
+            Text.class, DocumentWritable.class);
+      } catch (IOException e) {
+        throw new RuntimeException("Cannot create words file", e);
+      }
+    }
+    String warmStartMode = conf.get("warm.start.mode");
+    if (warmStartMode != null) {
+      try {
+        LdaModel model =
+          InferenceMapper.getModel(InferenceMapper.localModelPath(conf));
+        if (model.getNumTopics() != numTopics) {
+          throw new RuntimeException("The warm start model has " +
+              model.getNumTopics() + " topics, not " + numTopics);
+        }
+        warmStart = new WarmStart(model, loadVocabulary(conf.get("wordlist")),
+            warmStartMode, conf.getInt("warm.start.sweeps", 2),
+            randomProvider);
+      } catch (IOException e) {
+        throw new RuntimeException("Cannot load warm start model", e);
+      }
+    }
   }
 
-  void saveModelParameters(int [][] nwz, SequenceFile.Writer writer)
+  private String [] loadVocabulary(String wordFile) throws IOException {
+    String [] vocabulary = new String[numWords];
+    FolderReader reader = new FolderReader(new Path(wordFile));
+    Text key = new Text();
+    IntWritable value = new IntWritable();
+    while (reader.next(key, value)) {
+      vocabulary[value.get()] = key.toString();
+    }
+    reader.close();
+    return vocabulary;
+  }
+
+  void saveModelParameters(WordTopicCounts nwz, SequenceFile.Writer writer)
   throws IOException {
     IntWritable key = new IntWritable();
     WordInfoWritable value = new WordInfoWritable(numTopics);
-    int [] zeros = new int[numTopics];
-    Arrays.fill(zeros, 0);
-    for (int i = 0; i < nwz.length; i++) {
+    int [] row = new int[numTopics];
+    for (int i = 0; i < nwz.getNumWords(); i++) {
       key.set(i);
-      int [] counts = nwz[i];
-      if (counts == null)
-        counts = zeros;
+      nwz.getRow(i, row);
       for (int j = 0; j < numTopics; j++) {
-        value.setTopicCount(j, counts[j]);
+        value.setTopicCount(j, row[j]);
       }
       value.setIsPartial(true);
       writer.append(key, value);
@@ -84,6 +139,9 @@ implements Reducer<Text, DocumentWritable, Text, DocumentWritable>{
   }
 
   public void close() throws IOException {
+    if (wordsWriter != null) {
+      wordsWriter.close();
+    }
     String partName = "part-" + Math.abs(randomProvider.nextInt());
     JobConf envConf = new JobConf();
     SequenceFile.Writer writer = SequenceFile.createWriter(
@@ -1,27 +1,28 @@
 package org.thunlp.learning.lda;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Hashtable;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
 
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.SequenceFileInputFormat;
 import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.TextInputFormat;
 import org.apache.hadoop.mapred.lib.IdentityMapper;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
 import org.thunlp.mapred.MapReduceJobConf;
-import org.thunlp.misc.AnyDoublePair;
 import org.thunlp.misc.Flags;
 import org.thunlp.tool.FolderReader;
 import org.thunlp.tool.FolderWriter;
@@ -29,6 +30,59 @@ import org.thunlp.tool.GenericTool;
 
 public class InitModelTool implements GenericTool {
   private static Logger LOG = Logger.getAnonymousLogger();
+  private String storage = WordTopicCounts.HEAP_STORAGE;
+  private Path documentWords = null;
+  private boolean textInput = false;
+  private Path inputCopy = null;
+  private Path warmStartModel = null;
+  private String warmStartMode = WarmStart.PZW_MODE;
+  private int warmStartSweeps = 2;
+  
+  /**
+   * Where reducers keep nwz, "heap", "direct" or "hybrid", see
+   * WordTopicCounts.
+   */
+  public void setStorage(String storage) {
+    this.storage = storage;
+  }
+  
+  /**
+   * Use the split document layout: write the words of the documents once to
+   * this directory, one file per reduce partition, and output only their
+   * topics, as TopicAssignmentWritables. See GibbsSamplingTool.
+   */
+  public void setDocumentWords(Path documentWords) {
+    this.documentWords = documentWords;
+  }
+  
+  /**
+   * Read text files with one document per line instead of SequenceFiles of
+   * "doc id":"space-separated words". Lines are named by their offsets.
+   */
+  public void setTextInput(boolean textInput) {
+    this.textInput = textInput;
+  }
+  
+  /**
+   * Have makeWordList also write the documents it reads to this directory, as
+   * SequenceFiles of "doc id":"words", null to skip. This converts text input
+   * without a separate pass over the corpus.
+   */
+  public void setInputCopy(Path inputCopy) {
+    this.inputCopy = inputCopy;
+  }
+  
+  /**
+   * Take the initial topics from a model exported by ExportModelTool, which
+   * must have the same number of topics, instead of random ones. mode is
+   * "pzw" or "foldin", the latter sampling each document numSweeps times,
+   * see WarmStart. null model for random topics.
+   */
+  public void setWarmStart(Path model, String mode, int numSweeps) {
+    this.warmStartModel = model;
+    this.warmStartMode = mode;
+    this.warmStartSweeps = numSweeps;
+  }
   
   public void run(String[] args) throws Exception {
     Flags flags = new Flags();
@@ -39,7 +93,17 @@ public class InitModelTool implements GenericTool {
     flags.add("wordlist");
     flags.add("max_num_words");
     flags.add("min_df");
+    flags.addWithDefaultValue(
+        "nwz_storage", WordTopicCounts.HEAP_STORAGE,
+        "'heap', 'direct' (off-heap) or 'hybrid' (sparse rows) nwz. " +
+        "[default 'heap']");
+    flags.addWithDefaultValue(
+        "input_format", "sequence",
+        "'sequence' for SequenceFiles of doc id:words, or 'text' for one " +
+        "document per line. [default 'sequence']");
     flags.parseAndCheck(args);
+    setStorage(flags.getString("nwz_storage"));
+    setTextInput(flags.getString("input_format").equals("text"));
     
     Path input = new Path(flags.getString("input"));
     Path tfdf = new Path(flags.getString("wordlist") + ".tf_df");
@@ -63,69 +127,83 @@ public class InitModelTool implements GenericTool {
 
   /**
    * Load word list, make word to id mapping.
-   * All words are first sorted by their TF*IDF value. The top maxNumWords words
-   * are used for training. TF*IDF is a widely used method for selecting
-   * informative words in Information Retrieval, see Wikipedia for a more
-   * detailed explanation. 
+   * The top maxNumWords words by their TF*IDF value are used for training,
+   * selected in a streaming pass over the word list by WordSelector, so only
+   * the selected words are held in memory. TF*IDF is a widely used method for
+   * selecting informative words in Information Retrieval, see Wikipedia for a
+   * more detailed explanation.
    * 
    * Note: words started with an underscore '_' are always kept, and they are
    * not count as number of words. This is used for special purpose.
    * 
-   * @param wordFile SequenceFile of "word":"tf df".
+   * @param wordFile SequenceFile of "word":TfDfWritable.
    * @param maxNumWords How many words to keep for training, -1 means all.
    * @return number of words used.
    * @throws IOException 
    */
   public int selectWords(Path tfdf, Path wordlist, int maxNumWords, int minDf) 
   throws IOException {
-    Map<String, WordFreq> wordCounts = loadWordFreq(tfdf);
-    List<String> specialKeys = new LinkedList<String>();
-    WordFreq total = wordCounts.get(WordListMapper.NUM_DOCS_STRING);
+    // The total can be anywhere in the file, find it first so the words can
+    // be weighted in a single streaming pass.
+    TfDfWritable total = null;
+    Text key = new Text();
+    TfDfWritable value = new TfDfWritable();
+    FolderReader reader = new FolderReader(tfdf);
+    while (reader.next(key, value)) {
+      if (key.toString().equals(WordListMapper.NUM_DOCS_STRING)) {
+        total = new TfDfWritable(value.getTf(), value.getDf());
+        break;
+      }
+    }
+    reader.close();
     if (total == null) {
       throw new RuntimeException("No number of docs key in the word list.");
     }
 
-    List<AnyDoublePair<String>> weights = 
-      new ArrayList<AnyDoublePair<String>>();
-    for (Entry<String, WordFreq> e : wordCounts.entrySet()) {
-      if (e.getKey().startsWith("_")) {
-        specialKeys.add(e.getKey());
-        continue;
-      } else if (e.getKey().equals(WordListMapper.NUM_DOCS_STRING)) {
-        continue;
-      }
-      WordFreq wf = e.getValue();
-      if (wf.df > minDf) {
-        double weight = wf.tf / total.tf * Math.log((total.df / wf.df));
-        weights.add(new AnyDoublePair<String>(e.getKey(), weight));
+    WordSelector selector = new WordSelector(
+        total.getTf(), total.getDf(), maxNumWords, minDf);
+    reader = new FolderReader(tfdf);
+    while (reader.next(key, value)) {
+      String word = key.toString();
+      if (!word.equals(WordListMapper.NUM_DOCS_STRING)) {
+        selector.add(word, value.getTf(), value.getDf());
       }
     }
-    Collections.sort(weights, new Comparator<AnyDoublePair<String>> () {
-      public int compare(AnyDoublePair<String> o1, AnyDoublePair<String> o2) {
-        return Double.compare(o2.second, o1.second);
-      }
-    });
+    reader.close();
+    List<String> selected = selector.getSelected();
+
     FolderWriter writer = 
       new FolderWriter(wordlist, Text.class, IntWritable.class);
-    Text key = new Text();
-    IntWritable value = new IntWritable();
-    if (maxNumWords == -1)
-      maxNumWords = Integer.MAX_VALUE;
-    int numWords = Math.min(maxNumWords, weights.size());
-    for (int i = 0; i < numWords; i++) {
-      key.set(weights.get(i).first);
-      value.set(i);
-      writer.append(key, value);
-    }
-    for (String specialKey : specialKeys) {
-      key.set(specialKey);
-      value.set(numWords);
-      writer.append(key, value);
-      numWords++;
+    IntWritable id = new IntWritable();
+    for (int i = 0; i < selected.size(); i++) {
+      key.set(selected.get(i));
+      id.set(i);
+      writer.append(key, id);
     }
     writer.close();
-    LOG.info("Load " + wordCounts.size() + " words, keep " + numWords);
-    return numWords;
+    LOG.info("Load " + (selector.getNumWords() + 1) + " words, keep " +
+        selected.size());
+    return selected.size();
+  }
+  
+  /**
+   * Select words as selectWords above, from word frequencies in memory.
+   * @return The selected words, the index of a word is its id.
+   */
+  public static List<String> selectWords(
+      Map<String, WordFreq> wordCounts, int maxNumWords, int minDf) {
+    WordFreq total = wordCounts.get(WordListMapper.NUM_DOCS_STRING);
+    if (total == null) {
+      throw new RuntimeException("No number of docs key in the word list.");
+    }
+    WordSelector selector =
+      new WordSelector(total.tf, total.df, maxNumWords, minDf);
+    for (Entry<String, WordFreq> e : wordCounts.entrySet()) {
+      if (!e.getKey().equals(WordListMapper.NUM_DOCS_STRING)) {
+        selector.add(e.getKey(), e.getValue().tf, e.getValue().df);
+      }
+    }
+    return selector.getSelected();
   }
   
   public Map<String, WordFreq> loadWordFreq(Path sqfile)
@@ -133,13 +211,11 @@ public class InitModelTool implements GenericTool {
     Hashtable<String, WordFreq> keymap = new Hashtable<String, WordFreq>();
     FolderReader reader = new FolderReader(sqfile);
     Text key = new Text();
-    Text value = new Text();
+    TfDfWritable value = new TfDfWritable();
     while (reader.next(key, value)) {
       WordFreq wf = new WordFreq();
-      String str = value.toString();
-      int split = str.indexOf(' ');
-      wf.tf = (double) Long.parseLong(str.substring(0, split));
-      wf.df = (double) Long.parseLong(str.substring(split + 1));
+      wf.tf = (double) value.getTf();
+      wf.df = (double) value.getDf();
       keymap.put(key.toString(), wf);
     }
     reader.close();
@@ -150,11 +226,37 @@ public class InitModelTool implements GenericTool {
     MapReduceJobConf job = new MapReduceJobConf(this.getClass());
     job.setJobName("EstimateWordFreqForLDA");
     job.setMapReduce(WordListMapper.class, WordListReducer.class);
-    job.setCombinerClass(WordListCombiner.class);
-    job.setKeyValueClass(Text.class, Text.class, Text.class, Text.class);
-    SequenceFileInputFormat.addInputPath(job, input);
+    job.setCombinerClass(WordListReducer.class);
+    job.setKeyValueClass(
+        Text.class, TfDfWritable.class, Text.class, TfDfWritable.class);
+    if (textInput) {
+      job.setInputFormat(TextInputFormat.class);
+    }
+    if (inputCopy != null) {
+      job.setBoolean("wordlist.copy.docs", true);
+      MultipleOutputs.addNamedOutput(job, WordListMapper.DOCS_OUTPUT,
+          SequenceFileOutputFormat.class, Text.class, Text.class);
+    }
+    FileInputFormat.addInputPath(job, input);
     SequenceFileOutputFormat.setOutputPath(job, output);
     JobClient.runJob(job);
+    
+    if (inputCopy != null) {
+      // The named output is written next to the word counts, move it out.
+      FileSystem fs = output.getFileSystem(job);
+      if (fs.exists(inputCopy)) {
+        fs.delete(inputCopy, true);
+      }
+      fs.mkdirs(inputCopy);
+      FileStatus [] files = fs.listStatus(output, new PathFilter() {
+        public boolean accept(Path p) {
+          return p.getName().startsWith(WordListMapper.DOCS_OUTPUT + "-");
+        }
+      });
+      for (FileStatus f : files) {
+        fs.rename(f.getPath(), new Path(inputCopy, f.getPath().getName()));
+      }
+    }
   }
   
   public void initModel(
@@ -174,15 +276,35 @@ public class InitModelTool implements GenericTool {
     FileSystem.get(job).mkdirs(tmpNwz);
     job.setJobName("InitializeModelForLDA");
     job.setMapReduce(InitModelMapper.class, InitModelReducer.class);
-    job.setKeyValueClass(
-        Text.class, DocumentWritable.class,
-        Text.class, DocumentWritable.class);
-    SequenceFileInputFormat.addInputPath(job, input);
+    if (documentWords != null) {
+      Path words = documentWords.makeQualified(fs);
+      if (fs.exists(words)) {
+        fs.delete(words);
+      }
+      fs.mkdirs(words);
+      job.set("output.doc.words", words.toString());
+      job.setReduceSpeculativeExecution(false);
+      job.setKeyValueClass(
+          Text.class, DocumentWritable.class,
+          Text.class, TopicAssignmentWritable.class);
+    } else {
+      job.setKeyValueClass(
+          Text.class, DocumentWritable.class,
+          Text.class, DocumentWritable.class);
+    }
+    if (textInput) {
+      job.setInputFormat(TextInputFormat.class);
+    }
+    FileInputFormat.addInputPath(job, input);
     SequenceFileOutputFormat.setOutputPath(job, outputDocs);
     job.set("wordlist", wordlist.toString());
     job.set("output.nwz", tmpNwz.toString());
     job.setInt("num.topics", numTopics);
     job.setInt("num.words", numWords);
+    job.set("nwz.storage", storage);
+    if (warmStartModel != null) {
+      setUpWarmStart(job, fs, numTopics);
+    }
     JobClient.runJob(job);
     
     combineModelParam(tmpNwz, outputNwz);
@@ -190,6 +312,28 @@ public class InitModelTool implements GenericTool {
     System.out.println("Done");
   }
   
+  private void setUpWarmStart(JobConf job, FileSystem fs, int numTopics)
+  throws IOException {
+    Path model = warmStartModel;
+    Path binary = new Path(model.toString() +
+        ExportModelTool.BINARY_MODEL_SUFFIX);
+    if (fs.exists(binary)) {
+      model = binary;
+    }
+    model = fs.makeQualified(model);
+    int modelTopics = WarmStart.readNumTopics(fs, model);
+    if (modelTopics != numTopics) {
+      throw new IllegalArgumentException("The warm start model " + model +
+          " has " + modelTopics + " topics, not " + numTopics);
+    }
+    LOG.info("Warm start from " + model + " with " + warmStartMode);
+    DistributedCache.addCacheFile(model.toUri(), job);
+    // Loaded as InferenceMapper loads its model.
+    job.set("inference.model", model.toString());
+    job.set("warm.start.mode", warmStartMode);
+    job.setInt("warm.start.sweeps", warmStartSweeps);
+  }
+  
   private void combineModelParam(Path inputNwz, Path outputNwz) 
   throws IOException {
     MapReduceJobConf job = new MapReduceJobConf(this.getClass());
@@ -197,14 +341,14 @@ public class InitModelTool implements GenericTool {
     SequenceFileInputFormat.addInputPath(job, inputNwz);
     SequenceFileOutputFormat.setOutputPath(job, outputNwz);
     job.setMapReduce(IdentityMapper.class, CombineModelParamReducer.class);
+    job.setCombinerClass(CombineModelParamCombiner.class);
     job.setKeyValueClass(
         IntWritable.class, WordInfoWritable.class,
         IntWritable.class, WordInfoWritable.class);
-    job.setBoolean("take.mean", false);
     JobClient.runJob(job);
   }
   
-  private static class WordFreq {
+  static class WordFreq {
     public double tf;
     public double df;
   }
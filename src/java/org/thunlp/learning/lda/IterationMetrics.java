@@ -0,0 +1,130 @@
+package org.thunlp.learning.lda;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.TaskReport;
+
+import com.google.gson.Gson;
+
+/**
+ * Telemetry of one sampling job, from the counters of GibbsSamplingReducer.
+ * LdaTrainer writes one per line, as JSON, to the "metrics" file of the
+ * working directory.
+ *
+ * Totals are summed over reducers. Per-reducer values and the maximums come
+ * from the task reports; the local job runner does not provide them, and
+ * the maximums are then the sums over its single reducer.
+ */
+public class IterationMetrics {
+  // A reducer running this many times longer than the median is a straggler.
+  public static double STRAGGLER_FACTOR = 1.5;
+
+  public int iteration;
+  public int sweeps;
+  public double likelihood;
+  public long jobMillis;
+  public long combineMillis;
+  // Documents and tokens sampled, and topics changed, over all sweeps of
+  // the job; docs / sweeps is the size of the corpus.
+  public long docs;
+  public long tokens;
+  public long topicChanges;
+  public double topicChangeRate;
+  // Tokens per second of sampling time, summed over reducers.
+  public double tokensPerSecond;
+  public long maxLoadMillis;
+  public long maxSaveMillis;
+  public long maxHeapMb;
+  public long medianReducerMillis;
+  public int numStragglers;
+  public ReducerMetrics [] reducers = new ReducerMetrics[0];
+
+  public static class ReducerMetrics {
+    public String task;
+    public long runMillis;
+    public long tokens;
+    public long samplingMillis;
+    public double tokensPerSecond;
+    public long loadMillis;
+    public long saveMillis;
+    public long heapMb;
+    public boolean straggler;
+  }
+
+  public static IterationMetrics fromJob(JobConf conf, RunningJob job)
+  throws IOException {
+    IterationMetrics m = new IterationMetrics();
+    Counters counters = job.getCounters();
+    m.docs = get(counters, GibbsSamplingTool.GibbsSamplingCounter.DOCS);
+    m.tokens = get(counters, GibbsSamplingTool.GibbsSamplingCounter.TOKENS);
+    m.topicChanges =
+      get(counters, GibbsSamplingTool.GibbsSamplingCounter.TOPIC_CHANGES);
+    m.topicChangeRate =
+      m.tokens > 0 ? (double) m.topicChanges / m.tokens : 0.0;
+    m.maxLoadMillis =
+      get(counters, GibbsSamplingTool.GibbsSamplingCounter.LOAD_MILLIS);
+    m.maxSaveMillis =
+      get(counters, GibbsSamplingTool.GibbsSamplingCounter.SAVE_MILLIS);
+    m.maxHeapMb = get(counters, GibbsSamplingTool.GibbsSamplingCounter.HEAP_MB);
+    long samplingMillis =
+      get(counters, GibbsSamplingTool.GibbsSamplingCounter.SAMPLING_MILLIS);
+    m.tokensPerSecond = rate(m.tokens, samplingMillis);
+
+    TaskReport [] reports =
+      new JobClient(conf).getReduceTaskReports(job.getID());
+    if (reports == null || reports.length == 0) {
+      return m;
+    }
+    m.reducers = new ReducerMetrics[reports.length];
+    long [] runMillis = new long[reports.length];
+    m.tokensPerSecond = 0.0;
+    m.maxLoadMillis = 0;
+    m.maxSaveMillis = 0;
+    m.maxHeapMb = 0;
+    for (int i = 0; i < reports.length; i++) {
+      Counters c = reports[i].getCounters();
+      ReducerMetrics r = new ReducerMetrics();
+      r.task = reports[i].getTaskID().toString();
+      r.runMillis = reports[i].getFinishTime() - reports[i].getStartTime();
+      r.tokens = get(c, GibbsSamplingTool.GibbsSamplingCounter.TOKENS);
+      r.samplingMillis =
+        get(c, GibbsSamplingTool.GibbsSamplingCounter.SAMPLING_MILLIS);
+      r.tokensPerSecond = rate(r.tokens, r.samplingMillis);
+      r.loadMillis = get(c, GibbsSamplingTool.GibbsSamplingCounter.LOAD_MILLIS);
+      r.saveMillis = get(c, GibbsSamplingTool.GibbsSamplingCounter.SAVE_MILLIS);
+      r.heapMb = get(c, GibbsSamplingTool.GibbsSamplingCounter.HEAP_MB);
+      m.reducers[i] = r;
+      runMillis[i] = r.runMillis;
+      m.tokensPerSecond += r.tokensPerSecond;
+      m.maxLoadMillis = Math.max(m.maxLoadMillis, r.loadMillis);
+      m.maxSaveMillis = Math.max(m.maxSaveMillis, r.saveMillis);
+      m.maxHeapMb = Math.max(m.maxHeapMb, r.heapMb);
+    }
+    Arrays.sort(runMillis);
+    m.medianReducerMillis = runMillis[runMillis.length / 2];
+    for (ReducerMetrics r : m.reducers) {
+      r.straggler = r.runMillis > STRAGGLER_FACTOR * m.medianReducerMillis;
+      if (r.straggler) {
+        m.numStragglers++;
+      }
+    }
+    return m;
+  }
+
+  private static long get(Counters counters, Enum<?> key) {
+    return counters == null ? 0 : counters.getCounter(key);
+  }
+
+  private static double rate(long tokens, long millis) {
+    return millis > 0 ? tokens * 1000.0 / millis : 0.0;
+  }
+
+  public String toJson() {
+    return new Gson().toJson(this);
+  }
+}
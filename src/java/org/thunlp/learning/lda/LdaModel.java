@@ -1,10 +1,21 @@
 package org.thunlp.learning.lda;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Random;
-import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Logger;
 
 import org.thunlp.io.GzipTextFileReader;
@@ -13,25 +24,68 @@ import org.thunlp.tool.StringUtil;
 
 /**
  * Load a trained LDA model, do various inferences about it.
+ *
+ * The model is either the plain text file written by ExportModelTool, which
+ * is parsed into memory, or the binary file written next to it, which is
+ * memory-mapped read-only, see BINARY_MODEL_MAGIC for its layout. Loading a
+ * binary model takes constant time, and processes on the same machine share
+ * one copy of it in the page cache.
+ *
+ * Once loaded, a model is read-only and all inference methods are
+ * thread-safe: their working state lives in per-call buffers and each thread
+ * draws from its own random number generator. One model can therefore serve
+ * concurrent requests, see also inferenceBatch.
  * @author sixiance
  *
  */
 public class LdaModel {
   protected static Logger LOG = Logger.getLogger(LdaModel.class.getName());
-  protected Hashtable<String, int []> nwz = new Hashtable<String, int []>();
   protected int [] topicSum;
-  protected int totalSum;
+  protected long totalSum;
   protected int numTopics;
+  protected int numWords;
   protected double alpha;
   protected double beta;
   protected int n;  // Number of iterations.
-  protected String [] explanations;
-  protected ArrayList<String> words = new ArrayList<String>();
+  // Top words of each topic, loaded from the ".topics" file next to the model
+  // or built on the first explain.
+  protected volatile TopicWordsIndex topicWords;
   
-  protected int [] ndz;
-  protected Random random = new Random();
+  // Text model: word to id mapping, and one row of counts per word. The last
+  // column of each row is the sum of the row.
+  protected Hashtable<String, Integer> wordIndex = null;
+  protected ArrayList<String> words = null;
+  protected int [][] rows = null;
+
+  // Binary model: sorted vocabulary and count rows in mapped buffers.
+  protected ByteBuffer vocabulary = null;
+  protected IntBuffer vocabularyOffsets = null;
+  protected IntBuffer [] countChunks = null;
+  protected int rowsPerChunk = 0;
   
   public static double LOG_MIN_PROB = -7;
+  // Number of words returned by explain(int).
+  public static int EXPLAIN_WORDS = 5;
+  // Documents per task of inferenceBatch.
+  private static int BATCH_GRAIN = 16;
+
+  // log p(w|z) of every word, row-major, only built by buildLogPwzTable.
+  protected volatile float [] logPwz = null;
+
+  /**
+   * The binary model starts with this int, followed by
+   *   double alpha, double beta, int numTopics, int n, int numWords,
+   *   int [numWords + 1] offsets of each word in the vocabulary pool,
+   *   the vocabulary pool, UTF-8 words sorted by their bytes,
+   *   padding to a multiple of 4 bytes,
+   *   int [numTopics] sum of counts of each topic,
+   *   int [numWords][numTopics + 1] counts of each word in vocabulary order,
+   *   the last column being the sum of the row.
+   * All numbers are big-endian.
+   */
+  public static int BINARY_MODEL_MAGIC = 0x4C444142;  // "LDAB"
+  public static int BINARY_HEADER_SIZE = 32;
+  private static int MAX_CHUNK_BYTES = 1 << 30;
 
   public double [] inference(String [] words) {
     double [] dist = new double[numTopics];
@@ -42,34 +96,54 @@ public class LdaModel {
   public String [] removeUnknownWords(String [] words) {
     ArrayList<String> features = new ArrayList<String>();
     for (String word : words) {
-      if (nwz.containsKey(word)) {
+      if (getWordId(word) >= 0) {
         features.add(word);
       }
     }
     return features.toArray(new String[0]);
   }
   
+  /**
+   * Map words to their ids, unknown words are dropped.
+   */
+  public int [] getWordIds(String [] words) {
+    int [] ids = new int[words.length];
+    int size = 0;
+    for (String word : words) {
+      int id = getWordId(word);
+      if (id >= 0) {
+        ids[size++] = id;
+      }
+    }
+    int [] known = new int[size];
+    System.arraycopy(ids, 0, known, 0, size);
+    return known;
+  }
 
   public void inference(String [] words, double [] pz,
       int numBurnInIterations, int numSamplingIterations) {
-    words = removeUnknownWords(words);
-    int [] z = new int[words.length];
+    inference(words, pz, numBurnInIterations, numSamplingIterations,
+        ThreadLocalRandom.current());
+  }
     
-    for (int i = 0; i < numTopics; i++) {
-      ndz[i] = 0;
-    }
-    for (int i = 0; i < words.length; i++) {
+  public void inference(String [] words, double [] pz,
+      int numBurnInIterations, int numSamplingIterations, Random random) {
+    int [] ids = getWordIds(words);
+    int [] z = new int[ids.length];
+    int [] ndz = new int[numTopics];
+
+    for (int i = 0; i < ids.length; i++) {
       z[i] = random.nextInt(numTopics);
       ndz[z[i]]++;
     }
     
     // Burn-in.
     for (int i = 0; i < numBurnInIterations; i++) {
-      for (int j = 0; j < words.length; j++) {
+      for (int j = 0; j < ids.length; j++) {
         int oldTopic = z[j];
         --ndz[oldTopic];
-        calculateConditionalProbability(words[j], ndz, pz, words.length);
-        int newTopic = sampleInDistribution(pz);
+        calculateConditionalProbability(ids[j], ndz, pz, ids.length);
+        int newTopic = sampleInDistribution(pz, random);
         z[j] = newTopic;
         ++ndz[newTopic];   
       }
@@ -77,9 +151,9 @@ public class LdaModel {
     
     // Inference. 
     for (int i = 0; i < numSamplingIterations; i++) {
-      for (int j = 0; j < words.length; j++) {
-        calculateConditionalProbability(words[j], ndz, pz, words.length);
-        int newTopic = sampleInDistribution(pz);
+      for (int j = 0; j < ids.length; j++) {
+        calculateConditionalProbability(ids[j], ndz, pz, ids.length);
+        int newTopic = sampleInDistribution(pz, random);
         z[j] = newTopic;
         ++ndz[newTopic];   
       }
@@ -96,47 +170,139 @@ public class LdaModel {
   }
   
 
+  /**
+   * Infer the topic distributions of many documents with inference(String []),
+   * spreading them over the common ForkJoinPool.
+   */
+  public double [][] inferenceBatch(String [][] docs) {
+    return inferenceBatch(docs, ForkJoinPool.commonPool());
+  }
+
+  public double [][] inferenceBatch(String [][] docs, ForkJoinPool pool) {
+    double [][] results = new double[docs.length][];
+    pool.invoke(new InferenceTask(docs, results, 0, docs.length));
+    return results;
+  }
+
+  private class InferenceTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private String [][] docs;
+    private double [][] results;
+    private int begin;
+    private int end;
+
+    InferenceTask(String [][] docs, double [][] results, int begin, int end) {
+      this.docs = docs;
+      this.results = results;
+      this.begin = begin;
+      this.end = end;
+    }
+
+    protected void compute() {
+      if (end - begin <= BATCH_GRAIN) {
+        for (int i = begin; i < end; i++) {
+          results[i] = inference(docs[i]);
+        }
+        return;
+      }
+      int middle = (begin + end) >>> 1;
+      invokeAll(new InferenceTask(docs, results, begin, middle),
+          new InferenceTask(docs, results, middle, end));
+    }
+  }
+
   public double [] inferenceFast(String [] doc) {
     double [] p = new double[numTopics];
     inferenceFast(doc, p);
     return p;
   }
   
+  /**
+   * Naive Bayes style inference, p(z|d) ~ prod_w p(w|z). Uses the table of
+   * log p(w|z) if buildLogPwzTable was called, so each word costs numTopics
+   * additions instead of numTopics logarithms.
+   */
   public void inferenceFast(String [] doc, double [] p) {
+    float [] table = logPwz;
     for (int i = 0; i < numTopics; i++) {
       p[i] = 0.0;
     }
     for (int i = 0; i < doc.length; i++) {
-      int [] counts = nwz.get(doc[i]);
-      for (int k = 0; k < numTopics; k++) {
-        if (counts == null) {
+      int word = getWordId(doc[i]);
+      if (word < 0) {
+        for (int k = 0; k < numTopics; k++) {
           p[k] += LdaModel.LOG_MIN_PROB;
-        } else {
-          p[k] += 
-            Math.log((counts[k] + n * beta) /
-                (topicSum[k] + n * beta * nwz.size()));
+        }
+      } else if (table != null) {
+        int offset = word * numTopics;
+        for (int k = 0; k < numTopics; k++) {
+          p[k] += table[offset + k];
+        }
+      } else {
+        for (int k = 0; k < numTopics; k++) {
+          p[k] += computeLogPwz(word, k);
         }
       }
     }
+    // Normalize with log-sum-exp, so long documents do not underflow.
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < numTopics; i++) {
+      max = Math.max(max, p[i]);
+    }
     double norm = 0.0;
     for (int i = 0; i < numTopics; i++) {
-      norm += Math.exp(p[i]);
+      p[i] = Math.exp(p[i] - max);
+      norm += p[i];
     }
     for (int i = 0; i < numTopics; i++) {
-      p[i] = Math.exp(p[i]) / norm;
+      p[i] /= norm;
     }
   }
   
+  protected double computeLogPwz(int word, int topic) {
+    return Math.log((count(word, topic) + n * beta) /
+        (topicSum[topic] + n * beta * numWords));
+  }
+
+  /**
+   * Build the table of log p(w|z) used by inferenceFast. The table takes
+   * numWords * numTopics floats of heap, so it is not built unless asked for,
+   * and a memory-mapped binary model stays off the heap by default. Models
+   * with more than 2G word-topic pairs do not get a table.
+   */
+  public synchronized void buildLogPwzTable() {
+    if (logPwz != null) {
+      return;
+    }
+    long size = (long) numWords * numTopics;
+    if (size > Integer.MAX_VALUE - 8) {
+      LOG.warning("Model too large for a log p(w|z) table.");
+      return;
+    }
+    float [] table = new float[(int) size];
+    double [] logDenominator = new double[numTopics];
+    for (int k = 0; k < numTopics; k++) {
+      logDenominator[k] = Math.log(topicSum[k] + n * beta * numWords);
+    }
+    for (int w = 0; w < numWords; w++) {
+      int offset = w * numTopics;
+      for (int k = 0; k < numTopics; k++) {
+        table[offset + k] =
+          (float) (Math.log(count(w, k) + n * beta) - logDenominator[k]);
+      }
+    }
+    logPwz = table;
+  }
+
   protected void calculateConditionalProbability(
-      String word,
+      int word,
       int [] ndz,
       double [] pz,
       double doclength) {
-    int [] counts = nwz.get(word);
     double sum = 0.0;
     double normalizer = (doclength + numTopics * alpha - 1);
     for (int i = 0; i < numTopics; i++) {
-      pz[i] = (counts[i] + beta) / (ndz[i] + nwz.size() * beta  - 1)
+      pz[i] = (count(word, i) + beta) / (ndz[i] + numWords * beta  - 1)
       * (ndz[i] + alpha) / normalizer;
       sum += pz[i];
     }
@@ -145,7 +311,7 @@ public class LdaModel {
     }
   }
 
-  protected int sampleInDistribution(double [] dist) {
+  protected int sampleInDistribution(double [] dist, Random random) {
     double p = random.nextDouble();
     double sum = 0;
     for (int i = 0; i < dist.length; i++) {
@@ -156,10 +322,64 @@ public class LdaModel {
     return dist.length - 1;
   }
   
+  /**
+   * Load a model written by ExportModelTool. Binary models are recognized by
+   * their first four bytes and memory-mapped, otherwise the file is parsed as
+   * a (possibly gzipped) text model.
+   */
+  public void loadModel(String modelFile) throws IOException {
+    if (isBinaryModel(modelFile)) {
+      loadBinaryModel(modelFile);
+    } else {
+      loadTextModel(modelFile);
+    }
+    LOG.info("Load model parameters, alpha:" + alpha + " beta:" + beta +
+        " num_topics:" + numTopics + " num_words:" + numWords +
+        " iterations:" + n);
   
+    logPwz = null;
+    topicWords = null;
+    loadTopicWords(modelFile);
+  }
   
-  public void loadModel(String modelFile) throws IOException {
-    nwz.clear();
+  private void loadTopicWords(String modelFile) throws IOException {
+    String base = modelFile;
+    if (base.endsWith(ExportModelTool.BINARY_MODEL_SUFFIX)) {
+      base = base.substring(
+          0, base.length() - ExportModelTool.BINARY_MODEL_SUFFIX.length());
+    }
+    File file = new File(base + TopicWordsIndex.TOPICS_SUFFIX);
+    if (!file.exists()) {
+      return;
+    }
+    InputStream in = new FileInputStream(file);
+    try {
+      TopicWordsIndex index = TopicWordsIndex.read(in);
+      if (index.getNumTopics() == numTopics) {
+        topicWords = index;
+      } else {
+        LOG.warning("Ignore " + file + ", it does not match the model.");
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  public static boolean isBinaryModel(String modelFile) throws IOException {
+    if (modelFile.endsWith(".gz")) {
+      return false;
+    }
+    DataInputStream in = new DataInputStream(new FileInputStream(modelFile));
+    try {
+      return in.readInt() == BINARY_MODEL_MAGIC;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  protected void loadTextModel(String modelFile) throws IOException {
     TextFileReader reader = null;
     if (modelFile.endsWith(".gz")) {
       reader = new GzipTextFileReader(modelFile, "UTF-8");
@@ -173,6 +393,9 @@ public class LdaModel {
     n = Integer.parseInt(reader.readLine());
     topicSum = new int[numTopics];
     totalSum = 0;
+    wordIndex = new Hashtable<String, Integer>();
+    words = new ArrayList<String>();
+    ArrayList<int []> rowList = new ArrayList<int []>();
     
     String line;
     while ((line = reader.readLine()) != null) {
@@ -187,24 +410,135 @@ public class LdaModel {
       }
       counts[numTopics] = sum;
       totalSum += sum;
-      nwz.put(cols[0], counts);
+      wordIndex.put(cols[0], words.size());
       words.add(cols[0]);
+      rowList.add(counts);
     }
     reader.close();
-    LOG.info("Load model parameters, alpha:" + alpha + " beta:" + beta + 
-        " num_topics:" + numTopics + " num_words:" + nwz.size() + 
-        " iterations:" + n);
+    numWords = words.size();
+    rows = rowList.toArray(new int[numWords][]);
+    vocabulary = null;
+    countChunks = null;
+  }
+
+  protected void loadBinaryModel(String modelFile) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(modelFile, "r");
+    FileChannel channel = file.getChannel();
+    try {
+      ByteBuffer header = channel.map(
+          FileChannel.MapMode.READ_ONLY, 0, BINARY_HEADER_SIZE);
+      header.getInt();
+      alpha = header.getDouble();
+      beta = header.getDouble();
+      numTopics = header.getInt();
+      n = header.getInt();
+      numWords = header.getInt();
+
+      long position = BINARY_HEADER_SIZE;
+      long offsetsSize = (long) (numWords + 1) * 4;
+      vocabularyOffsets = channel.map(
+          FileChannel.MapMode.READ_ONLY, position, offsetsSize).asIntBuffer();
+      position += offsetsSize;
+      int poolSize = vocabularyOffsets.get(numWords);
+      vocabulary = channel.map(
+          FileChannel.MapMode.READ_ONLY, position, poolSize);
+      position += (poolSize + 3) / 4 * 4;
 
-    explanations = new String[numTopics];
-    ndz = new int[numTopics];
+      IntBuffer sums = channel.map(FileChannel.MapMode.READ_ONLY,
+          position, numTopics * 4).asIntBuffer();
+      topicSum = new int[numTopics];
+      totalSum = 0;
+      for (int k = 0; k < numTopics; k++) {
+        topicSum[k] = sums.get(k);
+        totalSum += topicSum[k];
+      }
+      position += numTopics * 4;
+
+      int rowSize = numTopics + 1;
+      rowsPerChunk = Math.max(1, MAX_CHUNK_BYTES / 4 / rowSize);
+      int numChunks = (numWords + rowsPerChunk - 1) / rowsPerChunk;
+      countChunks = new IntBuffer[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+        int chunkRows = Math.min(rowsPerChunk, numWords - i * rowsPerChunk);
+        long chunkSize = (long) chunkRows * rowSize * 4;
+        countChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+            position, chunkSize).asIntBuffer();
+        position += chunkSize;
+      }
+    } finally {
+      // The mappings stay valid after the channel is closed.
+      file.close();
+    }
+    wordIndex = null;
+    words = null;
+    rows = null;
+  }
+
+  /**
+   * @return Id of the word, or -1 for unknown words.
+   */
+  public int getWordId(String word) {
+    if (wordIndex != null) {
+      Integer id = wordIndex.get(word);
+      return id == null ? -1 : id;
+    }
+    byte [] key = StringUtil.toUtf8(word);
+    int low = 0;
+    int high = numWords - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int c = compareVocabulary(mid, key);
+      if (c < 0) {
+        low = mid + 1;
+      } else if (c > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private int compareVocabulary(int id, byte [] key) {
+    int start = vocabularyOffsets.get(id);
+    int length = vocabularyOffsets.get(id + 1) - start;
+    int common = Math.min(length, key.length);
+    for (int i = 0; i < common; i++) {
+      int a = vocabulary.get(start + i) & 0xFF;
+      int b = key[i] & 0xFF;
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return length - key.length;
+  }
+
+  /**
+   * Count of a word in a topic, topic numTopics gives the total count of the
+   * word.
+   */
+  protected int count(int word, int topic) {
+    if (rows != null) {
+      return rows[word][topic];
+    }
+    return countChunks[word / rowsPerChunk].get(
+        (word % rowsPerChunk) * (numTopics + 1) + topic);
   }
 
   public int getNumWords() {
-    return words.size();
+    return numWords;
   }
 
   public String getWord(int i) {
-    return words.get(i);
+    if (words != null) {
+      return words.get(i);
+    }
+    int start = vocabularyOffsets.get(i);
+    byte [] bytes = new byte[vocabularyOffsets.get(i + 1) - start];
+    for (int j = 0; j < bytes.length; j++) {
+      bytes[j] = vocabulary.get(start + j);
+    }
+    return StringUtil.fromUtf8(bytes);
   }
 
   public int getNumTrainingIterations() {
@@ -220,21 +554,21 @@ public class LdaModel {
   }
 
   public double pwz(String word, int topic) {
-    int [] counts = nwz.get(word);
-    if (counts == null) {
+    int w = getWordId(word);
+    if (w < 0) {
       return 0.0;
     }
-    return (counts[topic] + n * beta) / 
-      (topicSum[topic] + n * beta * nwz.size()); 
+    return (count(w, topic) + n * beta) /
+      (topicSum[topic] + n * beta * numWords);
   }
 
   public double pzw(int topic, String word) {
-    int [] counts = nwz.get(word);
-    if (counts == null) {
+    int w = getWordId(word);
+    if (w < 0) {
       return 0.0;
     }
-    return (counts[topic] + n * beta) /
-      (counts[numTopics] + n * beta * numTopics);     
+    return (count(w, topic) + n * beta) /
+      (count(w, numTopics) + n * beta * numTopics);
   }
 
   public int getNumTopics() {
@@ -242,29 +576,54 @@ public class LdaModel {
   }
 
   public String explain(int topic) {
-    if (explanations[topic] == null) {
-      String [] words = new String[5];
-      double [] values = new double[5];
-      int [] counts;
-      for (Entry<String, int []> entry : nwz.entrySet()) {
-        counts = entry.getValue();
-        double pwz = (counts[topic] + n * beta) /
-        (topicSum[topic] + n * beta * nwz.size());
-        double pzw = (counts[topic] + n * beta) /
-        (counts[numTopics] + n * beta * numTopics);
-        double characteristic = Math.log(pwz + 1.0) * pzw; 
+    return explain(topic, EXPLAIN_WORDS);
+  }
         
-        for (int i = 0; i < 5; i++) {
-          if (characteristic > values[i]) {
-            words[i] = entry.getKey();
-            values[i] = characteristic;
-            break;
-          }
+  /**
+   * The top numWords words of a topic, joined by '-'.
+   */
+  public String explain(int topic, int numWords) {
+    String [] top = getTopicWords(numWords).getWords(topic);
+    return StringUtil.join(
+        Arrays.copyOf(top, Math.min(numWords, top.length)), "-");
+  }
+
+  /**
+   * The index of top words of all topics, with at least size words per
+   * topic. Built in one pass over the vocabulary if the model was loaded
+   * without a large enough ".topics" file.
+   */
+  public TopicWordsIndex getTopicWords(int size) {
+    TopicWordsIndex index = topicWords;
+    if (index != null && index.getSize() >= size) {
+      return index;
+    }
+    synchronized (this) {
+      if (topicWords == null || topicWords.getSize() < size) {
+        try {
+          topicWords = TopicWordsIndex.build(new TopicWordsIndex.Counts() {
+            public int getNumWords() {
+              return numWords;
+            }
+            public int getNumTopics() {
+              return numTopics;
+            }
+            public void getRow(int word, int [] counts) {
+              for (int k = 0; k < numTopics; k++) {
+                counts[k] = count(word, k);
+              }
+            }
+            public String getWord(int word) {
+              return LdaModel.this.getWord(word);
+            }
+          }, topicSum, n * beta, Math.max(size, EXPLAIN_WORDS),
+          Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+          throw new RuntimeException(e);
         }
       }
-      explanations[topic] = StringUtil.join(words, "-"); 
+      return topicWords;
     }
-    return explanations[topic];
   }
   
   public double pz(int topic) {
@@ -272,19 +631,19 @@ public class LdaModel {
   }
   
   public double pw(String word) {
-    int [] counts = nwz.get(word);
-    if (counts == null) {
+    int w = getWordId(word);
+    if (w < 0) {
       return Math.exp(LdaModel.LOG_MIN_PROB);
     }
-    return counts[numTopics] / (double)totalSum;
+    return count(w, numTopics) / (double)totalSum;
   }
   
   public int nw(String word) {
-    int [] counts = nwz.get(word);
-    if (counts == null) {
+    int w = getWordId(word);
+    if (w < 0) {
       return 0;
     }
-    return counts[numTopics];
+    return count(w, numTopics);
   }
   
   public double [] pzw(String word) {
@@ -294,12 +653,12 @@ public class LdaModel {
   }
 
   public void pzw(String word, double [] p) {
-    int [] counts = nwz.get(word);
+    int w = getWordId(word);
     for (int k = 0; k < numTopics; k++) {
-      if (counts == null) {
+      if (w < 0) {
         p[k] = 1.0;
       } else {
-        p[k] = (counts[k] + n * beta) / (topicSum[k] + n * beta * nwz.size());
+        p[k] = (count(w, k) + n * beta) / (topicSum[k] + n * beta * numWords);
       }
     }
     double norm = 0.0;
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 import org.apache.hadoop.fs.FileStatus;
@@ -60,6 +61,81 @@ public class LdaTrainer implements GenericTool {
         "text",
         "'sequecefile': Text value of each entry is the doc. " + 
         "'text': each line is a doc. [default 'text']");
+    flags.addWithDefaultValue(
+        "keep_seq_input", "false",
+        "'true': while counting words, also copy text input to " +
+        "working_dir/input as a SequenceFile. 'false': read the text " +
+        "again to initialize the model. [default 'false']");
+    flags.addWithDefaultValue(
+        "warm_start_model", "",
+        "model exported by a previous training, with num_topics topics, to " +
+        "take the initial topics from. [default '', random topics]");
+    flags.addWithDefaultValue(
+        "warm_start_mode", WarmStart.PZW_MODE,
+        "'pzw': sample the initial topic of each word from p(z|w) of " +
+        "warm_start_model. 'foldin': then sample each document " +
+        "warm_start_sweeps times with p(w|z) of the model. [default 'pzw']");
+    flags.addWithDefaultValue(
+        "warm_start_sweeps", "2",
+        "sampling sweeps per document of 'foldin'. [default 2]");
+    flags.addWithDefaultValue(
+        "sampler", GibbsSamplingTool.GIBBS_SAMPLER,
+        "'gibbs': walk all topics for each word. " +
+        "'sparse': SparseLDA bucketed sampler, faster for many topics. " +
+        "'alias': alias-table Metropolis-Hastings sampler, O(1) per word. " +
+        "[default 'gibbs']");
+    flags.addWithDefaultValue(
+        "mh_steps", "2",
+        "Metropolis-Hastings steps per word of the alias sampler. [default 2]");
+    flags.addWithDefaultValue(
+        "alias_rebuild_interval", "-1",
+        "draws before an alias table is rebuilt. [default num_topics]");
+    flags.addWithDefaultValue(
+        "num_threads", "1",
+        "sampling threads in each reducer, 'gibbs' sampler only. [default 1]");
+    flags.addWithDefaultValue(
+        "nwz_storage", WordTopicCounts.HEAP_STORAGE,
+        "'heap': nwz in one int array. 'direct': nwz in off-heap buffers, " +
+        "for models larger than 2G counts. 'hybrid': sparse rows for " +
+        "long-tail words, dense rows for head words. [default 'heap']");
+    flags.addWithDefaultValue(
+        "doc_layout", "full",
+        "'full': every iteration writes the documents to docs.NNNNN. " +
+        "'split': words are written once to doc_words, and every " +
+        "iteration writes only the topics to topics.NNNNN. [default 'full']");
+    flags.addWithDefaultValue(
+        "sweeps_per_job", "1",
+        "Gibbs sweeps in one sampling job. Above 1, fewer jobs are run, " +
+        "and each reducer sees the counts of the others that many sweeps " +
+        "late. [default 1]");
+    flags.addWithDefaultValue(
+        "sweep_buffer", DocumentBuffer.MEMORY_BUFFER,
+        "'memory' or 'disk', where reducers keep their documents between " +
+        "sweeps. [default 'memory']");
+    flags.addWithDefaultValue(
+        "convergence_threshold", "0",
+        "stop when the relative change of the stop_metric over " +
+        "convergence_window sampling jobs is below this, 0 never stops " +
+        "early. [default 0]");
+    flags.addWithDefaultValue(
+        "convergence_window", "5",
+        "sampling jobs to compare the stop_metric over. [default 5]");
+    flags.addWithDefaultValue(
+        "stop_metric", "likelihood",
+        "'likelihood': the sampling likelihood. 'perplexity': the perplexity " +
+        "of heldout_input. [default 'likelihood']");
+    flags.addWithDefaultValue(
+        "heldout_input", "",
+        "held-out documents, not in input, in input_format. Their " +
+        "perplexity is computed and written to the likelihood file. " +
+        "[default '', none]");
+    flags.addWithDefaultValue(
+        "heldout_interval", "1",
+        "compute the held-out perplexity every this many sampling jobs. " +
+        "[default 1]");
+    flags.addWithDefaultValue(
+        "heldout_burn_in", "20",
+        "fold-in iterations per held-out document. [default 20]");
     flags.parseAndCheck(args);
 
     Path input = new Path(flags.getString("input"));
@@ -75,6 +151,43 @@ public class LdaTrainer implements GenericTool {
     int iterationsToKeep = flags.getInt("iterations_to_keep");
     int maxNumWords = flags.getInt("max_num_words");
     int minDf = flags.getInt("min_df");
+    sampler.setSampler(flags.getString("sampler"));
+    sampler.setMhSteps(flags.getInt("mh_steps"));
+    sampler.setAliasRebuildInterval(flags.getInt("alias_rebuild_interval"));
+    sampler.setNumThreads(flags.getInt("num_threads"));
+    sampler.setStorage(flags.getString("nwz_storage"));
+    initializer.setStorage(flags.getString("nwz_storage"));
+    int sweepsPerJob = Math.max(1, flags.getInt("sweeps_per_job"));
+    sampler.setSweepBuffer(flags.getString("sweep_buffer"));
+    boolean splitLayout = flags.getString("doc_layout").equals("split");
+    final String docsPrefix = splitLayout ? "topics." : "docs.";
+    Path documentWords = new Path(workingDir, "doc_words");
+    if (splitLayout) {
+      sampler.setDocumentWords(documentWords);
+      initializer.setDocumentWords(documentWords);
+    }
+    if (flags.getString("warm_start_model").length() > 0) {
+      initializer.setWarmStart(new Path(flags.getString("warm_start_model")),
+          flags.getString("warm_start_mode"),
+          flags.getInt("warm_start_sweeps"));
+    }
+    Path heldout = null;
+    if (flags.getString("heldout_input").length() > 0) {
+      heldout = new Path(flags.getString("heldout_input"));
+    }
+    int heldoutInterval = Math.max(1, flags.getInt("heldout_interval"));
+    boolean stopOnPerplexity =
+      flags.getString("stop_metric").equals("perplexity");
+    if (stopOnPerplexity && heldout == null) {
+      throw new IllegalArgumentException(
+          "stop_metric 'perplexity' needs heldout_input.");
+    }
+    PerplexityTool evaluator = new PerplexityTool();
+    evaluator.setBurnIn(flags.getInt("heldout_burn_in"));
+    evaluator.setStorage(flags.getString("nwz_storage"));
+    ConvergenceCheck convergence = new ConvergenceCheck(
+        flags.getInt("convergence_window"),
+        flags.getDouble("convergence_threshold"));
 
     // Create model directory.
     JobConf conf = new JobConf();
@@ -101,23 +214,12 @@ public class LdaTrainer implements GenericTool {
 
     // See if this is a previous half-done training process.
     NumberFormat formatter = new DecimalFormat("00000");
-    Path [] paths = {workingDir};
-    FileStatus [] existNwz = fs.listStatus(paths, new PathFilter() {
-      public boolean accept(Path p) {
-        logAndShow("Previous data:" + p.getName());
-        return p.getName().startsWith("docs.");
-      }
-    });
-    int latest = -1;
-    for (FileStatus p : existNwz) {
-      int n = Integer.parseInt(p.getPath().getName().substring(5));
-      if (n > latest)
-        latest = n;
-    }
+    int [] existing = listIterations(fs, workingDir, docsPrefix);
+    int latest = existing.length > 0 ? existing[existing.length - 1] : -1;
     if (latest >= 0) {
       logAndShow("Found previous training data at iteration #" + latest + ".");
       Path latestDocs = 
-        new Path(workingDir, "docs." + formatter.format(latest));
+        new Path(workingDir, docsPrefix + formatter.format(latest));
       Path latestNwz = 
         new Path(workingDir, "nwz." + formatter.format(latest));
       if (fs.exists(latestNwz)) {
@@ -126,34 +228,49 @@ public class LdaTrainer implements GenericTool {
       if (fs.exists(latestDocs)) {
         fs.delete(latestDocs);
       }
-      latest--;
-      logAndShow("Remove probably incomplete iteration #" + (latest + 1) +
+      // With several sweeps per job the iterations on disk are not adjacent.
+      latest = existing.length > 1 ? existing[existing.length - 2] : -1;
+      logAndShow("Remove probably incomplete iteration #" +
+          existing[existing.length - 1] +
           ", start with iteration #" + latest);
     } else {
       logAndShow("No previous data found.");
     }
 
     // Initialize docs and nwz.
-    Path docs0 = new Path(workingDir, "docs.00000");
+    Path docs0 = new Path(workingDir, docsPrefix + "00000");
     Path nwz0 = new Path(workingDir, "nwz.00000");
     Path tfdf = new Path(workingDir, "tfdf");
     Path words = new Path(workingDir, "words");
     int numWords = 0;
     logAndShow("Model initialized.");
 
-    // If we start with a plain text file, convert it to SequenceFile first.
-    if (latest == -1 &&
-        flags.getString("input_format").equals("text")) {
-      Path seqFileInput = new Path(workingDir, "input");
-      PlainTextToSeqFileTool tool = new PlainTextToSeqFileTool();
-      tool.convertToSequenceFile(input, seqFileInput);
-      input = seqFileInput;
-      logAndShow("Text input converted to SequenceFile.");
+    // Plain text input is read as it is, or copied to a SequenceFile by the
+    // word counting job, without a separate conversion pass.
+    boolean textInput = flags.getString("input_format").equals("text");
+    Path seqFileInput = null;
+    initializer.setTextInput(textInput);
+    if (textInput && flags.getString("keep_seq_input").equals("true")) {
+      seqFileInput = new Path(workingDir, "input");
+      initializer.setInputCopy(seqFileInput);
+    }
+    if (heldout != null && flags.getString("input_format").equals("text")) {
+      Path seqFileHeldout = new Path(workingDir, "heldout");
+      if (!fs.exists(seqFileHeldout)) {
+        new PlainTextToSeqFileTool().convertToSequenceFile(
+            heldout, seqFileHeldout);
+      }
+      heldout = seqFileHeldout;
     }
 
     // Initialize the model.
     if (latest == -1) {
       initializer.makeWordList(input, tfdf);
+      if (seqFileInput != null) {
+        input = seqFileInput;
+        initializer.setTextInput(false);
+        logAndShow("Text input copied to SequenceFile.");
+      }
       numWords = initializer.selectWords(tfdf, words, maxNumWords, minDf);
       initializer.initModel(input, docs0, nwz0, words, numTopics, numWords);
       latest = 0;
@@ -163,36 +280,71 @@ public class LdaTrainer implements GenericTool {
     }
 
     // Begin iterations.
-    for (int i = latest; i < numIterations; i++) {
-      logAndShow("Begin iteration #" + (i + 1));
-      Path previousDocs = new Path(workingDir, "docs." + formatter.format(i));
+    for (int i = latest; i < numIterations; i += sweepsPerJob) {
+      int next = Math.min(i + sweepsPerJob, numIterations);
+      logAndShow("Begin iteration #" + (i + 1) +
+          (next > i + 1 ? " to #" + next : ""));
+      Path previousDocs =
+        new Path(workingDir, docsPrefix + formatter.format(i));
       Path previousNwz = new Path(workingDir, "nwz." + formatter.format(i));
-      Path targetDocs = new Path(workingDir, "docs." + formatter.format(i+1));
-      Path targetNwz = new Path(workingDir, "nwz." + formatter.format(i+1));
+      Path targetDocs =
+        new Path(workingDir, docsPrefix + formatter.format(next));
+      Path targetNwz = new Path(workingDir, "nwz." + formatter.format(next));
+      sampler.setSweepsPerJob(next - i);
       double likelihood = sampler.sampling(
           previousDocs, targetDocs,
           previousNwz, targetNwz,
           alpha, beta, numTopics, numWords);
       logAndShow("#" + i + " Likelihood: " + likelihood);
+      double perplexity = Double.NaN;
+      int job = (i - latest) / sweepsPerJob + 1;
+      if (heldout != null &&
+          (job % heldoutInterval == 0 || next == numIterations)) {
+        perplexity = evaluator.perplexity(heldout, targetNwz, words,
+            alpha, beta, numTopics, numWords);
+        logAndShow("#" + next + " Held-out perplexity: " + perplexity);
+      }
+      double change = Double.NaN;
+      if (!stopOnPerplexity) {
+        change = convergence.add(likelihood);
+      } else if (!Double.isNaN(perplexity)) {
+        change = convergence.add(perplexity);
+      }
       
       // Write likelihood. We create a new Writer each time, for that the
       // sampling process may be long, and opening a HDFS file for too long time
       // may cause strange IO problem, as observed in our practice.
+      // Columns: likelihood, iteration, relative change of the stop metric,
+      // held-out perplexity. NaN marks values not computed.
       likelihoodWriter = new OutputStreamWriter(
           fs.append(new Path(workingDir, "likelihood")),
           "UTF-8");
       likelihoodWriter.append(Double.toString(likelihood));
+      likelihoodWriter.append("\t" + next);
+      likelihoodWriter.append("\t" + change);
+      likelihoodWriter.append("\t" + perplexity);
       likelihoodWriter.append("\n");
       likelihoodWriter.close();
+      IterationMetrics metrics = sampler.getLastMetrics();
+      if (metrics != null) {
+        metrics.iteration = next;
+        appendMetrics(fs, new Path(workingDir, "metrics"), metrics);
+      }
       // Remove unnecessary iterations.
-      if (i + 1 - iterationsToKeep >= 0) {
+      int [] kept = listIterations(fs, workingDir, docsPrefix);
+      for (int j = 0; j + iterationsToKeep < kept.length; j++) {
         Path oldDocs = 
-          new Path(workingDir, "docs." + formatter.format(i + 1 - iterationsToKeep)); 
+          new Path(workingDir, docsPrefix + formatter.format(kept[j]));
         fs.delete(oldDocs);
         Path oldNWZs = 
-          new Path(workingDir, "nwz." + formatter.format(i + 1 - iterationsToKeep)); 
+          new Path(workingDir, "nwz." + formatter.format(kept[j])); 
         fs.delete(oldNWZs);        
       }
+      if (convergence.isConverged()) {
+        logAndShow("Converged at iteration #" + next + ", " +
+            flags.getString("stop_metric") + " changed by " + change);
+        break;
+      }
     }
 
     // Done training.
@@ -202,10 +354,49 @@ public class LdaTrainer implements GenericTool {
     // Export model as model file.
     logAndShow("Exporting model to model file.");
     ExportModelTool exportModelTool = new ExportModelTool();
+    exportModelTool.setStorage(flags.getString("nwz_storage"));
     exportModelTool.exportModel(workingDir, output, iterationsToKeep);
     logAndShow("Model exported, thanks for using :-)  - Xiance.");
   }
 
+  /**
+   * Append the metrics of a sampling job to the metrics file, one JSON
+   * object per line. The file is kept across restarts.
+   */
+  private void appendMetrics(FileSystem fs, Path file, IterationMetrics metrics)
+  throws IOException {
+    OutputStreamWriter writer = new OutputStreamWriter(
+        fs.exists(file) ? fs.append(file) : fs.create(file), "UTF-8");
+    writer.append(metrics.toJson());
+    writer.append("\n");
+    writer.close();
+    logAndShow("#" + metrics.iteration + " " + metrics.tokens + " words, " +
+        (long) metrics.tokensPerSecond + " words/s, topic change rate " +
+        metrics.topicChangeRate);
+  }
+
+  /**
+   * Sorted numbers of the iterations whose documents are in the working
+   * directory.
+   */
+  private int [] listIterations(
+      FileSystem fs, Path workingDir, final String docsPrefix)
+  throws IOException {
+    Path [] paths = {workingDir};
+    FileStatus [] existing = fs.listStatus(paths, new PathFilter() {
+      public boolean accept(Path p) {
+        return p.getName().startsWith(docsPrefix);
+      }
+    });
+    int [] iterations = new int[existing.length];
+    for (int i = 0; i < existing.length; i++) {
+      iterations[i] = Integer.parseInt(
+          existing[i].getPath().getName().substring(docsPrefix.length()));
+    }
+    Arrays.sort(iterations);
+    return iterations;
+  }
+
   private int loadNumWords(Path words) throws IOException {
     FolderReader reader = new FolderReader(words);
     int numWords = 0;
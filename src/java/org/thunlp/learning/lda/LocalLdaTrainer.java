@@ -0,0 +1,342 @@
+package org.thunlp.learning.lda;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.thunlp.misc.Flags;
+import org.thunlp.tool.FolderReader;
+import org.thunlp.tool.GenericTool;
+
+/**
+ * Train a model in one process, for corpora that fit in the memory of one
+ * machine. Words are selected as InitModelTool does, the corpus is kept in
+ * flat primitive arrays, and every iteration samples all documents with a
+ * ParallelGibbsSampler. The model is exported by ExportModelTool, in the same
+ * format as LdaTrainer.
+ */
+public class LocalLdaTrainer implements GenericTool {
+  private static Logger LOG = Logger.getAnonymousLogger();
+
+  private int numTopics;
+  private double alpha;
+  private double beta;
+  private boolean textInput = true;
+  // The words of document d are words[docStart[d]] to words[docStart[d+1]-1].
+  private int numDocs = 0;
+  private int [] docStart = new int[1024];
+  private int [] words = new int[1 << 16];
+  private char [] topics = null;
+  private int numTokens = 0;
+  private List<String> vocabulary = null;
+  private WordTopicCounts nwz = null;
+  private int [] nz = null;
+  private Random random = new Random();
+
+  public void run(String[] args) throws Exception {
+    Flags flags = new Flags();
+    flags.add("input", "input documents, each is space-separated words.");
+    flags.add("output", "the final model, a plain text file.");
+    flags.add("num_topics", "number of topics.");
+    flags.add("num_iterations", "number of iterations.");
+    flags.addWithDefaultValue(
+        "alpha", "-1", "symmetric hyper-parameter alpha. [default k/50]");
+    flags.addWithDefaultValue(
+        "beta", "0.01", "symmetric hyper-parameter beta. [default 0.01]");
+    flags.addWithDefaultValue(
+        "iterations_to_keep", "10",
+        "number of last iterations summed into the model. [default 10]");
+    flags.addWithDefaultValue(
+        "max_num_words", "100000",
+        "max number of words to use, sorted by TF*IDF. [default 100000]");
+    flags.addWithDefaultValue(
+        "min_df", "5",
+        "words appear in less than min_df documents " +
+        "will be ignored. [default 5]");
+    flags.addWithDefaultValue(
+        "input_format", "text",
+        "'sequencefile': Text value of each entry is the doc. " +
+        "'text': each line is a doc. [default 'text']");
+    flags.addWithDefaultValue(
+        "num_threads", "-1",
+        "sampling threads. [default number of processors]");
+    flags.addWithDefaultValue(
+        "batch_size", "1000",
+        "documents per thread sampled between two merges of the counts. " +
+        "[default 1000]");
+    flags.addWithDefaultValue(
+        "nwz_storage", WordTopicCounts.HEAP_STORAGE,
+        "'heap', 'direct' (off-heap) or 'hybrid' (sparse rows) nwz. " +
+        "[default 'heap']");
+    flags.parseAndCheck(args);
+
+    numTopics = flags.getInt("num_topics");
+    alpha = flags.getDouble("alpha");
+    if (alpha == -1) {
+      alpha = 50.0 / numTopics;
+    }
+    beta = flags.getDouble("beta");
+    textInput = flags.getString("input_format").equals("text");
+    int numThreads = flags.getInt("num_threads");
+    if (numThreads <= 0) {
+      numThreads = Runtime.getRuntime().availableProcessors();
+    }
+    String storage = flags.getString("nwz_storage");
+    int numIterations = flags.getInt("num_iterations");
+    int iterationsToKeep =
+      Math.max(1, Math.min(flags.getInt("iterations_to_keep"), numIterations));
+    Path input = new Path(flags.getString("input"));
+
+    long startTime = System.currentTimeMillis();
+    Map<String, InitModelTool.WordFreq> wordCounts = countWords(input);
+    vocabulary = InitModelTool.selectWords(
+        wordCounts, flags.getInt("max_num_words"), flags.getInt("min_df"));
+    LOG.info("Load " + wordCounts.size() + " words, keep " +
+        vocabulary.size());
+    wordCounts = null;
+    loadCorpus(input);
+    initTopics(storage);
+    LOG.info("Model initialized with " + numDocs + " docs and " + numTokens +
+        " words using " + (System.currentTimeMillis() - startTime) +
+        " milliseconds.");
+
+    ParallelGibbsSampler sampler = new ParallelGibbsSampler(
+        nwz, nz, numTopics, alpha, beta, numThreads, random);
+    WordTopicCounts sum =
+      WordTopicCounts.create(storage, vocabulary.size(), numTopics);
+    int [] row = new int[numTopics];
+    int batchSize = flags.getInt("batch_size") * numThreads;
+    for (int i = 0; i < numIterations; i++) {
+      long iterationStart = System.currentTimeMillis();
+      double likelihood = sweep(sampler, batchSize);
+      LOG.info("#" + i + " Likelihood: " + likelihood + " using " +
+          (System.currentTimeMillis() - iterationStart) + " milliseconds.");
+      if (i >= numIterations - iterationsToKeep) {
+        for (int w = 0; w < vocabulary.size(); w++) {
+          nwz.getRow(w, row);
+          sum.addRow(w, row);
+        }
+      }
+    }
+    sampler.close();
+
+    Map<Integer, String> wordIds = new Hashtable<Integer, String>();
+    for (int w = 0; w < vocabulary.size(); w++) {
+      wordIds.put(w, vocabulary.get(w));
+    }
+    ExportModelTool exportModelTool = new ExportModelTool();
+    exportModelTool.exportModel(sum, wordIds, alpha, beta,
+        new Path(flags.getString("output")), iterationsToKeep);
+    LOG.info("Training done using " +
+        (System.currentTimeMillis() - startTime) + " milliseconds.");
+  }
+
+  /**
+   * Term and document frequencies of all words, keyed as in the output of
+   * WordListReducer.
+   */
+  private Map<String, InitModelTool.WordFreq> countWords(Path input)
+  throws IOException {
+    Map<String, InitModelTool.WordFreq> counts =
+      new HashMap<String, InitModelTool.WordFreq>();
+    InitModelTool.WordFreq total = new InitModelTool.WordFreq();
+    counts.put(WordListMapper.NUM_DOCS_STRING, total);
+    Set<String> seen = new HashSet<String>();
+    DocumentReader reader = new DocumentReader(input);
+    String doc;
+    while ((doc = reader.next()) != null) {
+      seen.clear();
+      String [] tokens = doc.split(" +");
+      for (String token : tokens) {
+        if (token.length() == 0) {
+          continue;
+        }
+        InitModelTool.WordFreq wf = counts.get(token);
+        if (wf == null) {
+          wf = new InitModelTool.WordFreq();
+          counts.put(token, wf);
+        }
+        wf.tf++;
+        if (seen.add(token)) {
+          wf.df++;
+        }
+        total.tf++;
+      }
+      total.df++;
+    }
+    reader.close();
+    return counts;
+  }
+
+  /**
+   * Read the corpus again, keeping the ids of the selected words. Documents
+   * without any selected word are dropped.
+   */
+  private void loadCorpus(Path input) throws IOException {
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    for (int w = 0; w < vocabulary.size(); w++) {
+      ids.put(vocabulary.get(w), w);
+    }
+    DocumentReader reader = new DocumentReader(input);
+    String doc;
+    docStart[0] = 0;
+    while ((doc = reader.next()) != null) {
+      int start = numTokens;
+      String [] tokens = doc.split(" +");
+      for (String token : tokens) {
+        Integer id = ids.get(token);
+        if (id == null) {
+          continue;
+        }
+        if (numTokens == words.length) {
+          words = grow(words);
+        }
+        words[numTokens++] = id;
+      }
+      if (numTokens == start) {
+        continue;
+      }
+      if (numDocs + 2 > docStart.length) {
+        docStart = grow(docStart);
+      }
+      docStart[++numDocs] = numTokens;
+    }
+    reader.close();
+  }
+
+  private static int [] grow(int [] a) {
+    int [] grown = new int[a.length + (a.length >> 1) + 1];
+    System.arraycopy(a, 0, grown, 0, a.length);
+    return grown;
+  }
+
+  private void initTopics(String storage) {
+    if (numTopics > Character.MAX_VALUE + 1) {
+      throw new RuntimeException("At most " + (Character.MAX_VALUE + 1) +
+          " topics are supported, got " + numTopics);
+    }
+    topics = new char[numTokens];
+    nwz = WordTopicCounts.create(storage, vocabulary.size(), numTopics);
+    nz = new int[numTopics];
+    for (int i = 0; i < numTokens; i++) {
+      int topic = random.nextInt(numTopics);
+      topics[i] = (char) topic;
+      nwz.add(words[i], topic, 1);
+      nz[topic]++;
+    }
+  }
+
+  /**
+   * Sample all documents once, in batches copied out of the flat arrays.
+   * @return Sum over documents of the per-word likelihood, as the counter of
+   * GibbsSamplingReducer.
+   */
+  private double sweep(ParallelGibbsSampler sampler, int batchSize) {
+    List<DocumentWritable> batch = new ArrayList<DocumentWritable>(batchSize);
+    for (int i = 0; i < batchSize; i++) {
+      batch.add(new DocumentWritable());
+    }
+    double [] likelihoods = new double[batchSize];
+    double likelihood = 0.0;
+    for (int first = 0; first < numDocs; first += batchSize) {
+      int n = Math.min(batchSize, numDocs - first);
+      for (int i = 0; i < n; i++) {
+        DocumentWritable doc = batch.get(i);
+        int start = docStart[first + i];
+        int length = docStart[first + i + 1] - start;
+        doc.setNumWords(length);
+        System.arraycopy(words, start, doc.words, 0, length);
+        for (int j = 0; j < length; j++) {
+          doc.topics[j] = topics[start + j];
+        }
+      }
+      sampler.sampleDocuments(batch, n, likelihoods);
+      for (int i = 0; i < n; i++) {
+        DocumentWritable doc = batch.get(i);
+        int start = docStart[first + i];
+        for (int j = 0; j < doc.getNumWords(); j++) {
+          topics[start + j] = (char) doc.topics[j];
+        }
+        likelihood += likelihoods[i] / doc.getNumWords();
+      }
+    }
+    return likelihood;
+  }
+
+  /**
+   * Reads documents as strings from a text file, a directory of text files,
+   * or SequenceFiles with Text values.
+   */
+  private class DocumentReader {
+    private FileSystem fs;
+    private FileStatus [] files;
+    private int nextFile = 0;
+    private BufferedReader lines = null;
+    private FolderReader sequenceReader = null;
+    private Text key = new Text();
+    private Text value = new Text();
+
+    DocumentReader(Path input) throws IOException {
+      fs = FileSystem.get(new JobConf());
+      if (!textInput) {
+        sequenceReader = new FolderReader(input);
+        return;
+      }
+      if (fs.getFileStatus(input).isDir()) {
+        files = fs.listStatus(input, new PathFilter() {
+          public boolean accept(Path p) {
+            return !p.getName().startsWith("_") &&
+                !p.getName().startsWith(".");
+          }
+        });
+      } else {
+        files = new FileStatus[] {fs.getFileStatus(input)};
+      }
+    }
+
+    String next() throws IOException {
+      if (sequenceReader != null) {
+        return sequenceReader.next(key, value) ? value.toString() : null;
+      }
+      while (true) {
+        if (lines != null) {
+          String line = lines.readLine();
+          if (line != null) {
+            return line;
+          }
+          lines.close();
+          lines = null;
+        }
+        if (nextFile == files.length) {
+          return null;
+        }
+        lines = new BufferedReader(new InputStreamReader(
+            fs.open(files[nextFile++].getPath()), "UTF-8"));
+      }
+    }
+
+    void close() throws IOException {
+      if (sequenceReader != null) {
+        sequenceReader.close();
+      }
+      if (lines != null) {
+        lines.close();
+      }
+    }
+  }
+}
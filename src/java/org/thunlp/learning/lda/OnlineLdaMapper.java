@@ -0,0 +1,103 @@
+package org.thunlp.learning.lda;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Sample the topics of new documents against an exported model, with p(w|z)
+ * fixed, and output how many times each word got each topic. See
+ * OnlineLdaTool.
+ * Key in: document id, or the line offset for text input.
+ * Value in: Space-separated words of a document.
+ * Key out: word id in the model.
+ * Value out: partial topic counts of the word in this batch.
+ *
+ * Words not in the model are skipped. The counts are summed in memory and
+ * flushed every flushWords distinct words and at close.
+ */
+public class OnlineLdaMapper
+implements Mapper<Writable, Text, IntWritable, WordInfoWritable> {
+  public static enum OnlineLdaCounter {DOCS, WORDS, UNKNOWN_WORDS};
+
+  private LdaModel model;
+  private int numTopics;
+  private int numBurnInIterations;
+  private int flushWords;
+  private FoldInSampler sampler;
+  private int [] topics = new int[1024];
+  private Map<Integer, int []> counts = new HashMap<Integer, int []>();
+  private OutputCollector<IntWritable, WordInfoWritable> output = null;
+
+  public void configure(JobConf job) {
+    numBurnInIterations = job.getInt("online.burn.in", 20);
+    flushWords = job.getInt("online.flush.words", 100000);
+    try {
+      model = InferenceMapper.getModel(InferenceMapper.localModelPath(job));
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot load model", e);
+    }
+    numTopics = model.getNumTopics();
+    sampler = FoldInSampler.forModel(model, new Random());
+  }
+
+  public void map(Writable key, Text value,
+      OutputCollector<IntWritable, WordInfoWritable> output, Reporter reporter)
+  throws IOException {
+    this.output = output;
+    String [] words = value.toString().split(" +");
+    int [] ids = model.getWordIds(words);
+    reporter.incrCounter(OnlineLdaCounter.DOCS, 1);
+    reporter.incrCounter(OnlineLdaCounter.WORDS, ids.length);
+    reporter.incrCounter(OnlineLdaCounter.UNKNOWN_WORDS,
+        words.length - ids.length);
+    if (ids.length == 0) {
+      return;
+    }
+    if (topics.length < ids.length) {
+      topics = new int[ids.length * 2];
+    }
+    sampler.randomTopics(topics, ids.length);
+    sampler.sample(ids, topics, ids.length, numBurnInIterations);
+    for (int i = 0; i < ids.length; i++) {
+      int [] row = counts.get(ids[i]);
+      if (row == null) {
+        row = new int[numTopics];
+        counts.put(ids[i], row);
+      }
+      row[topics[i]]++;
+    }
+    if (counts.size() >= flushWords) {
+      flush();
+    }
+  }
+
+  private void flush() throws IOException {
+    IntWritable word = new IntWritable();
+    WordInfoWritable row = new WordInfoWritable(numTopics);
+    row.setIsPartial(true);
+    for (Map.Entry<Integer, int []> e : counts.entrySet()) {
+      word.set(e.getKey());
+      for (int k = 0; k < numTopics; k++) {
+        row.setTopicCount(k, e.getValue()[k]);
+      }
+      output.collect(word, row);
+    }
+    counts.clear();
+  }
+
+  public void close() throws IOException {
+    if (output != null) {
+      flush();
+    }
+  }
+}
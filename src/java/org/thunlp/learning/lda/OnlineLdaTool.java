@@ -0,0 +1,250 @@
+package org.thunlp.learning.lda;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.TextInputFormat;
+import org.thunlp.mapred.MapReduceJobConf;
+import org.thunlp.misc.Flags;
+import org.thunlp.tool.FolderReader;
+import org.thunlp.tool.GenericTool;
+
+/**
+ * Update an exported model with a batch of new documents, without retraining
+ * on the documents seen before.
+ *
+ * The topics of the new documents are sampled with p(w|z) of the model fixed,
+ * by OnlineLdaMapper, and the resulting counts n'(w,z) are scaled to the size
+ * of the model and blended into it with a decaying rate:
+ *   n(w,z) = (1 - rho) n(w,z) + rho * N / N' * n'(w,z),  rho = (tau0 + t)^-kappa
+ * where N and N' are the total counts of the model and of the batch, and t is
+ * the version of the model. The job only reads the batch, and the merge only
+ * the model, so the cost does not grow with the number of documents seen.
+ *
+ * The version and the number of documents seen are kept next to the model in
+ * <model>.version, a missing file counts as version 0. The vocabulary of the
+ * model is kept, new words are ignored until the next full training.
+ */
+public class OnlineLdaTool implements GenericTool {
+  private static Logger LOG = Logger.getAnonymousLogger();
+
+  public static String VERSION_SUFFIX = ".version";
+
+  private double tau0 = 64;
+  private double kappa = 0.7;
+  private int numBurnInIterations = 20;
+  private boolean textInput = false;
+  private String storage = WordTopicCounts.HEAP_STORAGE;
+
+  /**
+   * The learning rate of version t is (tau0 + t)^-kappa. kappa in (0.5, 1]
+   * lets the rates sum to infinity while their squares do not; larger tau0
+   * slows down the first updates.
+   */
+  public void setLearningRate(double tau0, double kappa) {
+    this.tau0 = tau0;
+    this.kappa = kappa;
+  }
+
+  public void setBurnIn(int numBurnInIterations) {
+    this.numBurnInIterations = numBurnInIterations;
+  }
+
+  public void setTextInput(boolean textInput) {
+    this.textInput = textInput;
+  }
+
+  /**
+   * Where to keep the new nwz while merging, see WordTopicCounts.create.
+   */
+  public void setStorage(String storage) {
+    this.storage = storage;
+  }
+
+  public void run(String[] args) throws Exception {
+    Flags flags = new Flags();
+    flags.add("model", "Model exported by ExportModelTool.");
+    flags.add("input", "New documents, see input_format.");
+    flags.add("output", "The updated model, a plain text file.");
+    flags.addWithDefaultValue(
+        "input_format", "sequence",
+        "'sequence' for SequenceFiles of doc id:words, or 'text' for one " +
+        "document per line. [default 'sequence']");
+    flags.addWithDefaultValue(
+        "tau0", "64", "delay of the learning rate. [default 64]");
+    flags.addWithDefaultValue(
+        "kappa", "0.7", "decay of the learning rate. [default 0.7]");
+    flags.addWithDefaultValue(
+        "burn_in", "20", "sampling iterations per document. [default 20]");
+    flags.addWithDefaultValue(
+        "nwz_storage", WordTopicCounts.HEAP_STORAGE,
+        "'heap', 'direct' (off-heap) or 'hybrid' (sparse rows) nwz. " +
+        "[default 'heap']");
+    flags.parseAndCheck(args);
+
+    setLearningRate(flags.getDouble("tau0"), flags.getDouble("kappa"));
+    setBurnIn(flags.getInt("burn_in"));
+    setTextInput(flags.getString("input_format").equals("text"));
+    setStorage(flags.getString("nwz_storage"));
+    update(new Path(flags.getString("model")),
+        new Path(flags.getString("input")),
+        new Path(flags.getString("output")));
+  }
+
+  public void update(Path model, Path input, Path output)
+  throws IOException {
+    JobConf conf = new JobConf();
+    FileSystem fs = model.getFileSystem(conf);
+    long [] version = readVersion(fs, model);
+    double rho = Math.pow(tau0 + version[0], -kappa);
+    if (!(rho > 0 && rho <= 1)) {
+      throw new IllegalArgumentException("Bad learning rate " + rho +
+          " from tau0 " + tau0 + " and kappa " + kappa);
+    }
+
+    Path binary = new Path(model.toString() +
+        ExportModelTool.BINARY_MODEL_SUFFIX);
+    Path modelFile = fs.makeQualified(fs.exists(binary) ? binary : model);
+    Path batchNwz = new Path(output.toString() + ".batch");
+    long numDocs = sampleBatch(modelFile, input, batchNwz);
+
+    LdaModel lda = new LdaModel();
+    lda.loadModel(localCopy(fs, modelFile));
+    int numTopics = lda.getNumTopics();
+    Map<Integer, int []> batch = new HashMap<Integer, int []>();
+    long batchTotal = loadBatch(batchNwz, batch);
+    fs.delete(batchNwz, true);
+    LOG.info("Version " + version[0] + " of " + model + ", " + numDocs +
+        " new docs with " + batchTotal + " known words, rho " + rho);
+    if (batchTotal == 0) {
+      throw new IOException("No known word in " + input);
+    }
+
+    double scale = (double) lda.totalSum / batchTotal;
+    WordTopicCounts nwz =
+      WordTopicCounts.create(storage, lda.getNumWords(), numTopics);
+    Map<Integer, String> wordIds = new Hashtable<Integer, String>();
+    for (int w = 0; w < lda.getNumWords(); w++) {
+      wordIds.put(w, lda.getWord(w));
+      int [] row = batch.get(w);
+      for (int k = 0; k < numTopics; k++) {
+        double count = (1 - rho) * lda.count(w, k);
+        if (row != null) {
+          count += rho * scale * row[k];
+        }
+        nwz.set(w, k, (int) Math.round(count));
+      }
+    }
+    ExportModelTool exportModelTool = new ExportModelTool();
+    exportModelTool.setStorage(storage);
+    exportModelTool.exportModel(nwz, wordIds, lda.getAlpha(), lda.getBeta(),
+        output, lda.getNumTrainingIterations());
+    writeVersion(output.getFileSystem(conf), output,
+        version[0] + 1, version[1] + numDocs);
+  }
+
+  /**
+   * Run OnlineLdaMapper over the batch.
+   * @return Number of documents in the batch.
+   */
+  private long sampleBatch(Path model, Path input, Path output)
+  throws IOException {
+    MapReduceJobConf job = new MapReduceJobConf(this.getClass());
+    job.setJobName("OnlineUpdateForLDA");
+    job.setMapReduce(OnlineLdaMapper.class, CombineModelParamReducer.class);
+    job.setCombinerClass(CombineModelParamCombiner.class);
+    job.setKeyValueClass(
+        IntWritable.class, WordInfoWritable.class,
+        IntWritable.class, WordInfoWritable.class);
+    if (textInput) {
+      job.setInputFormat(TextInputFormat.class);
+    }
+    job.setNumTasksToExecutePerJvm(-1);
+    DistributedCache.addCacheFile(model.toUri(), job);
+    job.set("inference.model", model.toString());
+    job.setInt("online.burn.in", numBurnInIterations);
+    FileInputFormat.addInputPath(job, input);
+    SequenceFileOutputFormat.setOutputPath(job, output);
+    RunningJob runningJob = JobClient.runJob(job);
+    return runningJob.getCounters().getCounter(
+        OnlineLdaMapper.OnlineLdaCounter.DOCS);
+  }
+
+  /**
+   * @return Total count of the batch.
+   */
+  private long loadBatch(Path input, Map<Integer, int []> batch)
+  throws IOException {
+    FolderReader reader = new FolderReader(input);
+    IntWritable word = new IntWritable();
+    WordInfoWritable counts = new WordInfoWritable();
+    long total = 0;
+    while (reader.next(word, counts)) {
+      int [] row = new int[counts.size()];
+      for (int k = 0; k < row.length; k++) {
+        row[k] = counts.getTopicCount(k);
+        total += row[k];
+      }
+      batch.put(word.get(), row);
+    }
+    reader.close();
+    return total;
+  }
+
+  /**
+   * LdaModel reads local files only.
+   */
+  private String localCopy(FileSystem fs, Path model) throws IOException {
+    if (fs.getUri().getScheme().equals("file")) {
+      return model.toUri().getPath();
+    }
+    File local = File.createTempFile("lda-online-", "-" + model.getName());
+    local.deleteOnExit();
+    fs.copyToLocalFile(model, new Path(local.getAbsolutePath()));
+    return local.getAbsolutePath();
+  }
+
+  /**
+   * @return {version, number of documents seen}, zeros if the model has no
+   * version file.
+   */
+  public static long [] readVersion(FileSystem fs, Path model)
+  throws IOException {
+    Path file = new Path(model.toString() + VERSION_SUFFIX);
+    long [] version = {0, 0};
+    if (!fs.exists(file)) {
+      return version;
+    }
+    BufferedReader reader =
+      new BufferedReader(new InputStreamReader(fs.open(file), "UTF-8"));
+    String [] cols = reader.readLine().trim().split("\t");
+    reader.close();
+    version[0] = Long.parseLong(cols[0]);
+    version[1] = Long.parseLong(cols[1]);
+    return version;
+  }
+
+  private static void writeVersion(FileSystem fs, Path model,
+      long version, long numDocs) throws IOException {
+    OutputStreamWriter writer = new OutputStreamWriter(
+        fs.create(new Path(model.toString() + VERSION_SUFFIX)), "UTF-8");
+    writer.write(version + "\t" + numDocs + "\n");
+    writer.close();
+  }
+}
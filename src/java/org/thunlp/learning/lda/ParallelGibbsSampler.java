@@ -0,0 +1,213 @@
+package org.thunlp.learning.lda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sample a batch of documents concurrently against one shared copy of nwz and
+ * nz, in the way of AD-LDA (Newman et al., 2009) inside a single JVM.
+ *
+ * While a batch is sampled the shared counts are read-only. Each worker keeps
+ * its own copy of nz and a delta row for every word it touched, and samples
+ * against shared counts plus its own deltas. When all workers are done, the
+ * deltas are merged into the shared counts, so the other workers' updates are
+ * at most one batch stale. The model is never duplicated; the extra memory
+ * of a worker is one delta row per distinct word of its largest batch.
+ */
+public class ParallelGibbsSampler {
+  private int numTopics;
+  private double alpha;
+  private double beta;
+  private double betaSum;
+  private WordTopicCounts nwz;
+  private int [] nz;
+  private Worker [] workers;
+  private ExecutorService executor;
+
+  public ParallelGibbsSampler(
+      WordTopicCounts nwz,
+      int [] nz,
+      int numTopics,
+      double alpha,
+      double beta,
+      int numThreads,
+      Random random) {
+    this.nwz = nwz;
+    this.nz = nz;
+    this.numTopics = numTopics;
+    this.alpha = alpha;
+    this.beta = beta;
+    this.betaSum = nwz.getNumWords() * beta;
+    workers = new Worker[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      workers[i] = new Worker(new Random(random.nextLong()));
+    }
+    executor = Executors.newFixedThreadPool(numThreads);
+  }
+
+  public int getNumThreads() {
+    return workers.length;
+  }
+
+  /**
+   * Resample the first numDocs documents concurrently, then merge the count
+   * changes into the shared nwz and nz.
+   * @param likelihoods Receives the sum of normalization factors of each
+   * document, as GibbsSamplingReducer.sampleDocument returns.
+   */
+  public void sampleDocuments(
+      final List<DocumentWritable> docs,
+      final int numDocs,
+      final double [] likelihoods) {
+    List<Future<Object>> results = new ArrayList<Future<Object>>();
+    for (int t = 0; t < workers.length; t++) {
+      final Worker worker = workers[t];
+      final int shard = t;
+      results.add(executor.submit(new Callable<Object>() {
+        public Object call() {
+          worker.begin();
+          for (int d = shard; d < numDocs; d += workers.length) {
+            likelihoods[d] = worker.sampleDocument(docs.get(d));
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Object> result : results) {
+      try {
+        result.get();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    for (Worker worker : workers) {
+      worker.merge();
+    }
+  }
+
+  public void close() {
+    executor.shutdown();
+  }
+
+  /**
+   * Number of delta rows allocated by all workers, for tests.
+   */
+  int getNumDeltaRows() {
+    int n = 0;
+    for (Worker worker : workers) {
+      n += worker.numTouched + worker.numSpare;
+    }
+    return n;
+  }
+
+  private class Worker {
+    private Random random;
+    private int [] localNz = new int[numTopics];
+    private int [] ndz = new int[numTopics];
+    private double [] probs = new double[numTopics];
+    // Rows of the words touched in this batch. merge zeroes them and moves
+    // them to spare, where the next batch takes them from.
+    private int [][] deltas = new int[nwz.getNumWords()][];
+    private int [] touched = new int[16];
+    private int numTouched = 0;
+    private int [][] spare = new int[16][];
+    private int numSpare = 0;
+
+    Worker(Random random) {
+      this.random = random;
+    }
+
+    void begin() {
+      System.arraycopy(nz, 0, localNz, 0, numTopics);
+    }
+
+    double sampleDocument(DocumentWritable doc) {
+      for (int k = 0; k < numTopics; k++) {
+        ndz[k] = 0;
+      }
+      for (int i = 0; i < doc.getNumWords(); i++) {
+        ndz[doc.topics[i]]++;
+      }
+      double likelihood = 0.0;
+      for (int i = 0; i < doc.getNumWords(); i++) {
+        int word = doc.words[i];
+        int topic = doc.topics[i];
+        int [] delta = deltaRow(word);
+        ndz[topic]--;
+        localNz[topic]--;
+        delta[topic]--;
+
+        double norm = 0.0;
+        for (int k = 0; k < numTopics; k++) {
+          double pwz =
+            (nwz.get(word, k) + delta[k] + beta) / (localNz[k] + betaSum);
+          probs[k] = pwz * (ndz[k] + alpha);
+          norm += probs[k];
+        }
+        likelihood += norm;
+
+        double sample = random.nextDouble() * norm;
+        topic = numTopics - 1;
+        for (int k = 0; k < numTopics; k++) {
+          sample -= probs[k];
+          if (sample < 0) {
+            topic = k;
+            break;
+          }
+        }
+        doc.topics[i] = topic;
+        ndz[topic]++;
+        localNz[topic]++;
+        delta[topic]++;
+      }
+      return likelihood;
+    }
+
+    private int [] deltaRow(int word) {
+      int [] delta = deltas[word];
+      if (delta == null) {
+        delta = numSpare > 0 ? spare[--numSpare] : new int[numTopics];
+        deltas[word] = delta;
+        if (numTouched == touched.length) {
+          int [] grown = new int[touched.length * 2];
+          System.arraycopy(touched, 0, grown, 0, numTouched);
+          touched = grown;
+        }
+        touched[numTouched++] = word;
+      }
+      return delta;
+    }
+
+    /**
+     * Fold this worker's deltas into the shared counts. Called from one
+     * thread after all workers stopped.
+     */
+    void merge() {
+      for (int i = 0; i < numTouched; i++) {
+        int word = touched[i];
+        int [] delta = deltas[word];
+        nwz.addRow(word, delta);
+        for (int k = 0; k < numTopics; k++) {
+          nz[k] += delta[k];
+          delta[k] = 0;
+        }
+        deltas[word] = null;
+        if (numSpare == spare.length) {
+          int [][] grown = new int[spare.length * 2][];
+          System.arraycopy(spare, 0, grown, 0, numSpare);
+          spare = grown;
+        }
+        spare[numSpare++] = delta;
+      }
+      numTouched = 0;
+    }
+  }
+}
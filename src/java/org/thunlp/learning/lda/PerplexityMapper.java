@@ -0,0 +1,130 @@
+package org.thunlp.learning.lda;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.thunlp.tool.FolderReader;
+
+/**
+ * Document-completion likelihood of held-out documents under the n(w,z) of a
+ * training iteration. The words at even positions of a document are folded
+ * in with p(w|z) fixed, to estimate p(z|d), and the words at odd positions
+ * are scored by sum_z p(w|z) p(z|d). Nothing is output; the sums go to the
+ * counters, see PerplexityTool.
+ * Key in: Document id, not used.
+ * Value in: Space-separated words of a document.
+ */
+public class PerplexityMapper implements Mapper<Text, Text, Text, Text> {
+  private static Logger LOG = Logger.getAnonymousLogger();
+  public enum PerplexityCounter {LOG_LIKELIHOOD, WORDS, DOCS};
+  // Counter units per nat of log-likelihood.
+  public static double RESOLUTION = 1000.0;
+
+  private int numTopics = 0;
+  private int numWords = 0;
+  private double alpha = 0.0;
+  private double beta = 0.0;
+  private int numBurnInIterations = 20;
+  private Map<String, Integer> wordIds = null;
+  private WordTopicCounts nwz = null;
+  private FoldInSampler sampler = null;
+  private int [] ids = new int[1024];
+  private int [] observed = new int[512];
+  private int [] topics = new int[512];
+
+  public void map(Text key, Text value,
+      OutputCollector<Text, Text> output, Reporter reporter)
+  throws IOException {
+    String [] words = value.toString().split(" +");
+    int n = 0;
+    for (String w : words) {
+      Integer id = wordIds.get(w);
+      if (id == null) {
+        continue;
+      }
+      if (n == ids.length) {
+        ids = Arrays.copyOf(ids, n * 2);
+      }
+      ids[n++] = id;
+    }
+    if (n < 2) {
+      return;
+    }
+    // Fold in the words at even positions.
+    int numObserved = (n + 1) / 2;
+    if (observed.length < numObserved) {
+      observed = new int[numObserved * 2];
+      topics = new int[numObserved * 2];
+    }
+    for (int i = 0; i < numObserved; i++) {
+      observed[i] = ids[i * 2];
+    }
+    sampler.randomTopics(topics, numObserved);
+    sampler.sample(observed, topics, numObserved, numBurnInIterations);
+    int [] ndz = sampler.getNdz();
+    double thetaNorm = numObserved + numTopics * alpha;
+    double likelihood = 0.0;
+    for (int i = 1; i < n; i += 2) {
+      double p = 0.0;
+      for (int k = 0; k < numTopics; k++) {
+        p += sampler.phi(ids[i], k) * (ndz[k] + alpha) / thetaNorm;
+      }
+      likelihood += Math.log(p);
+    }
+    reporter.incrCounter(PerplexityCounter.LOG_LIKELIHOOD,
+        Math.round(likelihood * RESOLUTION));
+    reporter.incrCounter(PerplexityCounter.WORDS, n / 2);
+    reporter.incrCounter(PerplexityCounter.DOCS, 1);
+  }
+
+  public void configure(JobConf conf) {
+    numTopics = conf.getInt("num.topics", 0);
+    numWords = conf.getInt("num.words", 0);
+    alpha = (double) conf.getFloat("alpha", 0.0f);
+    beta = (double) conf.getFloat("beta", 0.0f);
+    numBurnInIterations = conf.getInt("perplexity.burn.in", 20);
+    try {
+      loadWords(conf.get("wordlist"));
+      loadModelParameters(conf.get("input.nwz"),
+          conf.get("nwz.storage", WordTopicCounts.HEAP_STORAGE));
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot load model", e);
+    }
+  }
+
+  private void loadWords(String wordFile) throws IOException {
+    wordIds = new HashMap<String, Integer>();
+    FolderReader reader = new FolderReader(new Path(wordFile));
+    Text key = new Text();
+    IntWritable value = new IntWritable();
+    while (reader.next(key, value)) {
+      wordIds.put(key.toString(), value.get());
+    }
+    reader.close();
+  }
+
+  private void loadModelParameters(String modelParamFile, String storage)
+  throws IOException {
+    long startTime = System.currentTimeMillis();
+    int [] nz = new int[numTopics];
+    nwz = WordTopicCounts.load(
+        new Path(modelParamFile), storage, numWords, numTopics, nz);
+    sampler = FoldInSampler.forCounts(nwz, nz, alpha, beta, new Random());
+    LOG.info("Load model parameters using " +
+        (System.currentTimeMillis() - startTime) + " milliseconds.");
+  }
+
+  public void close() throws IOException {
+  }
+}
@@ -0,0 +1,111 @@
+package org.thunlp.learning.lda;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.thunlp.mapred.MapOnlyJobConf;
+import org.thunlp.misc.Flags;
+import org.thunlp.tool.FolderReader;
+import org.thunlp.tool.GenericTool;
+
+/**
+ * Held-out perplexity of a training iteration, computed by a map-only job
+ * over a SequenceFile of "doc id":"space-separated words". The documents
+ * should not be part of the training data. See PerplexityMapper.
+ */
+public class PerplexityTool implements GenericTool {
+  private int numBurnInIterations = 20;
+  private String storage = WordTopicCounts.HEAP_STORAGE;
+
+  /**
+   * Fold-in iterations for the topics of each held-out document.
+   */
+  public void setBurnIn(int numBurnInIterations) {
+    this.numBurnInIterations = numBurnInIterations;
+  }
+
+  public void setStorage(String storage) {
+    this.storage = storage;
+  }
+
+  public void run(String[] args) throws Exception {
+    Flags flags = new Flags();
+    flags.add("input", "held-out documents, SequenceFile.");
+    flags.add("working_dir", "working directory of LdaTrainer.");
+    flags.add("iteration", "the iteration to evaluate.");
+    flags.addWithDefaultValue(
+        "burn_in", "20", "fold-in iterations per document. [default 20]");
+    flags.parseAndCheck(args);
+    setBurnIn(flags.getInt("burn_in"));
+
+    Path workingDir = new Path(flags.getString("working_dir"));
+    FileSystem fs = FileSystem.get(new JobConf());
+    DataInputStream ins = fs.open(new Path(workingDir, "parameters"));
+    double alpha = ins.readDouble();
+    double beta = ins.readDouble();
+    int numTopics = ins.readInt();
+    ins.close();
+    Path words = new Path(workingDir, "words");
+    FolderReader reader = new FolderReader(words);
+    Text key = new Text();
+    IntWritable value = new IntWritable();
+    int numWords = 0;
+    while (reader.next(key, value)) {
+      numWords++;
+    }
+    reader.close();
+
+    double perplexity = perplexity(
+        new Path(flags.getString("input")),
+        new Path(workingDir, "nwz." + String.format(
+            "%05d", flags.getInt("iteration"))),
+        words, alpha, beta, numTopics, numWords);
+    System.out.println("Perplexity: " + perplexity);
+  }
+
+  /**
+   * @return exp(-log-likelihood / number of words) of the held-out words,
+   * NaN if no document has two known words.
+   */
+  public double perplexity(
+      Path heldout, Path nwz, Path wordlist,
+      double alpha, double beta,
+      int numTopics, int numWords) throws IOException {
+    FileSystem fs = FileSystem.get(new JobConf());
+    MapOnlyJobConf job = new MapOnlyJobConf(this.getClass());
+    job.setJobName("HeldOutPerplexityForLDA");
+    job.setMapperClass(PerplexityMapper.class);
+    job.setKeyValueClass(Text.class, Text.class);
+    job.setOutputFormat(NullOutputFormat.class);
+    SequenceFileInputFormat.addInputPath(job, heldout);
+    job.set("input.nwz", nwz.makeQualified(fs).toString());
+    job.set("wordlist", wordlist.makeQualified(fs).toString());
+    job.set("alpha", Double.toString(alpha));
+    job.set("beta", Double.toString(beta));
+    job.setInt("num.topics", numTopics);
+    job.setInt("num.words", numWords);
+    job.setInt("perplexity.burn.in", numBurnInIterations);
+    job.set("nwz.storage", storage);
+    RunningJob runningJob = JobClient.runJob(job);
+    Counters counters = runningJob.getCounters();
+    long words = counters.getCounter(
+        PerplexityMapper.PerplexityCounter.WORDS);
+    if (words == 0) {
+      return Double.NaN;
+    }
+    double likelihood = counters.getCounter(
+        PerplexityMapper.PerplexityCounter.LOG_LIKELIHOOD) /
+        PerplexityMapper.RESOLUTION;
+    return Math.exp(-likelihood / words);
+  }
+}
@@ -12,7 +12,10 @@ public class ShowTopics implements GenericTool {
   public void run(String[] args) throws Exception {
     Flags flags = new Flags();
     flags.add("model", "LDA model file");
+    flags.addWithDefaultValue(
+        "num_words", "5", "words to show for each topic. [default 5]");
     flags.parseAndCheck(args);
+    int numWords = flags.getInt("num_words");
 
     LdaModel model = new LdaModel();
     model.loadModel(flags.getString("model"));
@@ -35,7 +38,7 @@ public class ShowTopics implements GenericTool {
     
     for (int i = 0; i < topics.length; i++) {
       System.out.println(topics[i].first + " " + topics[i].second + " "
-          + model.explain(topics[i].first));
+          + model.explain(topics[i].first, numWords));
     }
   }
 
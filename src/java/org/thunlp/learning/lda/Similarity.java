@@ -2,12 +2,57 @@ package org.thunlp.learning.lda;
 
 
 public class Similarity {
+  /**
+   * KL(pa || pb) in nats. Infinite if pb is 0 where pa is not.
+   */
   public static double KLDivergence(double [] pa, double [] pb) {
-    return 0.0;
+    double d = 0.0;
+    if (pa.length != pb.length) {
+      throw new RuntimeException("pa and pb have different length.");
+    }
+    for (int i = 0; i < pa.length; i++) {
+      if (pa[i] > 0) {
+        d += pa[i] * Math.log(pa[i] / pb[i]);
+      }
+    }
+    return d;
   }
   
+  /**
+   * Jensen-Shannon divergence in nats, between 0 and log(2).
+   */
   public static double JSDivergence(double [] pa, double [] pb) {
-    return 0.0;
+    double d = 0.0;
+    if (pa.length != pb.length) {
+      throw new RuntimeException("pa and pb have different length.");
+    }
+    for (int i = 0; i < pa.length; i++) {
+      double m = (pa[i] + pb[i]) / 2;
+      if (pa[i] > 0) {
+        d += pa[i] * Math.log(pa[i] / m);
+      }
+      if (pb[i] > 0) {
+        d += pb[i] * Math.log(pb[i] / m);
+      }
+    }
+    return d / 2;
+  }
+  
+  /**
+   * Hellinger distance, sqrt(1/2 * sum (sqrt(pa) - sqrt(pb))^2), between 0
+   * and 1. It is the Euclidean distance of the square-root vectors, which
+   * TopicVectorIndex relies on.
+   */
+  public static double HellingerDistance(double [] pa, double [] pb) {
+    double d = 0.0;
+    if (pa.length != pb.length) {
+      throw new RuntimeException("pa and pb have different length.");
+    }
+    for (int i = 0; i < pa.length; i++) {
+      double diff = Math.sqrt(pa[i]) - Math.sqrt(pb[i]);
+      d += diff * diff;
+    }
+    return Math.sqrt(d / 2);
   }
   
   public static double EuclideanDistance(double [] pa, double [] pb) {
@@ -0,0 +1,259 @@
+package org.thunlp.learning.lda;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Collapsed Gibbs sampler using the bucket decomposition of SparseLDA (Yao,
+ * Mimno and McCallum, 2009). The conditional of a token is
+ *
+ *   p(z=k) ~ (n(d,k) + alpha) * (n(w,k) + beta) / (n(k) + V * beta)
+ *          = alpha * beta / (n(k) + V * beta)                  [smoothing, s]
+ *          + n(d,k) * beta / (n(k) + V * beta)                 [document, r]
+ *          + (n(d,k) + alpha) * n(w,k) / (n(k) + V * beta)     [topic-word, q]
+ *
+ * s only changes when n(k) changes, r only has mass on topics in the
+ * document, and q only has mass on topics of the word. We keep s, r and the
+ * per-topic coefficient (n(d,k) + alpha) / (n(k) + V * beta) up to date
+ * incrementally, and keep a list of non-zero topics for each word and for the
+ * current document, so the cost of a token depends on the number of non-zero
+ * topics instead of the number of topics.
+ *
+ * The sampler works on the nwz and nz counts of its owner in place.
+ */
+public class SparseGibbsSampler {
+  private int numTopics;
+  private double alpha;
+  private double beta;
+  private double betaSum;
+  private WordTopicCounts nwz;
+  private int [] nz;
+  private Random random;
+
+  // Non-zero topics of each word, unordered.
+  private int [][] wordTopics;
+  private int [] wordTopicsSize;
+
+  // State of the document being sampled.
+  private int [] ndz;
+  private int [] docTopics;
+  private int docTopicsSize;
+
+  private double [] coefficient;
+  private double [] qValues;
+  private double smoothingMass;
+  private double documentMass;
+
+  public SparseGibbsSampler(
+      WordTopicCounts nwz,
+      int [] nz,
+      int numTopics,
+      double alpha,
+      double beta,
+      Random random) {
+    this.nwz = nwz;
+    this.nz = nz;
+    this.numTopics = numTopics;
+    this.alpha = alpha;
+    this.beta = beta;
+    this.betaSum = nwz.getNumWords() * beta;
+    this.random = random;
+    ndz = new int[numTopics];
+    docTopics = new int[numTopics];
+    coefficient = new double[numTopics];
+    qValues = new double[numTopics];
+    buildWordTopics();
+    resetCache();
+  }
+
+  private void buildWordTopics() {
+    int numWords = nwz.getNumWords();
+    int [] counts = new int[numTopics];
+    wordTopics = new int[numWords][];
+    wordTopicsSize = new int[numWords];
+    for (int w = 0; w < numWords; w++) {
+      nwz.getRow(w, counts);
+      int size = 0;
+      for (int k = 0; k < numTopics; k++) {
+        if (counts[k] != 0) {
+          size++;
+        }
+      }
+      int [] topics = new int[Math.max(size, 1)];
+      size = 0;
+      for (int k = 0; k < numTopics; k++) {
+        if (counts[k] != 0) {
+          topics[size++] = k;
+        }
+      }
+      wordTopics[w] = topics;
+      wordTopicsSize[w] = size;
+    }
+  }
+
+  /**
+   * Recompute the smoothing bucket and the coefficients from scratch. Called
+   * once per document, which also keeps floating point drift of the
+   * incrementally maintained smoothing mass bounded.
+   */
+  private void resetCache() {
+    smoothingMass = 0.0;
+    for (int k = 0; k < numTopics; k++) {
+      double denominator = nz[k] + betaSum;
+      smoothingMass += alpha * beta / denominator;
+      coefficient[k] = alpha / denominator;
+    }
+  }
+
+  /**
+   * Resample all topics of the document, updating the counts in place.
+   * @return The sum of the normalization factors of all tokens, the same
+   * quantity as GibbsSamplingReducer.computeSamplingProbability returns.
+   */
+  public double sampleDocument(DocumentWritable doc) {
+    resetCache();
+    Arrays.fill(ndz, 0);
+    docTopicsSize = 0;
+    for (int i = 0; i < doc.getNumWords(); i++) {
+      int topic = doc.topics[i];
+      if (ndz[topic] == 0) {
+        docTopics[docTopicsSize++] = topic;
+      }
+      ndz[topic]++;
+    }
+    documentMass = 0.0;
+    for (int i = 0; i < docTopicsSize; i++) {
+      int k = docTopics[i];
+      double denominator = nz[k] + betaSum;
+      documentMass += ndz[k] * beta / denominator;
+      coefficient[k] = (ndz[k] + alpha) / denominator;
+    }
+
+    double likelihood = 0.0;
+    for (int i = 0; i < doc.getNumWords(); i++) {
+      int word = doc.words[i];
+      int topic = doc.topics[i];
+      removeToken(word, topic);
+      likelihood += sampleToken(word, doc, i);
+      addToken(word, doc.topics[i]);
+    }
+
+    // Restore the document independent coefficients.
+    for (int i = 0; i < docTopicsSize; i++) {
+      int k = docTopics[i];
+      coefficient[k] = alpha / (nz[k] + betaSum);
+    }
+    return likelihood;
+  }
+
+  private double sampleToken(int word, DocumentWritable doc, int position) {
+    int [] topics = wordTopics[word];
+    int size = wordTopicsSize[word];
+    double topicWordMass = 0.0;
+    for (int i = 0; i < size; i++) {
+      int k = topics[i];
+      double q = coefficient[k] * nwz.get(word, k);
+      qValues[i] = q;
+      topicWordMass += q;
+    }
+    double total = smoothingMass + documentMass + topicWordMass;
+    double sample = random.nextDouble() * total;
+    int newTopic = -1;
+
+    if (sample < topicWordMass) {
+      for (int i = 0; i < size; i++) {
+        sample -= qValues[i];
+        if (sample <= 0) {
+          newTopic = topics[i];
+          break;
+        }
+      }
+      if (newTopic < 0) {
+        newTopic = topics[size - 1];
+      }
+    } else {
+      sample -= topicWordMass;
+      if (sample < documentMass) {
+        for (int i = 0; i < docTopicsSize; i++) {
+          int k = docTopics[i];
+          sample -= ndz[k] * beta / (nz[k] + betaSum);
+          if (sample <= 0) {
+            newTopic = k;
+            break;
+          }
+        }
+      } else {
+        sample -= documentMass;
+        for (int k = 0; k < numTopics; k++) {
+          sample -= alpha * beta / (nz[k] + betaSum);
+          if (sample <= 0) {
+            newTopic = k;
+            break;
+          }
+        }
+      }
+      // Rounding error pushed us past the end of a bucket.
+      if (newTopic < 0) {
+        newTopic = docTopicsSize > 0 ?
+            docTopics[docTopicsSize - 1] : numTopics - 1;
+      }
+    }
+    doc.topics[position] = newTopic;
+    return total;
+  }
+
+  private void removeToken(int word, int topic) {
+    double denominator = nz[topic] + betaSum;
+    smoothingMass -= alpha * beta / denominator;
+    documentMass -= ndz[topic] * beta / denominator;
+    nz[topic]--;
+    ndz[topic]--;
+    int count = nwz.add(word, topic, -1);
+    denominator = nz[topic] + betaSum;
+    smoothingMass += alpha * beta / denominator;
+    documentMass += ndz[topic] * beta / denominator;
+    coefficient[topic] = (ndz[topic] + alpha) / denominator;
+    if (ndz[topic] == 0) {
+      removeFromList(docTopics, docTopicsSize, topic);
+      docTopicsSize--;
+    }
+    if (count == 0) {
+      removeFromList(wordTopics[word], wordTopicsSize[word], topic);
+      wordTopicsSize[word]--;
+    }
+  }
+
+  private void addToken(int word, int topic) {
+    double denominator = nz[topic] + betaSum;
+    smoothingMass -= alpha * beta / denominator;
+    documentMass -= ndz[topic] * beta / denominator;
+    if (ndz[topic] == 0) {
+      docTopics[docTopicsSize++] = topic;
+    }
+    if (nwz.get(word, topic) == 0) {
+      int size = wordTopicsSize[word];
+      if (wordTopics[word].length == size) {
+        wordTopics[word] = Arrays.copyOf(
+            wordTopics[word], Math.min(numTopics, size * 2 + 1));
+      }
+      wordTopics[word][size] = topic;
+      wordTopicsSize[word]++;
+    }
+    nz[topic]++;
+    ndz[topic]++;
+    nwz.add(word, topic, 1);
+    denominator = nz[topic] + betaSum;
+    smoothingMass += alpha * beta / denominator;
+    documentMass += ndz[topic] * beta / denominator;
+    coefficient[topic] = (ndz[topic] + alpha) / denominator;
+  }
+
+  private static void removeFromList(int [] list, int size, int value) {
+    for (int i = 0; i < size; i++) {
+      if (list[i] == value) {
+        list[i] = list[size - 1];
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package org.thunlp.learning.lda;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Term frequency and document frequency of a word, as two variable-length
+ * longs. See WordListMapper.
+ */
+public class TfDfWritable implements Writable {
+  private long tf;
+  private long df;
+
+  public TfDfWritable() {
+  }
+
+  public TfDfWritable(long tf, long df) {
+    set(tf, df);
+  }
+
+  public void set(long tf, long df) {
+    this.tf = tf;
+    this.df = df;
+  }
+
+  public void add(TfDfWritable other) {
+    tf += other.tf;
+    df += other.df;
+  }
+
+  public long getTf() {
+    return tf;
+  }
+
+  public long getDf() {
+    return df;
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    tf = WritableUtils.readVLong(in);
+    df = WritableUtils.readVLong(in);
+  }
+
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVLong(out, tf);
+    WritableUtils.writeVLong(out, df);
+  }
+
+  public String toString() {
+    return tf + " " + df;
+  }
+}
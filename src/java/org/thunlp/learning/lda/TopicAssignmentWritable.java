@@ -0,0 +1,144 @@
+package org.thunlp.learning.lda;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * The topics of one document, without its words. Used by the split document
+ * layout, where the words of all documents are written once by InitModelTool
+ * and every iteration only rewrites the topics, see GibbsSamplingReducer.
+ *
+ * The sequence number tells apart documents with the same key, and fixes
+ * their order when they are joined with the words again.
+ *
+ * Format: varint sequence, varint number of topics, the number of bytes per
+ * topic (1, 2, or 0 for varint), then the topics.
+ */
+public class TopicAssignmentWritable implements Writable {
+  public int [] topics = new int[0];
+  private int numTopics = 0;
+  private int sequence = 0;
+  private byte [] buffer = new byte[1024];
+
+  /**
+   * The file holding the words of the documents of the current reduce
+   * partition, under the words directory of the split layout.
+   */
+  public static Path wordsPart(String wordsDir, JobConf conf) {
+    return new Path(wordsDir,
+        String.format("part-%05d", conf.getInt("mapred.task.partition", 0)));
+  }
+
+  public int getSequence() {
+    return sequence;
+  }
+
+  public void setSequence(int sequence) {
+    this.sequence = sequence;
+  }
+
+  public int getNumTopics() {
+    return numTopics;
+  }
+
+  public void setNumTopics(int n) {
+    if (topics.length < n) {
+      topics = new int[n];
+    }
+    numTopics = n;
+  }
+
+  /**
+   * Take the topics of a document.
+   */
+  public void set(DocumentWritable doc) {
+    setNumTopics(doc.getNumWords());
+    System.arraycopy(doc.topics, 0, topics, 0, numTopics);
+  }
+
+  public void set(TopicAssignmentWritable other) {
+    setNumTopics(other.numTopics);
+    System.arraycopy(other.topics, 0, topics, 0, numTopics);
+    sequence = other.sequence;
+  }
+
+  public void readFields(DataInput input) throws IOException {
+    sequence = WritableUtils.readVInt(input);
+    setNumTopics(WritableUtils.readVInt(input));
+    int topicBytes = input.readByte();
+    if (topicBytes == 0) {
+      for (int i = 0; i < numTopics; i++) {
+        topics[i] = WritableUtils.readVInt(input);
+      }
+      return;
+    }
+    int size = numTopics * topicBytes;
+    if (buffer.length < size) {
+      buffer = new byte[size + 1024];
+    }
+    input.readFully(buffer, 0, size);
+    for (int i = 0; i < numTopics; i++) {
+      if (topicBytes == 1) {
+        topics[i] = buffer[i] & 0xFF;
+      } else {
+        topics[i] = ((buffer[i * 2] & 0xFF) << 8) + (buffer[i * 2 + 1] & 0xFF);
+      }
+    }
+  }
+
+  public void write(DataOutput output) throws IOException {
+    int maxTopic = 0;
+    int minTopic = 0;
+    for (int i = 0; i < numTopics; i++) {
+      maxTopic = Math.max(maxTopic, topics[i]);
+      minTopic = Math.min(minTopic, topics[i]);
+    }
+    int topicBytes = 0;
+    if (minTopic < 0) {
+      topicBytes = 0;
+    } else if (maxTopic < (1 << 8)) {
+      topicBytes = 1;
+    } else if (maxTopic < (1 << 16)) {
+      topicBytes = 2;
+    }
+    WritableUtils.writeVInt(output, sequence);
+    WritableUtils.writeVInt(output, numTopics);
+    output.writeByte(topicBytes);
+    if (topicBytes == 0) {
+      for (int i = 0; i < numTopics; i++) {
+        WritableUtils.writeVInt(output, topics[i]);
+      }
+      return;
+    }
+    int size = numTopics * topicBytes;
+    if (buffer.length < size) {
+      buffer = new byte[size + 1024];
+    }
+    for (int i = 0; i < numTopics; i++) {
+      if (topicBytes == 1) {
+        buffer[i] = (byte) topics[i];
+      } else {
+        buffer[i * 2] = (byte) (topics[i] >>> 8);
+        buffer[i * 2 + 1] = (byte) topics[i];
+      }
+    }
+    output.write(buffer, 0, size);
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(sequence);
+    sb.append(":");
+    for (int i = 0; i < numTopics; i++) {
+      sb.append(i > 0 ? " " : "");
+      sb.append(topics[i]);
+    }
+    return sb.toString();
+  }
+}
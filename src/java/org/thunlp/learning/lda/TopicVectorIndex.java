@@ -0,0 +1,511 @@
+package org.thunlp.learning.lda;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.thunlp.misc.AnyDoublePair;
+import org.thunlp.tool.StringUtil;
+
+/**
+ * Approximate nearest neighbor index over document-topic distributions,
+ * under the Hellinger distance.
+ *
+ * The Hellinger distance of two distributions is the Euclidean distance of
+ * their square roots, which all lie on the unit sphere. The index therefore
+ * hashes sqrt(p), centered on the mean of the indexed documents, with
+ * random-hyperplane LSH: each of numTables tables signs the projection on
+ * numBits Gaussian hyperplanes. A query probes its own bucket and the buckets
+ * of its least confident bits in every table, and the candidates are reranked
+ * by their exact Hellinger distance.
+ *
+ * Vectors are stored sparsely, as the top topics written by InferenceTool,
+ * in slots of the size of the longest vector. The index is written by Builder
+ * and memory-mapped read-only by load. All numbers are big-endian:
+ *   int magic, int numTopics, int numDocs, int numTables, int numBits,
+ *   int slotSize
+ *   float[numTopics] mean of sqrt(p)
+ *   float[numTables * numBits][numTopics] hyperplanes
+ *   int[numDocs + 1] offsets of doc ids in the pool
+ *   byte[] UTF-8 doc id pool, padded to 4 bytes
+ *   for each table: int[numDocs] sorted signatures, int[numDocs] docs
+ *   for each doc: int[slotSize] topics (-1 for unused), float[slotSize]
+ *   sqrt(p)
+ *
+ * A loaded index is read-only, queries are thread-safe.
+ */
+public class TopicVectorIndex {
+  public static int INDEX_MAGIC = 0x4C444149;  // "LDAI"
+  private static int HEADER_SIZE = 24;
+  private static int MAX_CHUNK_BYTES = 1 << 30;
+
+  private int numTopics;
+  private int numDocs;
+  private int numTables;
+  private int numBits;
+  private int slotSize;
+  private float [] planes;
+  // Projection of the mean on each hyperplane.
+  private double [] planeOffsets;
+  private IntBuffer docIdOffsets;
+  private ByteBuffer docIdPool;
+  private IntBuffer [] signatures;
+  private IntBuffer [] docs;
+  private IntBuffer [] vectorChunks;
+  private int docsPerChunk;
+
+  private int numProbes = 4;
+  private int maxCandidates = 2000;
+
+  private TopicVectorIndex() {
+  }
+
+  /**
+   * Number of extra buckets to probe in each table, flipping the bits whose
+   * projections are closest to their hyperplanes.
+   */
+  public void setNumProbes(int numProbes) {
+    this.numProbes = Math.min(numProbes, numBits);
+  }
+
+  /**
+   * Stop collecting candidates after this many, before reranking.
+   */
+  public void setMaxCandidates(int maxCandidates) {
+    this.maxCandidates = maxCandidates;
+  }
+
+  public int getNumDocs() {
+    return numDocs;
+  }
+
+  public int getNumTopics() {
+    return numTopics;
+  }
+
+  public String getDocId(int doc) {
+    int start = docIdOffsets.get(doc);
+    byte [] bytes = new byte[docIdOffsets.get(doc + 1) - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = docIdPool.get(start + i);
+    }
+    return StringUtil.fromUtf8(bytes);
+  }
+
+  /**
+   * The stored topic distribution of a document, 0 for dropped topics.
+   */
+  public void getVector(int doc, double [] p) {
+    Arrays.fill(p, 0.0);
+    IntBuffer chunk = vectorChunks[doc / docsPerChunk];
+    int base = (doc % docsPerChunk) * slotSize * 2;
+    for (int i = 0; i < slotSize; i++) {
+      int topic = chunk.get(base + i);
+      if (topic < 0) {
+        break;
+      }
+      double s = Float.intBitsToFloat(chunk.get(base + slotSize + i));
+      p[topic] = s * s;
+    }
+  }
+
+  /**
+   * Approximate k nearest documents of a topic distribution.
+   * @return Pairs of doc id and Hellinger distance, nearest first.
+   */
+  public AnyDoublePair<String> [] query(double [] p, int k) {
+    return query(p, k, -1);
+  }
+
+  /**
+   * Approximate k nearest documents of an indexed document, excluding itself.
+   */
+  public AnyDoublePair<String> [] query(int doc, int k) {
+    double [] p = new double[numTopics];
+    getVector(doc, p);
+    return query(p, k, doc);
+  }
+
+  private AnyDoublePair<String> [] query(double [] p, int k, int exclude) {
+    double [] q = new double[numTopics];
+    int [] nonZeros = new int[numTopics];
+    int numNonZeros = 0;
+    double queryNorm = 0.0;
+    for (int t = 0; t < numTopics; t++) {
+      if (p[t] > 0) {
+        q[t] = Math.sqrt(p[t]);
+        nonZeros[numNonZeros++] = t;
+        queryNorm += p[t];
+      }
+    }
+
+    int [] candidates = new int[maxCandidates];
+    int numCandidates = 0;
+    double [] projections = new double[numBits];
+    Integer [] order = new Integer[numBits];
+    for (int table = 0; table < numTables && numCandidates < maxCandidates;
+        table++) {
+      int signature = 0;
+      for (int b = 0; b < numBits; b++) {
+        int plane = table * numBits + b;
+        double dot = -planeOffsets[plane];
+        for (int i = 0; i < numNonZeros; i++) {
+          dot += planes[plane * numTopics + nonZeros[i]] * q[nonZeros[i]];
+        }
+        projections[b] = dot;
+        order[b] = b;
+        if (dot > 0) {
+          signature |= 1 << b;
+        }
+      }
+      final double [] margins = projections;
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Double.compare(Math.abs(margins[a]), Math.abs(margins[b]));
+        }
+      });
+      for (int probe = 0; probe <= numProbes; probe++) {
+        int probed =
+          probe == 0 ? signature : signature ^ (1 << order[probe - 1]);
+        numCandidates = collect(table, probed, candidates, numCandidates);
+      }
+    }
+
+    // Rerank the unique candidates by exact distance, keeping the k nearest
+    // in increasing order.
+    Arrays.sort(candidates, 0, numCandidates);
+    int [] nearest = new int[Math.max(k, 0)];
+    double [] distances = new double[nearest.length];
+    int size = 0;
+    for (int i = 0; i < numCandidates; i++) {
+      int doc = candidates[i];
+      if ((i > 0 && doc == candidates[i - 1]) || doc == exclude) {
+        continue;
+      }
+      double d = distance(doc, q, queryNorm);
+      if (size == nearest.length && (size == 0 || d >= distances[size - 1])) {
+        continue;
+      }
+      int j = size < nearest.length ? size++ : size - 1;
+      while (j > 0 && distances[j - 1] > d) {
+        nearest[j] = nearest[j - 1];
+        distances[j] = distances[j - 1];
+        j--;
+      }
+      nearest[j] = doc;
+      distances[j] = d;
+    }
+
+    // Arrays of a generic type can not be created, the raw array only ever
+    // holds AnyDoublePair<String>.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    AnyDoublePair<String> [] results = new AnyDoublePair[size];
+    for (int i = 0; i < size; i++) {
+      results[i] =
+        new AnyDoublePair<String>(getDocId(nearest[i]), distances[i]);
+    }
+    return results;
+  }
+
+  /**
+   * Append the docs in the bucket of a signature to candidates.
+   */
+  private int collect(int table, int signature, int [] candidates, int size) {
+    IntBuffer sorted = signatures[table];
+    int low = 0;
+    int high = numDocs;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sorted.get(mid) < signature) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    IntBuffer bucket = docs[table];
+    for (int i = low; i < numDocs && sorted.get(i) == signature; i++) {
+      if (size == candidates.length) {
+        break;
+      }
+      candidates[size++] = bucket.get(i);
+    }
+    return size;
+  }
+
+  /**
+   * Hellinger distance between a stored document and the query, given the
+   * square roots q of the query and its total probability.
+   */
+  private double distance(int doc, double [] q, double queryNorm) {
+    IntBuffer chunk = vectorChunks[doc / docsPerChunk];
+    int base = (doc % docsPerChunk) * slotSize * 2;
+    double dot = 0.0;
+    double norm = 0.0;
+    for (int i = 0; i < slotSize; i++) {
+      int topic = chunk.get(base + i);
+      if (topic < 0) {
+        break;
+      }
+      double s = Float.intBitsToFloat(chunk.get(base + slotSize + i));
+      dot += s * q[topic];
+      norm += s * s;
+    }
+    return Math.sqrt(Math.max(0.0, (norm + queryNorm - 2 * dot) / 2));
+  }
+
+  public static TopicVectorIndex load(String indexFile) throws IOException {
+    TopicVectorIndex index = new TopicVectorIndex();
+    RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+    FileChannel channel = file.getChannel();
+    try {
+      IntBuffer header = channel.map(
+          FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).asIntBuffer();
+      if (header.get(0) != INDEX_MAGIC) {
+        throw new IOException(indexFile + " is not a topic vector index.");
+      }
+      index.numTopics = header.get(1);
+      index.numDocs = header.get(2);
+      index.numTables = header.get(3);
+      index.numBits = header.get(4);
+      index.slotSize = header.get(5);
+      int numTopics = index.numTopics;
+      int numDocs = index.numDocs;
+      int numPlanes = index.numTables * index.numBits;
+
+      long position = HEADER_SIZE;
+      long size = (long) (numTopics + numPlanes * numTopics) * 4;
+      IntBuffer floats = channel.map(
+          FileChannel.MapMode.READ_ONLY, position, size).asIntBuffer();
+      float [] mean = new float[numTopics];
+      for (int t = 0; t < numTopics; t++) {
+        mean[t] = Float.intBitsToFloat(floats.get(t));
+      }
+      index.planes = new float[numPlanes * numTopics];
+      index.planeOffsets = new double[numPlanes];
+      for (int i = 0; i < index.planes.length; i++) {
+        index.planes[i] = Float.intBitsToFloat(floats.get(numTopics + i));
+        index.planeOffsets[i / numTopics] +=
+          index.planes[i] * mean[i % numTopics];
+      }
+      position += size;
+
+      size = (long) (numDocs + 1) * 4;
+      index.docIdOffsets = channel.map(
+          FileChannel.MapMode.READ_ONLY, position, size).asIntBuffer();
+      position += size;
+      int poolSize = index.docIdOffsets.get(numDocs);
+      index.docIdPool = channel.map(
+          FileChannel.MapMode.READ_ONLY, position, poolSize);
+      position += (poolSize + 3) / 4 * 4;
+
+      size = (long) numDocs * 4;
+      index.signatures = new IntBuffer[index.numTables];
+      index.docs = new IntBuffer[index.numTables];
+      for (int table = 0; table < index.numTables; table++) {
+        index.signatures[table] = channel.map(
+            FileChannel.MapMode.READ_ONLY, position, size).asIntBuffer();
+        position += size;
+        index.docs[table] = channel.map(
+            FileChannel.MapMode.READ_ONLY, position, size).asIntBuffer();
+        position += size;
+      }
+
+      int slotBytes = index.slotSize * 8;
+      index.docsPerChunk = Math.max(1, MAX_CHUNK_BYTES / slotBytes);
+      int numChunks = (numDocs + index.docsPerChunk - 1) / index.docsPerChunk;
+      index.vectorChunks = new IntBuffer[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+        int rows =
+          Math.min(index.docsPerChunk, numDocs - i * index.docsPerChunk);
+        index.vectorChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+            position, (long) rows * slotBytes).asIntBuffer();
+        position += (long) rows * slotBytes;
+      }
+    } finally {
+      channel.close();
+      file.close();
+    }
+    index.numProbes = Math.min(index.numProbes, index.numBits);
+    return index;
+  }
+
+  /**
+   * Collects sparse topic vectors in memory, then writes the index.
+   */
+  public static class Builder {
+    private int numTables;
+    private int numBits;
+    private long seed;
+    private int maxTopic = -1;
+    private int slotSize = 0;
+    private List<String> ids = new ArrayList<String>();
+    // Vector i is topics/values[starts[i] .. starts[i + 1]).
+    private int [] starts = new int[1024];
+    private int [] topics = new int[1024];
+    private float [] values = new float[1024];
+    private int size = 0;
+
+    /**
+     * @param numBits Bits per table signature, at most 31.
+     */
+    public Builder(int numTables, int numBits, long seed) {
+      if (numBits < 1 || numBits > 31) {
+        throw new IllegalArgumentException("numBits must be in [1, 31].");
+      }
+      this.numTables = numTables;
+      this.numBits = numBits;
+      this.seed = seed;
+    }
+
+    public int getNumDocs() {
+      return ids.size();
+    }
+
+    /**
+     * Add a document with probability p[i] on topic topicIds[i].
+     */
+    public void add(String id, int [] topicIds, double [] p, int length) {
+      int doc = ids.size();
+      ids.add(id);
+      if (doc + 1 >= starts.length) {
+        starts = Arrays.copyOf(starts, starts.length * 2);
+      }
+      if (size + length > topics.length) {
+        int capacity = Math.max(topics.length * 2, size + length);
+        topics = Arrays.copyOf(topics, capacity);
+        values = Arrays.copyOf(values, capacity);
+      }
+      for (int i = 0; i < length; i++) {
+        topics[size + i] = topicIds[i];
+        values[size + i] = (float) Math.sqrt(p[i]);
+        maxTopic = Math.max(maxTopic, topicIds[i]);
+      }
+      size += length;
+      starts[doc + 1] = size;
+      slotSize = Math.max(slotSize, length);
+    }
+
+    /**
+     * Add a document in the "topic:p topic:p ..." format of InferenceTool.
+     */
+    public void add(String id, String topicVector) {
+      String [] cols = topicVector.trim().split(" +");
+      int [] topicIds = new int[cols.length];
+      double [] p = new double[cols.length];
+      int length = 0;
+      for (String col : cols) {
+        int colon = col.indexOf(':');
+        if (colon < 0) {
+          continue;
+        }
+        topicIds[length] = Integer.parseInt(col.substring(0, colon));
+        p[length] = Double.parseDouble(col.substring(colon + 1));
+        length++;
+      }
+      add(id, topicIds, p, length);
+    }
+
+    /**
+     * @param numTopics Number of topics of the model, or 0 to use the largest
+     * topic seen.
+     */
+    public void write(OutputStream output, int numTopics) throws IOException {
+      numTopics = Math.max(numTopics, maxTopic + 1);
+      int numDocs = ids.size();
+      int numPlanes = numTables * numBits;
+      slotSize = Math.max(slotSize, 1);
+
+      float [] mean = new float[numTopics];
+      for (int i = 0; i < size; i++) {
+        mean[topics[i]] += values[i];
+      }
+      for (int t = 0; t < numTopics; t++) {
+        mean[t] /= Math.max(numDocs, 1);
+      }
+      Random random = new Random(seed);
+      float [] planes = new float[numPlanes * numTopics];
+      double [] planeOffsets = new double[numPlanes];
+      for (int i = 0; i < planes.length; i++) {
+        planes[i] = (float) random.nextGaussian();
+        planeOffsets[i / numTopics] += planes[i] * mean[i % numTopics];
+      }
+
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(output, 1 << 20));
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(numTopics);
+      out.writeInt(numDocs);
+      out.writeInt(numTables);
+      out.writeInt(numBits);
+      out.writeInt(slotSize);
+      for (int t = 0; t < numTopics; t++) {
+        out.writeFloat(mean[t]);
+      }
+      for (int i = 0; i < planes.length; i++) {
+        out.writeFloat(planes[i]);
+      }
+
+      byte [][] encoded = new byte[numDocs][];
+      int offset = 0;
+      for (int d = 0; d < numDocs; d++) {
+        encoded[d] = StringUtil.toUtf8(ids.get(d));
+        out.writeInt(offset);
+        offset += encoded[d].length;
+      }
+      out.writeInt(offset);
+      for (int d = 0; d < numDocs; d++) {
+        out.write(encoded[d]);
+      }
+      for (int i = offset; i % 4 != 0; i++) {
+        out.writeByte(0);
+      }
+      encoded = null;
+
+      long [] keys = new long[numDocs];
+      for (int table = 0; table < numTables; table++) {
+        for (int d = 0; d < numDocs; d++) {
+          long signature = 0;
+          for (int b = 0; b < numBits; b++) {
+            int plane = table * numBits + b;
+            double dot = -planeOffsets[plane];
+            for (int i = starts[d]; i < starts[d + 1]; i++) {
+              dot += planes[plane * numTopics + topics[i]] * values[i];
+            }
+            if (dot > 0) {
+              signature |= 1L << b;
+            }
+          }
+          keys[d] = (signature << 32) | d;
+        }
+        Arrays.sort(keys);
+        for (int d = 0; d < numDocs; d++) {
+          out.writeInt((int) (keys[d] >>> 32));
+        }
+        for (int d = 0; d < numDocs; d++) {
+          out.writeInt((int) keys[d]);
+        }
+      }
+
+      for (int d = 0; d < numDocs; d++) {
+        int length = starts[d + 1] - starts[d];
+        for (int i = 0; i < slotSize; i++) {
+          out.writeInt(i < length ? topics[starts[d] + i] : -1);
+        }
+        for (int i = 0; i < slotSize; i++) {
+          out.writeFloat(i < length ? values[starts[d] + i] : 0.0f);
+        }
+      }
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package org.thunlp.learning.lda;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.thunlp.misc.AnyDoublePair;
+import org.thunlp.misc.Flags;
+import org.thunlp.tool.FolderReader;
+import org.thunlp.tool.GenericTool;
+
+/**
+ * Build a TopicVectorIndex from the output of InferenceTool, or query the
+ * nearest neighbors of a document in an index.
+ */
+public class TopicVectorIndexTool implements GenericTool {
+  private static Logger LOG = Logger.getAnonymousLogger();
+
+  public void run(String[] args) throws Exception {
+    Flags flags = new Flags();
+    flags.add("index", "Local index file.");
+    flags.addWithDefaultValue(
+        "input", "", "output of InferenceTool to build the index from.");
+    flags.addWithDefaultValue(
+        "num_topics", "0", "number of topics, 0 to guess from the input.");
+    flags.addWithDefaultValue(
+        "num_tables", "8", "LSH tables. [default 8]");
+    flags.addWithDefaultValue(
+        "num_bits", "16", "hyperplanes per LSH table, at most 31. " +
+        "[default 16]");
+    flags.addWithDefaultValue("seed", "0", "seed of the hyperplanes.");
+    flags.addWithDefaultValue(
+        "query", "", "print the nearest neighbors of this indexed document.");
+    flags.addWithDefaultValue("k", "10", "number of neighbors. [default 10]");
+    flags.parseAndCheck(args);
+
+    String index = flags.getString("index");
+    if (flags.getString("input").length() > 0) {
+      buildIndex(new Path(flags.getString("input")), index,
+          flags.getInt("num_topics"), flags.getInt("num_tables"),
+          flags.getInt("num_bits"), flags.getInt("seed"));
+    }
+    if (flags.getString("query").length() > 0) {
+      printNeighbors(index, flags.getString("query"), flags.getInt("k"));
+    }
+  }
+
+  public void buildIndex(Path input, String index, int numTopics,
+      int numTables, int numBits, long seed) throws IOException {
+    TopicVectorIndex.Builder builder =
+      new TopicVectorIndex.Builder(numTables, numBits, seed);
+    FolderReader reader = new FolderReader(input);
+    Text key = new Text();
+    Text value = new Text();
+    while (reader.next(key, value)) {
+      builder.add(key.toString(), value.toString());
+    }
+    reader.close();
+    LOG.info("Index " + builder.getNumDocs() + " documents.");
+    OutputStream out = new FileOutputStream(index);
+    builder.write(out, numTopics);
+    out.close();
+  }
+
+  private void printNeighbors(String indexFile, String docId, int k)
+  throws IOException {
+    TopicVectorIndex index = TopicVectorIndex.load(indexFile);
+    for (int d = 0; d < index.getNumDocs(); d++) {
+      if (index.getDocId(d).equals(docId)) {
+        for (AnyDoublePair<String> neighbor : index.query(d, k)) {
+          System.out.println(neighbor.first + " " + neighbor.second);
+        }
+        return;
+      }
+    }
+    System.out.println(docId + " is not in the index.");
+  }
+}
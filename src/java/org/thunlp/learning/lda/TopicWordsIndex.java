@@ -0,0 +1,292 @@
+package org.thunlp.learning.lda;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The top words of every topic, ranked by log(p(w|z) + 1) * p(z|w) as
+ * LdaModel.explain does.
+ *
+ * The index is built in one pass over the vocabulary, which fills a bounded
+ * min-heap per topic for all topics at once. With several threads, each
+ * thread scans a range of the vocabulary into its own heaps, and the heaps
+ * are merged at the end.
+ *
+ * ExportModelTool saves the index next to the model as a text file with a
+ * ".topics" suffix:
+ *   numTopics size
+ *   word score word score ...   (one line per topic, best first)
+ */
+public class TopicWordsIndex {
+  public static String TOPICS_SUFFIX = ".topics";
+
+  private String [][] words;
+  private double [][] scores;
+  private int size;
+
+  /**
+   * Word-topic counts to build the index from.
+   */
+  public static abstract class Counts {
+    public abstract int getNumWords();
+    public abstract int getNumTopics();
+    public abstract void getRow(int word, int [] counts);
+    public abstract String getWord(int word);
+  }
+
+  private TopicWordsIndex(int numTopics, int size) {
+    this.size = size;
+    words = new String[numTopics][];
+    scores = new double[numTopics][];
+  }
+
+  public int getNumTopics() {
+    return words.length;
+  }
+
+  /**
+   * Maximum number of words kept for each topic.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Top words of a topic, best first. May hold less than getSize() words
+   * when the vocabulary is small.
+   */
+  public String [] getWords(int topic) {
+    return words[topic];
+  }
+
+  public double [] getScores(int topic) {
+    return scores[topic];
+  }
+
+  /**
+   * @param topicSum Number of tokens assigned to each topic.
+   * @param smoothing Smoothing count added to every word-topic count, n * beta
+   * for a model accumulated over n iterations.
+   * @param size Number of words to keep for each topic.
+   */
+  public static TopicWordsIndex build(
+      final Counts counts,
+      final int [] topicSum,
+      final double smoothing,
+      int size,
+      int numThreads) throws IOException {
+    final int numTopics = counts.getNumTopics();
+    final int numWords = counts.getNumWords();
+    numThreads = Math.max(1, Math.min(numThreads, numWords / 1024 + 1));
+    final Heaps [] partial = new Heaps[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      partial[t] = new Heaps(numTopics, size);
+    }
+
+    if (numThreads == 1) {
+      scan(counts, topicSum, smoothing, 0, numWords, partial[0]);
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      List<Future<Object>> results = new ArrayList<Future<Object>>();
+      for (int t = 0; t < numThreads; t++) {
+        final Heaps heaps = partial[t];
+        final int begin = (int) ((long) numWords * t / numThreads);
+        final int end = (int) ((long) numWords * (t + 1) / numThreads);
+        results.add(executor.submit(new Callable<Object>() {
+          public Object call() {
+            scan(counts, topicSum, smoothing, begin, end, heaps);
+            return null;
+          }
+        }));
+      }
+      try {
+        for (Future<Object> result : results) {
+          result.get();
+        }
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while building topic words.");
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      } finally {
+        executor.shutdown();
+      }
+      for (int t = 1; t < numThreads; t++) {
+        partial[0].merge(partial[t]);
+      }
+    }
+
+    Heaps heaps = partial[0];
+    TopicWordsIndex index = new TopicWordsIndex(numTopics, size);
+    for (int k = 0; k < numTopics; k++) {
+      int n = heaps.sizes[k];
+      index.words[k] = new String[n];
+      index.scores[k] = new double[n];
+      // Pop the minimum into the last free slot, so the result is best first.
+      for (int i = n - 1; i >= 0; i--) {
+        int base = k * size;
+        index.words[k][i] = counts.getWord(heaps.words[base]);
+        index.scores[k][i] = heaps.scores[base];
+        heaps.pop(k);
+      }
+    }
+    return index;
+  }
+
+  private static void scan(Counts counts, int [] topicSum, double smoothing,
+      int begin, int end, Heaps heaps) {
+    int numTopics = topicSum.length;
+    int numWords = counts.getNumWords();
+    double [] topicNorm = new double[numTopics];
+    for (int k = 0; k < numTopics; k++) {
+      topicNorm[k] = topicSum[k] + smoothing * numWords;
+    }
+    int [] row = new int[numTopics];
+    for (int w = begin; w < end; w++) {
+      counts.getRow(w, row);
+      long rowSum = 0;
+      for (int k = 0; k < numTopics; k++) {
+        rowSum += row[k];
+      }
+      double wordNorm = rowSum + smoothing * numTopics;
+      for (int k = 0; k < numTopics; k++) {
+        double c = row[k] + smoothing;
+        double score = Math.log(c / topicNorm[k] + 1.0) * (c / wordNorm);
+        heaps.offer(k, w, score);
+      }
+    }
+  }
+
+  public void write(OutputStream output) throws IOException {
+    Writer writer = new OutputStreamWriter(output, "UTF-8");
+    writer.write(words.length + " " + size + "\n");
+    for (int k = 0; k < words.length; k++) {
+      for (int i = 0; i < words[k].length; i++) {
+        if (i > 0) {
+          writer.write(" ");
+        }
+        writer.write(words[k][i]);
+        writer.write(" ");
+        writer.write(Double.toString(scores[k][i]));
+      }
+      writer.write("\n");
+    }
+    writer.flush();
+  }
+
+  public static TopicWordsIndex read(InputStream input) throws IOException {
+    BufferedReader reader =
+      new BufferedReader(new InputStreamReader(input, "UTF-8"));
+    String [] header = reader.readLine().split(" ");
+    int numTopics = Integer.parseInt(header[0]);
+    TopicWordsIndex index =
+      new TopicWordsIndex(numTopics, Integer.parseInt(header[1]));
+    for (int k = 0; k < numTopics; k++) {
+      String line = reader.readLine();
+      if (line == null) {
+        throw new IOException("Topic words index truncated at topic " + k);
+      }
+      String [] cols = line.length() == 0 ? new String[0] : line.split(" ");
+      int n = cols.length / 2;
+      index.words[k] = new String[n];
+      index.scores[k] = new double[n];
+      for (int i = 0; i < n; i++) {
+        index.words[k][i] = cols[i * 2];
+        index.scores[k][i] = Double.parseDouble(cols[i * 2 + 1]);
+      }
+    }
+    return index;
+  }
+
+  /**
+   * One bounded binary min-heap of (word, score) per topic, in flat arrays.
+   */
+  private static class Heaps {
+    int capacity;
+    int [] sizes;
+    int [] words;
+    double [] scores;
+
+    Heaps(int numTopics, int capacity) {
+      this.capacity = capacity;
+      sizes = new int[numTopics];
+      words = new int[numTopics * capacity];
+      scores = new double[numTopics * capacity];
+    }
+
+    void offer(int topic, int word, double score) {
+      int base = topic * capacity;
+      int n = sizes[topic];
+      if (n < capacity) {
+        // Sift up.
+        int i = n;
+        while (i > 0) {
+          int parent = (i - 1) >> 1;
+          if (scores[base + parent] <= score) {
+            break;
+          }
+          words[base + i] = words[base + parent];
+          scores[base + i] = scores[base + parent];
+          i = parent;
+        }
+        words[base + i] = word;
+        scores[base + i] = score;
+        sizes[topic] = n + 1;
+      } else if (capacity > 0 && score > scores[base]) {
+        siftDown(base, n, word, score);
+      }
+    }
+
+    void pop(int topic) {
+      int base = topic * capacity;
+      int n = --sizes[topic];
+      if (n > 0) {
+        siftDown(base, n, words[base + n], scores[base + n]);
+      }
+    }
+
+    /**
+     * Place (word, score) at the root of a heap of n entries and sift it down.
+     */
+    private void siftDown(int base, int n, int word, double score) {
+      int i = 0;
+      while (true) {
+        int child = i * 2 + 1;
+        if (child >= n) {
+          break;
+        }
+        if (child + 1 < n && scores[base + child + 1] < scores[base + child]) {
+          child++;
+        }
+        if (score <= scores[base + child]) {
+          break;
+        }
+        words[base + i] = words[base + child];
+        scores[base + i] = scores[base + child];
+        i = child;
+      }
+      words[base + i] = word;
+      scores[base + i] = score;
+    }
+
+    void merge(Heaps other) {
+      for (int k = 0; k < sizes.length; k++) {
+        int base = k * capacity;
+        for (int i = 0; i < other.sizes[k]; i++) {
+          offer(k, other.words[base + i], other.scores[base + i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package org.thunlp.learning.lda;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Initial topics from a previously exported model, instead of random ones.
+ * See InitModelTool.setWarmStart.
+ *
+ * "pzw" samples the topic of each word from p(z|w) of the old model. "foldin"
+ * starts the same way, then samples the document a few times with p(w|z) of
+ * the old model fixed, so the topics of a document agree with each other.
+ * Words not in the old model get random topics, and with "foldin" follow the
+ * other topics of their document.
+ */
+public class WarmStart {
+  public static String PZW_MODE = "pzw";
+  public static String FOLDIN_MODE = "foldin";
+
+  private LdaModel model;
+  private boolean foldIn;
+  private int numSweeps;
+  private int numTopics;
+  private double nbeta;
+  private double [] probs;
+  private int [] oldIds;
+  private int [] docIds = new int[1024];
+  private int numKnownWords = 0;
+  private Random random;
+  private FoldInSampler sampler;
+
+  /**
+   * @param vocabulary Words of the new model, by id.
+   */
+  public WarmStart(LdaModel model, String [] vocabulary, String mode,
+      int numSweeps, Random random) {
+    if (!mode.equals(PZW_MODE) && !mode.equals(FOLDIN_MODE)) {
+      throw new IllegalArgumentException("Unknown warm start mode " + mode);
+    }
+    this.model = model;
+    this.foldIn = mode.equals(FOLDIN_MODE);
+    this.numSweeps = numSweeps;
+    this.random = random;
+    numTopics = model.getNumTopics();
+    // The counts of the model are summed over n iterations, see LdaModel.pwz.
+    nbeta = model.getNumTrainingIterations() * model.getBeta();
+    probs = new double[numTopics];
+    sampler = FoldInSampler.forModel(model, random);
+    oldIds = new int[vocabulary.length];
+    for (int w = 0; w < vocabulary.length; w++) {
+      oldIds[w] = vocabulary[w] == null ? -1 : model.getWordId(vocabulary[w]);
+      if (oldIds[w] >= 0) {
+        numKnownWords++;
+      }
+    }
+  }
+
+  /**
+   * Number of words of the new vocabulary found in the old model.
+   */
+  public int getNumKnownWords() {
+    return numKnownWords;
+  }
+
+  /**
+   * Set the topics of all words of doc.
+   */
+  public void assignTopics(DocumentWritable doc) {
+    int n = doc.getNumWords();
+    for (int i = 0; i < n; i++) {
+      int old = oldIds[doc.words[i]];
+      if (old < 0) {
+        doc.topics[i] = random.nextInt(numTopics);
+        continue;
+      }
+      for (int k = 0; k < numTopics; k++) {
+        probs[k] = model.count(old, k) + nbeta;
+      }
+      doc.topics[i] = sampler.draw(probs);
+    }
+    if (!foldIn) {
+      return;
+    }
+    if (docIds.length < n) {
+      docIds = new int[n * 2];
+    }
+    for (int i = 0; i < n; i++) {
+      docIds[i] = oldIds[doc.words[i]];
+    }
+    sampler.sample(docIds, doc.topics, n, numSweeps);
+  }
+
+  /**
+   * Read the number of topics from the header of an exported model, text or
+   * binary, without loading it.
+   */
+  public static int readNumTopics(FileSystem fs, Path model)
+  throws IOException {
+    DataInputStream in = new DataInputStream(fs.open(model));
+    try {
+      if (!model.getName().endsWith(".gz") &&
+          in.readInt() == LdaModel.BINARY_MODEL_MAGIC) {
+        in.readDouble();
+        in.readDouble();
+        return in.readInt();
+      }
+    } catch (IOException e) {
+      // Too short for a binary model, try the text layout.
+    } finally {
+      in.close();
+    }
+    InputStream text = fs.open(model);
+    if (model.getName().endsWith(".gz")) {
+      text = new GZIPInputStream(text);
+    }
+    BufferedReader reader =
+      new BufferedReader(new InputStreamReader(text, "UTF-8"));
+    try {
+      reader.readLine();  // alpha
+      reader.readLine();  // beta
+      return Integer.parseInt(reader.readLine().trim());
+    } finally {
+      reader.close();
+    }
+  }
+}
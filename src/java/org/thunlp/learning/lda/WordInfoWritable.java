@@ -3,12 +3,18 @@ package org.thunlp.learning.lda;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 
 /**
  * This class carries the information about a word, including distribution over
  * all latent topics and the probability of sampling this word in this iteration.
+ * 
+ * Rows with few non-zero topics are serialized sparsely, as a negative size
+ * followed by variable-length (topic gap, count) pairs. Dense rows keep the
+ * original layout.
  * @author sixiance
  *
  */
@@ -50,10 +56,25 @@ public class WordInfoWritable implements Writable {
   
   public void readFields(DataInput in) throws IOException {
     int size = in.readInt();
+    boolean sparse = size < 0;
+    if (sparse) {
+      size = -size;
+    }
     if (topicCount == null || size != topicCount.length) {
       topicCount = new int[size];
       buffer = new byte[size * 4];
     }
+    if (sparse) {
+      Arrays.fill(topicCount, 0);
+      int numNonZeros = WritableUtils.readVInt(in);
+      int topic = 0;
+      for (int i = 0; i < numNonZeros; i++) {
+        topic += WritableUtils.readVInt(in);
+        topicCount[topic] = WritableUtils.readVInt(in);
+      }
+      isPartial = in.readBoolean();
+      return;
+    }
     in.readFully(buffer);
     
     for (int i = 0; i < topicCount.length; i++) {
@@ -63,6 +84,27 @@ public class WordInfoWritable implements Writable {
   }
 
   public void write(DataOutput out) throws IOException {
+    int numNonZeros = 0;
+    for (int i = 0; i < topicCount.length; i++) {
+      if (topicCount[i] != 0) {
+        numNonZeros++;
+      }
+    }
+    // A pair takes 2-10 bytes, usually 2-4, against 4 bytes per dense topic.
+    if (numNonZeros < topicCount.length / 3) {
+      out.writeInt(-topicCount.length);
+      WritableUtils.writeVInt(out, numNonZeros);
+      int previous = 0;
+      for (int i = 0; i < topicCount.length; i++) {
+        if (topicCount[i] != 0) {
+          WritableUtils.writeVInt(out, i - previous);
+          WritableUtils.writeVInt(out, topicCount[i]);
+          previous = i;
+        }
+      }
+      out.writeBoolean(isPartial);
+      return;
+    }
     out.writeInt(topicCount.length);
     for (int i = 0; i < topicCount.length; i++) {
       DocumentWritable.intToFourBytes(buffer, i*4, topicCount[i]);
@@ -1,52 +1,127 @@
 package org.thunlp.learning.lda;
 
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
-import org.thunlp.misc.Counter;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
 
-public class WordListMapper implements Mapper<Text, Text, Text, Text> {
+/**
+ * Count the term and document frequencies of words, and under NUM_DOCS_STRING
+ * the total number of words and documents.
+ * Key in: document id, or the line offset for text input.
+ * Value in: space-separated words of a document.
+ * Key out: word.
+ * Value out: partial tf and df of the word.
+ *
+ * Counts are summed in memory across documents, and flushed when more than
+ * "wordlist.buffer.words" distinct words are held, and at close.
+ *
+ * With "wordlist.copy.docs" set, every document is also written as
+ * "doc id":"words" to the DOCS_OUTPUT named output, so text input is turned
+ * into a SequenceFile in the same pass. See InitModelTool.setInputCopy.
+ */
+public class WordListMapper
+implements Mapper<Writable, Text, Text, TfDfWritable> {
   public static String NUM_DOCS_STRING = " ";
-  Text outkey = new Text();
-  Text outvalue = new Text();
-  Counter<String> wordfreq = new Counter<String>();
-  
+  public static String DOCS_OUTPUT = "docs";
+  // Each entry is {tf, df, number of the last document with the word}.
+  private Map<String, long []> counts = new HashMap<String, long []>();
+  private int maxWords = 1 << 18;
+  private long numDocs = 0;
+  private long numWords = 0;
+  private OutputCollector<Text, TfDfWritable> output = null;
+  private Text outkey = new Text();
+  private TfDfWritable outvalue = new TfDfWritable();
+  private MultipleOutputs docsOutput = null;
+  private Text docId = new Text();
+
   public void configure(JobConf job) {
+    maxWords = job.getInt("wordlist.buffer.words", maxWords);
+    if (job.getBoolean("wordlist.copy.docs", false)) {
+      docsOutput = new MultipleOutputs(job);
+    }
   }
 
-  public void map(Text key, Text value, OutputCollector<Text, Text> output,
-      Reporter r) throws IOException {
-    String [] words = value.toString().split(" ");
-    wordfreq.clear();
-    for (String w : words) {
-      wordfreq.inc(w, 1);
-    }
-    Iterator<Entry<String, Long>> iter = wordfreq.iterator();
-    long numWords = 0;
-    while (iter.hasNext()) {
-      Entry<String, Long> entry = iter.next();
-      outkey.set(entry.getKey());
-      outvalue.set("d1");
-      output.collect(outkey, outvalue);
-      outvalue.set("t" + entry.getValue());
-      output.collect(outkey, outvalue);
-      numWords += entry.getValue();
+  /**
+   * The key as a Text document id, as PlainTextToSeqFileTool names lines.
+   */
+  static Text documentId(Writable key, Text buffer) {
+    if (key instanceof Text) {
+      return (Text) key;
     }
-    outkey.set(NUM_DOCS_STRING); 
-    outvalue.set("d1");
-    output.collect(outkey, outvalue);
-    outvalue.set("t" + numWords);
-    output.collect(outkey, outvalue);  
+    buffer.set(key.toString());
+    return buffer;
   }
 
-  public void close() {
+  @SuppressWarnings("unchecked")
+  public void map(Writable key, Text value,
+      OutputCollector<Text, TfDfWritable> output, Reporter r)
+  throws IOException {
+    this.output = output;
+    if (docsOutput != null) {
+      docsOutput.getCollector(DOCS_OUTPUT, r).collect(
+          documentId(key, docId), value);
+    }
+    numDocs++;
+    String doc = value.toString();
+    int start = 0;
+    int length = doc.length();
+    while (start < length) {
+      int end = doc.indexOf(' ', start);
+      if (end < 0) {
+        end = length;
+      }
+      if (end > start) {
+        add(doc.substring(start, end));
+      }
+      start = end + 1;
+    }
+    if (counts.size() > maxWords) {
+      flush();
+    }
   }
-}
 
+  private void add(String word) {
+    long [] c = counts.get(word);
+    if (c == null) {
+      c = new long[3];
+      counts.put(word, c);
+    }
+    c[0]++;
+    if (c[2] != numDocs) {
+      c[1]++;
+      c[2] = numDocs;
+    }
+    numWords++;
+  }
+
+  private void flush() throws IOException {
+    for (Entry<String, long []> e : counts.entrySet()) {
+      outkey.set(e.getKey());
+      outvalue.set(e.getValue()[0], e.getValue()[1]);
+      output.collect(outkey, outvalue);
+    }
+    counts.clear();
+  }
 
+  public void close() throws IOException {
+    if (docsOutput != null) {
+      docsOutput.close();
+    }
+    if (output == null) {
+      return;
+    }
+    flush();
+    outkey.set(NUM_DOCS_STRING);
+    outvalue.set(numWords, numDocs);
+    output.collect(outkey, outvalue);
+  }
+}
@@ -10,22 +10,16 @@ import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 
 public class WordListReducer 
-implements Reducer<Text, Text, Text, Text> {
-  Text outvalue = new Text();
+implements Reducer<Text, TfDfWritable, Text, TfDfWritable> {
+  TfDfWritable outvalue = new TfDfWritable();
   
-  public void reduce(Text key, Iterator<Text> values,
-      OutputCollector<Text, Text> output, Reporter r) throws IOException {
-    long tf = 0;
-    long df = 0;
+  public void reduce(Text key, Iterator<TfDfWritable> values,
+      OutputCollector<Text, TfDfWritable> output, Reporter r)
+  throws IOException {
+    outvalue.set(0, 0);
     while (values.hasNext()) {
-      String value = values.next().toString();
-      if (value.charAt(0) == 'd') {
-        df += Long.parseLong(value.substring(1));
-      } else if (value.charAt(0) == 't') {
-        tf += Long.parseLong(value.substring(1));
-      }
+      outvalue.add(values.next());
     }
-    outvalue.set(tf + " " + df);
     output.collect(key, outvalue);
   }
 
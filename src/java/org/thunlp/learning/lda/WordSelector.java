@@ -0,0 +1,94 @@
+package org.thunlp.learning.lda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.thunlp.misc.AnyDoublePair;
+
+/**
+ * Select the words with the largest tf * idf weight, from words given one at
+ * a time, holding only the words selected so far in a min-heap. Words with
+ * document frequency not above minDf are dropped, and words starting with '_'
+ * are always kept, after the others. See InitModelTool.selectWords.
+ */
+public class WordSelector {
+  // Lower weight first, ties broken by the larger word first.
+  private static Comparator<AnyDoublePair<String>> WORST_FIRST =
+    new Comparator<AnyDoublePair<String>>() {
+      public int compare(AnyDoublePair<String> o1, AnyDoublePair<String> o2) {
+        int c = Double.compare(o1.second, o2.second);
+        return c != 0 ? c : o2.first.compareTo(o1.first);
+      }
+    };
+
+  private double totalTf;
+  private double totalDf;
+  private int maxNumWords;
+  private double minDf;
+  private PriorityQueue<AnyDoublePair<String>> heap;
+  private List<String> specialKeys = new ArrayList<String>();
+  private long numWords = 0;
+
+  /**
+   * @param totalTf Number of words in the corpus.
+   * @param totalDf Number of documents in the corpus.
+   * @param maxNumWords How many words to keep, -1 means all.
+   */
+  public WordSelector(double totalTf, double totalDf, int maxNumWords,
+      double minDf) {
+    this.totalTf = totalTf;
+    this.totalDf = totalDf;
+    this.maxNumWords = maxNumWords == -1 ? Integer.MAX_VALUE : maxNumWords;
+    this.minDf = minDf;
+    heap = new PriorityQueue<AnyDoublePair<String>>(
+        Math.min(this.maxNumWords, 1 << 16) + 1, WORST_FIRST);
+  }
+
+  public void add(String word, double tf, double df) {
+    numWords++;
+    if (word.startsWith("_")) {
+      specialKeys.add(word);
+      return;
+    }
+    if (df <= minDf || maxNumWords == 0) {
+      return;
+    }
+    double weight = tf / totalTf * Math.log(totalDf / df);
+    if (heap.size() == maxNumWords) {
+      AnyDoublePair<String> worst = heap.peek();
+      if (weight < worst.second ||
+          (weight == worst.second && word.compareTo(worst.first) > 0)) {
+        return;
+      }
+      heap.poll();
+    }
+    heap.add(new AnyDoublePair<String>(word, weight));
+  }
+
+  /**
+   * Number of words given to add.
+   */
+  public long getNumWords() {
+    return numWords;
+  }
+
+  /**
+   * @return The selected words by decreasing weight, then the special keys.
+   * The index of a word is its id.
+   */
+  public List<String> getSelected() {
+    List<AnyDoublePair<String>> weights =
+      new ArrayList<AnyDoublePair<String>>(heap);
+    Collections.sort(weights, Collections.reverseOrder(WORST_FIRST));
+    List<String> selected =
+      new ArrayList<String>(weights.size() + specialKeys.size());
+    for (AnyDoublePair<String> p : weights) {
+      selected.add(p.first);
+    }
+    selected.addAll(specialKeys);
+    return selected;
+  }
+}
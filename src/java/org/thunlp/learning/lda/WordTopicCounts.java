@@ -0,0 +1,121 @@
+package org.thunlp.learning.lda;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.thunlp.tool.FolderReader;
+
+/**
+ * The word-topic count matrix n(w,z) used by the trainers. Implementations
+ * keep all rows in one contiguous block instead of one array per word, which
+ * saves the per-row object overhead and keeps the garbage collector from
+ * scanning millions of small arrays. None of the accessors allocate.
+ */
+public abstract class WordTopicCounts {
+  public static String HEAP_STORAGE = "heap";
+  public static String DIRECT_STORAGE = "direct";
+  public static String HYBRID_STORAGE = "hybrid";
+
+  protected int numWords;
+  protected int numTopics;
+
+  protected WordTopicCounts(int numWords, int numTopics) {
+    this.numWords = numWords;
+    this.numTopics = numTopics;
+  }
+
+  /**
+   * Create an all-zero matrix.
+   * @param storage "heap" for a single int[], "direct" for off-heap direct
+   * buffers, "hybrid" for sparse rows of long-tail words and dense rows of
+   * head words.
+   */
+  public static WordTopicCounts create(
+      String storage, int numWords, int numTopics) {
+    if (storage == null || storage.equals(HEAP_STORAGE)) {
+      return new FlatWordTopicCounts(numWords, numTopics);
+    } else if (storage.equals(DIRECT_STORAGE)) {
+      return new DirectWordTopicCounts(numWords, numTopics);
+    } else if (storage.equals(HYBRID_STORAGE)) {
+      return new HybridWordTopicCounts(numWords, numTopics);
+    }
+    throw new RuntimeException("Unknown nwz storage: " + storage);
+  }
+
+  /**
+   * Load the n(w,z) of an iteration, the (word id, WordInfoWritable) part
+   * files under dir. Words missing in the files keep all-zero counts.
+   * @param nz Filled with the sum of the counts of each topic.
+   */
+  public static WordTopicCounts load(Path dir, String storage,
+      int numWords, int numTopics, int [] nz) throws IOException {
+    WordTopicCounts nwz = create(storage, numWords, numTopics);
+    Arrays.fill(nz, 0);
+    FolderReader reader = new FolderReader(dir);
+    IntWritable key = new IntWritable();
+    WordInfoWritable value = new WordInfoWritable(numTopics);
+    while (reader.next(key, value)) {
+      int word = key.get();
+      for (int k = 0; k < numTopics; k++) {
+        int count = value.getTopicCount(k);
+        if (count != 0) {
+          nwz.set(word, k, count);
+          nz[k] += count;
+        }
+      }
+    }
+    reader.close();
+    return nwz;
+  }
+
+  public int getNumWords() {
+    return numWords;
+  }
+
+  public int getNumTopics() {
+    return numTopics;
+  }
+
+  public abstract int get(int word, int topic);
+
+  public abstract void set(int word, int topic, int value);
+
+  /**
+   * Add delta to n(word,topic) and return the new value.
+   */
+  public abstract int add(int word, int topic, int delta);
+
+  /**
+   * Copy the counts of a word into row, which has at least numTopics slots.
+   */
+  public void getRow(int word, int [] row) {
+    for (int k = 0; k < numTopics; k++) {
+      row[k] = get(word, k);
+    }
+  }
+
+  /**
+   * Add row to the counts of a word.
+   */
+  public void addRow(int word, int [] row) {
+    for (int k = 0; k < numTopics; k++) {
+      add(word, k, row[k]);
+    }
+  }
+
+  /**
+   * Sum of the counts of each topic over all words.
+   */
+  public void topicSums(int [] sums) {
+    for (int k = 0; k < numTopics; k++) {
+      sums[k] = 0;
+    }
+    for (int w = 0; w < numWords; w++) {
+      for (int k = 0; k < numTopics; k++) {
+        sums[k] += get(w, k);
+      }
+    }
+  }
+}
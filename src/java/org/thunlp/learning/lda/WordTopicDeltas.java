@@ -0,0 +1,129 @@
+package org.thunlp.learning.lda;
+
+import java.util.Arrays;
+
+/**
+ * Sparse changes of n(w,z) made by one sampler, keyed by (word, topic) in an
+ * open-addressing hash table of primitive longs. Its size follows the number
+ * of tokens whose topic changed, not the size of the vocabulary, see
+ * GibbsSamplingReducer.
+ */
+public class WordTopicDeltas {
+  private static long EMPTY = -1L;
+  private static float MAX_LOAD = 0.5f;
+
+  private int numTopics;
+  private long [] keys;
+  private int [] values;
+  private int size = 0;
+  private int mask;
+
+  public WordTopicDeltas(int numTopics) {
+    this.numTopics = numTopics;
+    allocate(1 << 12);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    mask = capacity - 1;
+    size = 0;
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    int i = (int) (h ^ (h >>> 32)) & mask;
+    while (keys[i] != EMPTY && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /**
+   * Add delta to the change of n(word,topic).
+   */
+  public void add(int word, int topic, int delta) {
+    long key = (long) word * numTopics + topic;
+    int i = slot(key);
+    if (keys[i] == EMPTY) {
+      if (size + 1 > keys.length * MAX_LOAD) {
+        rehash();
+        i = slot(key);
+      }
+      keys[i] = key;
+      size++;
+    }
+    values[i] += delta;
+  }
+
+  /**
+   * Add sign to the change of every (word, topic) of the document. Calling
+   * this with -1 before sampling and +1 after records exactly the moves the
+   * sampler made.
+   */
+  public void add(DocumentWritable doc, int sign) {
+    for (int i = 0; i < doc.getNumWords(); i++) {
+      add(doc.words[i], doc.topics[i], sign);
+    }
+  }
+
+  public int get(int word, int topic) {
+    int i = slot((long) word * numTopics + topic);
+    return keys[i] == EMPTY ? 0 : values[i];
+  }
+
+  /**
+   * Number of (word, topic) pairs held, some may have changed back to 0.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The non-zero changes, as word * numTopics + topic, sorted so that the
+   * topics of a word are adjacent.
+   */
+  public long [] nonZeroKeys() {
+    int n = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY && values[i] != 0) {
+        n++;
+      }
+    }
+    long [] result = new long[n];
+    n = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY && values[i] != 0) {
+        result[n++] = keys[i];
+      }
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  public int getNumTopics() {
+    return numTopics;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, EMPTY);
+    Arrays.fill(values, 0);
+    size = 0;
+  }
+
+  private void rehash() {
+    long [] oldKeys = keys;
+    int [] oldValues = values;
+    allocate(oldKeys.length * 2);
+    for (int i = 0; i < oldKeys.length; i++) {
+      // Pairs that changed back to 0 are dropped.
+      if (oldKeys[i] != EMPTY && oldValues[i] != 0) {
+        int j = slot(oldKeys[i]);
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+        size++;
+      }
+    }
+  }
+}
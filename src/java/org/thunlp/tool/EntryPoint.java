@@ -1,7 +1,12 @@
 package org.thunlp.tool;
 
+import org.thunlp.learning.lda.InferenceTool;
 import org.thunlp.learning.lda.LdaTrainer;
+import org.thunlp.learning.lda.LocalLdaTrainer;
+import org.thunlp.learning.lda.OnlineLdaTool;
+import org.thunlp.learning.lda.PerplexityTool;
 import org.thunlp.learning.lda.ShowTopics;
+import org.thunlp.learning.lda.TopicVectorIndexTool;
 
 /**
  * 运行jar的入口
@@ -9,7 +14,7 @@ import org.thunlp.learning.lda.ShowTopics;
 public class EntryPoint {
   public static void main( String [] args ) throws Exception {
     if ( args.length < 1 ) {
-      System.out.println("usage: train showModel");
+      System.out.println("usage: train trainLocal trainOnline showModel inference topicIndex perplexity");
       return;
     }
 
@@ -22,8 +27,18 @@ public class EntryPoint {
     GenericTool tool = null;
     if (command.equals("train")) {
       tool = new LdaTrainer();
+    } else if (command.equals("trainLocal")) {
+      tool = new LocalLdaTrainer();
+    } else if (command.equals("trainOnline")) {
+      tool = new OnlineLdaTool();
     } else if (command.equals("showModel")) {
       tool = new ShowTopics();
+    } else if (command.equals("inference")) {
+      tool = new InferenceTool();
+    } else if (command.equals("topicIndex")) {
+      tool = new TopicVectorIndexTool();
+    } else if (command.equals("perplexity")) {
+      tool = new PerplexityTool();
     }
     tool.run(realargs);
   }
@@ -1,5 +1,6 @@
 package org.thunlp.tool;
 
+import java.io.UnsupportedEncodingException;
 import java.util.Collection;
 
 public class StringUtil {
@@ -41,4 +42,20 @@ public class StringUtil {
     }
     return sb.toString();
   }
+  
+  public static byte [] toUtf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  public static String fromUtf8(byte [] bytes) {
+    try {
+      return new String(bytes, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
 }
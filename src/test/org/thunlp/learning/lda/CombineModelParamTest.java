@@ -0,0 +1,215 @@
+package org.thunlp.learning.lda;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Samples a corpus with two GibbsSamplingReducers, merges their deltas into
+ * the reference n(w,z) the way the combine job does, with and without
+ * CombineModelParamCombiner, and checks the result is a recount of the
+ * sampled topics.
+ */
+public class CombineModelParamTest extends TestCase {
+  private static final int NUM_TOPICS = 4;
+  private static final int NUM_WORDS = 30;
+  private static final int NUM_DOCS = 40;
+
+  private File dir;
+  private Path reference;
+  private Path deltas;
+  private List<DocumentWritable> sampled = new ArrayList<DocumentWritable>();
+
+  protected void setUp() throws IOException {
+    dir = LdaTestUtil.createTempDir("lda-combine-");
+    reference = new Path(dir.getPath(), "nwz");
+    deltas = new Path(dir.getPath(), "deltas");
+    Random random = new Random(7);
+    List<DocumentWritable> docs = new ArrayList<DocumentWritable>();
+    for (int d = 0; d < NUM_DOCS; d++) {
+      // The last words are left out, their reference rows stay zero.
+      int [] words = new int[1 + random.nextInt(12)];
+      for (int i = 0; i < words.length; i++) {
+        words[i] = random.nextInt(NUM_WORDS - 3);
+      }
+      DocumentWritable doc = LdaTestUtil.makeDoc(words);
+      for (int i = 0; i < words.length; i++) {
+        doc.topics[i] = random.nextInt(NUM_TOPICS);
+      }
+      docs.add(doc);
+    }
+    writeReference(LdaTestUtil.recount(docs, NUM_WORDS, NUM_TOPICS));
+    sample(docs.subList(0, NUM_DOCS / 2));
+    sample(docs.subList(NUM_DOCS / 2, NUM_DOCS));
+  }
+
+  protected void tearDown() throws IOException {
+    LdaTestUtil.deleteDir(dir);
+  }
+
+  /**
+   * Write the reference counts as the combine job does, full rows.
+   */
+  private void writeReference(int [][] nwz) throws IOException {
+    JobConf conf = new JobConf();
+    SequenceFile.Writer writer = SequenceFile.createWriter(
+        FileSystem.get(conf), conf, new Path(reference, "part-00000"),
+        IntWritable.class, WordInfoWritable.class);
+    WordInfoWritable row = new WordInfoWritable(NUM_TOPICS);
+    row.setIsPartial(false);
+    for (int w = 0; w < NUM_WORDS; w++) {
+      for (int k = 0; k < NUM_TOPICS; k++) {
+        row.setTopicCount(k, nwz[w][k]);
+      }
+      writer.append(new IntWritable(w), row);
+    }
+    writer.close();
+  }
+
+  /**
+   * Sample the documents with one reducer, which writes its deltas to a part
+   * of the deltas directory, and keep the sampled documents.
+   */
+  private void sample(List<DocumentWritable> docs) throws IOException {
+    JobConf conf = new JobConf();
+    conf.setInt("num.topics", NUM_TOPICS);
+    conf.setInt("num.words", NUM_WORDS);
+    conf.set("alpha", "0.5");
+    conf.set("beta", "0.1");
+    conf.set("input.nwz", reference.toString());
+    conf.set("output.nwz", deltas.toString());
+    GibbsSamplingReducer reducer = new GibbsSamplingReducer();
+    reducer.configure(conf);
+    LdaTestUtil.ListCollector<Text, Writable> output =
+      new LdaTestUtil.ListCollector<Text, Writable>();
+    for (int d = 0; d < docs.size(); d++) {
+      List<Writable> values = new ArrayList<Writable>();
+      values.add(docs.get(d));
+      reducer.reduce(new Text("doc" + d), values.iterator(), output,
+          Reporter.NULL);
+    }
+    reducer.close();
+    for (Writable doc : output.values) {
+      sampled.add((DocumentWritable) doc);
+    }
+  }
+
+  /**
+   * Part files of the reference and of the deltas, one per map task of the
+   * combine job.
+   */
+  private List<Path> mapInputs() {
+    List<Path> inputs = new ArrayList<Path>();
+    for (Path parent : new Path[] {reference, deltas}) {
+      for (String name : new File(parent.toString()).list()) {
+        if (name.startsWith("part-")) {
+          inputs.add(new Path(parent, name));
+        }
+      }
+    }
+    return inputs;
+  }
+
+  /**
+   * Run the reducer of the combine job over the records of the inputs,
+   * optionally through the combiner for each input first, as on the map
+   * side, or once more over all inputs, as when merging spills.
+   */
+  private int [][] combine(boolean combinePerInput, boolean combineAll)
+  throws IOException {
+    List<Path> inputs = mapInputs();
+    assertEquals("reference and two delta parts", 3, inputs.size());
+    Map<Integer, List<WordInfoWritable>> shuffled =
+      new TreeMap<Integer, List<WordInfoWritable>>();
+    for (Path input : inputs) {
+      Map<Integer, List<WordInfoWritable>> records =
+        LdaTestUtil.readGrouped(input);
+      if (combinePerInput) {
+        records = reduce(new CombineModelParamCombiner(), records);
+      }
+      for (Map.Entry<Integer, List<WordInfoWritable>> e : records.entrySet()) {
+        if (!shuffled.containsKey(e.getKey())) {
+          shuffled.put(e.getKey(), new ArrayList<WordInfoWritable>());
+        }
+        shuffled.get(e.getKey()).addAll(e.getValue());
+      }
+    }
+    if (combineAll) {
+      shuffled = reduce(new CombineModelParamCombiner(), shuffled);
+    }
+    Map<Integer, List<WordInfoWritable>> output =
+      reduce(new CombineModelParamReducer(), shuffled);
+    assertEquals(NUM_WORDS, output.size());
+    int [][] nwz = new int[NUM_WORDS][NUM_TOPICS];
+    for (Map.Entry<Integer, List<WordInfoWritable>> e : output.entrySet()) {
+      assertEquals(1, e.getValue().size());
+      WordInfoWritable row = e.getValue().get(0);
+      assertFalse(row.isPartial());
+      for (int k = 0; k < NUM_TOPICS; k++) {
+        nwz[e.getKey()][k] = row.getTopicCount(k);
+      }
+    }
+    return nwz;
+  }
+
+  private static Map<Integer, List<WordInfoWritable>> reduce(
+      Reducer<IntWritable, WordInfoWritable, IntWritable, WordInfoWritable>
+        reducer,
+      Map<Integer, List<WordInfoWritable>> input) throws IOException {
+    LdaTestUtil.ListCollector<IntWritable, WordInfoWritable> output =
+      new LdaTestUtil.ListCollector<IntWritable, WordInfoWritable>();
+    for (Map.Entry<Integer, List<WordInfoWritable>> e : input.entrySet()) {
+      reducer.reduce(new IntWritable(e.getKey()), e.getValue().iterator(),
+          output, Reporter.NULL);
+    }
+    reducer.close();
+    Map<Integer, List<WordInfoWritable>> grouped =
+      new TreeMap<Integer, List<WordInfoWritable>>();
+    for (int i = 0; i < output.keys.size(); i++) {
+      int key = output.keys.get(i).get();
+      if (!grouped.containsKey(key)) {
+        grouped.put(key, new ArrayList<WordInfoWritable>());
+      }
+      grouped.get(key).add(output.values.get(i));
+    }
+    return grouped;
+  }
+
+  private void assertRecount(int [][] nwz) {
+    assertEquals(NUM_DOCS, sampled.size());
+    int [][] expected = LdaTestUtil.recount(sampled, NUM_WORDS, NUM_TOPICS);
+    for (int w = 0; w < NUM_WORDS; w++) {
+      for (int k = 0; k < NUM_TOPICS; k++) {
+        assertEquals("n(" + w + "," + k + ")", expected[w][k], nwz[w][k]);
+      }
+    }
+  }
+
+  public void testWithoutCombiner() throws IOException {
+    assertRecount(combine(false, false));
+  }
+
+  public void testWithCombiner() throws IOException {
+    assertRecount(combine(true, false));
+  }
+
+  public void testWithCombinerTwice() throws IOException {
+    assertRecount(combine(true, true));
+  }
+}
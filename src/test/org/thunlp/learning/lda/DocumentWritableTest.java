@@ -0,0 +1,162 @@
+package org.thunlp.learning.lda;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+public class DocumentWritableTest extends TestCase {
+
+  private static DocumentWritable makeDoc(int [] words, int [] topics) {
+    DocumentWritable doc = new DocumentWritable();
+    doc.setNumWords(words.length);
+    System.arraycopy(words, 0, doc.words, 0, words.length);
+    System.arraycopy(topics, 0, doc.topics, 0, topics.length);
+    return doc;
+  }
+
+  private static byte [] serialize(DocumentWritable doc) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    doc.write(out);
+    byte [] data = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, data, 0, data.length);
+    return data;
+  }
+
+  private static DocumentWritable deserialize(byte [] data)
+  throws IOException {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data, data.length);
+    DocumentWritable doc = new DocumentWritable();
+    doc.readFields(in);
+    assertEquals("trailing bytes", data.length, in.getPosition());
+    return doc;
+  }
+
+  /**
+   * The written document holds the same (word, topic) tokens, sorted by word
+   * then topic.
+   */
+  private static void assertRoundTrip(int [] words, int [] topics)
+  throws IOException {
+    DocumentWritable doc = deserialize(serialize(makeDoc(words, topics)));
+    assertEquals(words.length, doc.getNumWords());
+    long [] expected = new long[words.length];
+    for (int i = 0; i < words.length; i++) {
+      expected[i] = ((long) words[i] << 32) | (topics[i] & 0xFFFFFFFFL);
+    }
+    Arrays.sort(expected);
+    for (int i = 0; i < words.length; i++) {
+      assertEquals("word " + i, (int) (expected[i] >> 32), doc.words[i]);
+      assertEquals("topic " + i, (int) expected[i], doc.topics[i]);
+    }
+  }
+
+  private static int topicBytes(int [] words, int [] topics)
+  throws IOException {
+    byte [] data = serialize(makeDoc(words, topics));
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data, data.length);
+    assertEquals(DocumentWritable.VERSION, in.readByte());
+    WritableUtils.readVInt(in);
+    WritableUtils.readVInt(in);
+    return in.readByte();
+  }
+
+  public void testEmpty() throws IOException {
+    assertRoundTrip(new int[0], new int[0]);
+  }
+
+  public void testOneByteTopics() throws IOException {
+    int [] words = {7, 3, 100000, 3, 0};
+    int [] topics = {255, 0, 12, 1, 200};
+    assertEquals(1, topicBytes(words, topics));
+    assertRoundTrip(words, topics);
+  }
+
+  public void testTwoByteTopics() throws IOException {
+    int [] words = {5, 5, 1, 70000};
+    int [] topics = {256, 65535, 3, 1000};
+    assertEquals(2, topicBytes(words, topics));
+    assertRoundTrip(words, topics);
+  }
+
+  public void testVIntTopics() throws IOException {
+    int [] words = {2, 1, 2};
+    int [] topics = {65536, 5, 1 << 30};
+    assertEquals(0, topicBytes(words, topics));
+    assertRoundTrip(words, topics);
+  }
+
+  public void testNegativeTopics() throws IOException {
+    int [] words = {4, 4, 9, 0};
+    int [] topics = {-1, 3, Integer.MIN_VALUE, 2};
+    assertEquals(0, topicBytes(words, topics));
+    assertRoundTrip(words, topics);
+  }
+
+  public void testDuplicateTokensAreReordered() throws IOException {
+    int [] words = {9, 2, 9, 2, 9, Integer.MAX_VALUE};
+    int [] topics = {4, 1, 0, 1, 4, 0};
+    assertRoundTrip(words, topics);
+  }
+
+  public void testReuseForShorterDocument() throws IOException {
+    DocumentWritable doc = new DocumentWritable();
+    DataInputBuffer in = new DataInputBuffer();
+    byte [] longer =
+      serialize(makeDoc(new int[] {1, 2, 3}, new int[] {300, 1, 2}));
+    byte [] shorter = serialize(makeDoc(new int[] {8}, new int[] {6}));
+    in.reset(longer, longer.length);
+    doc.readFields(in);
+    in.reset(shorter, shorter.length);
+    doc.readFields(in);
+    assertEquals(1, doc.getNumWords());
+    assertEquals(8, doc.words[0]);
+    assertEquals(6, doc.topics[0]);
+  }
+
+  public void testReadsLegacyFormat() throws IOException {
+    int [] words = {3, 1, 3};
+    int [] topics = {2, 70000, -5};
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.writeInt(words.length * 8);
+    for (int i = 0; i < words.length; i++) {
+      out.writeInt(words[i]);
+      out.writeInt(topics[i]);
+    }
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    DocumentWritable doc = new DocumentWritable();
+    doc.readFields(in);
+    assertEquals(words.length, doc.getNumWords());
+    for (int i = 0; i < words.length; i++) {
+      assertEquals(words[i], doc.words[i]);
+      assertEquals(topics[i], doc.topics[i]);
+    }
+  }
+
+  /**
+   * A 500-word document over a 100k vocabulary with 100 topics: the compact
+   * format takes at most 3 bytes a token, against 8 for the legacy one.
+   */
+  public void testSmallerThanLegacyFormat() throws IOException {
+    Random random = new Random(1);
+    int n = 500;
+    int [] words = new int[n];
+    int [] topics = new int[n];
+    for (int i = 0; i < n; i++) {
+      words[i] = random.nextInt(100000);
+      topics[i] = random.nextInt(100);
+    }
+    int legacy = 4 + n * 8;
+    int compact = serialize(makeDoc(words, topics)).length;
+    assertTrue("compact " + compact + " legacy " + legacy, compact <= n * 3);
+    assertRoundTrip(words, topics);
+  }
+}
@@ -0,0 +1,111 @@
+package org.thunlp.learning.lda;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Exports a working directory holding fewer sampled iterations than asked
+ * for, as left by a training stopped early.
+ */
+public class ExportModelToolTest extends TestCase {
+  private static final int NUM_TOPICS = 3;
+  private static final int NUM_WORDS = 4;
+
+  private File dir;
+  private Path workingDir;
+  private JobConf conf = new JobConf();
+
+  protected void setUp() throws IOException {
+    dir = LdaTestUtil.createTempDir("lda-export-");
+    workingDir = new Path(dir.getPath(), "work");
+    FileSystem fs = FileSystem.get(conf);
+    DataOutputStream out = fs.create(new Path(workingDir, "parameters"));
+    out.writeDouble(0.5);
+    out.writeDouble(0.1);
+    out.writeInt(NUM_TOPICS);
+    out.close();
+
+    SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf,
+        new Path(workingDir, "words/part-00000"),
+        Text.class, IntWritable.class);
+    for (int w = 0; w < NUM_WORDS; w++) {
+      writer.append(new Text("w" + w), new IntWritable(w));
+    }
+    writer.close();
+  }
+
+  protected void tearDown() throws IOException {
+    LdaTestUtil.deleteDir(dir);
+  }
+
+  /**
+   * Write an iteration of nwz in which every count is value.
+   */
+  private void writeNwz(String name, int value) throws IOException {
+    SequenceFile.Writer writer = SequenceFile.createWriter(
+        FileSystem.get(conf), conf,
+        new Path(workingDir, name + "/part-00000"),
+        IntWritable.class, WordInfoWritable.class);
+    WordInfoWritable row = new WordInfoWritable(NUM_TOPICS);
+    row.setIsPartial(false);
+    for (int k = 0; k < NUM_TOPICS; k++) {
+      row.setTopicCount(k, value);
+    }
+    for (int w = 0; w < NUM_WORDS; w++) {
+      writer.append(new IntWritable(w), row);
+    }
+    writer.close();
+  }
+
+  /**
+   * Export with iterations_to_use 5, and check the iterations written in the
+   * header and the count of every word and topic.
+   */
+  private void assertExport(int numIterations, int count) throws IOException {
+    File output = new File(dir, "model");
+    ExportModelTool tool = new ExportModelTool();
+    tool.setWriteBinary(false);
+    tool.setNumTopicWords(0);
+    tool.exportModel(workingDir, new Path(output.getPath()), 5);
+
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(output), "UTF-8"));
+    reader.readLine();
+    reader.readLine();
+    assertEquals(Integer.toString(NUM_TOPICS), reader.readLine());
+    assertEquals(Integer.toString(numIterations), reader.readLine());
+    for (int w = 0; w < NUM_WORDS; w++) {
+      String [] fields = reader.readLine().split(" ");
+      assertEquals(NUM_TOPICS + 1, fields.length);
+      for (int k = 0; k < NUM_TOPICS; k++) {
+        assertEquals(Integer.toString(count), fields[k + 1]);
+      }
+    }
+    reader.close();
+  }
+
+  public void testSkipsInitialState() throws IOException {
+    writeNwz("nwz.00000", 1);
+    writeNwz("nwz.00001", 10);
+    writeNwz("nwz.00002", 100);
+    assertExport(2, 110);
+  }
+
+  public void testInitialStateOnly() throws IOException {
+    writeNwz("nwz.00000", 1);
+    assertExport(1, 1);
+  }
+}
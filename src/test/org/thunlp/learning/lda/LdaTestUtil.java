@@ -0,0 +1,129 @@
+package org.thunlp.learning.lda;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.thunlp.tool.FolderReader;
+
+/**
+ * Helpers to run the reducers of the training jobs in-process, without a
+ * job runner.
+ */
+class LdaTestUtil {
+  static JobConf conf = new JobConf();
+
+  /**
+   * Keeps copies of everything collected, Hadoop reuses the objects.
+   */
+  static class ListCollector<K extends Writable, V extends Writable>
+  implements OutputCollector<K, V> {
+    List<K> keys = new ArrayList<K>();
+    List<V> values = new ArrayList<V>();
+
+    public void collect(K key, V value) {
+      keys.add(WritableUtils.clone(key, conf));
+      values.add(WritableUtils.clone(value, conf));
+    }
+  }
+
+  static File createTempDir(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, "");
+    dir.delete();
+    dir.mkdirs();
+    return dir;
+  }
+
+  static void deleteDir(File dir) throws IOException {
+    FileUtil.fullyDelete(dir);
+  }
+
+  static DocumentWritable makeDoc(int [] words) {
+    DocumentWritable doc = new DocumentWritable();
+    doc.setNumWords(words.length);
+    System.arraycopy(words, 0, doc.words, 0, words.length);
+    return doc;
+  }
+
+  /**
+   * Read all (word, counts) records of the part files in dir, grouped by
+   * word in key order, as the shuffle would give them to a reducer.
+   */
+  static Map<Integer, List<WordInfoWritable>> readGrouped(Path dir)
+  throws IOException {
+    Map<Integer, List<WordInfoWritable>> groups =
+      new TreeMap<Integer, List<WordInfoWritable>>();
+    FolderReader reader = new FolderReader(dir);
+    IntWritable key = new IntWritable();
+    WordInfoWritable value = new WordInfoWritable();
+    while (reader.next(key, value)) {
+      List<WordInfoWritable> group = groups.get(key.get());
+      if (group == null) {
+        group = new ArrayList<WordInfoWritable>();
+        groups.put(key.get(), group);
+      }
+      group.add(WritableUtils.clone(value, conf));
+    }
+    reader.close();
+    return groups;
+  }
+
+  /**
+   * Sum the records of dir into a numWords x numTopics table.
+   */
+  static int [][] readNwz(Path dir, int numWords, int numTopics)
+  throws IOException {
+    int [][] nwz = new int[numWords][numTopics];
+    for (Map.Entry<Integer, List<WordInfoWritable>> e :
+        readGrouped(dir).entrySet()) {
+      for (WordInfoWritable row : e.getValue()) {
+        for (int k = 0; k < numTopics; k++) {
+          nwz[e.getKey()][k] += row.getTopicCount(k);
+        }
+      }
+    }
+    return nwz;
+  }
+
+  /**
+   * Count the (word, topic) pairs of the documents.
+   */
+  static int [][] recount(List<DocumentWritable> docs,
+      int numWords, int numTopics) {
+    int [][] nwz = new int[numWords][numTopics];
+    for (DocumentWritable doc : docs) {
+      for (int i = 0; i < doc.getNumWords(); i++) {
+        nwz[doc.words[i]][doc.topics[i]]++;
+      }
+    }
+    return nwz;
+  }
+
+  /**
+   * Read the documents of a words file of the split layout, in order.
+   */
+  static List<DocumentWritable> readWords(Path file, List<Text> keys)
+  throws IOException {
+    List<DocumentWritable> docs = new ArrayList<DocumentWritable>();
+    FolderReader reader = new FolderReader(file);
+    Text key = new Text();
+    DocumentWritable doc = new DocumentWritable();
+    while (reader.next(key, doc)) {
+      keys.add(new Text(key));
+      docs.add(WritableUtils.clone(doc, conf));
+    }
+    reader.close();
+    return docs;
+  }
+}
@@ -0,0 +1,123 @@
+package org.thunlp.learning.lda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Samples several batches with the same workers, so the delta rows of one
+ * batch are reused by the next, and checks the shared counts and the number
+ * of delta rows after each.
+ */
+public class ParallelGibbsSamplerTest extends TestCase {
+  private static final int NUM_TOPICS = 5;
+  private static final int NUM_WORDS = 50;
+
+  private static List<DocumentWritable> makeDocs(int numDocs, int maxLength,
+      int numWords, Random random) {
+    List<DocumentWritable> docs = new ArrayList<DocumentWritable>();
+    for (int d = 0; d < numDocs; d++) {
+      int [] words = new int[1 + random.nextInt(maxLength)];
+      for (int i = 0; i < words.length; i++) {
+        words[i] = random.nextInt(numWords);
+      }
+      DocumentWritable doc = LdaTestUtil.makeDoc(words);
+      for (int i = 0; i < words.length; i++) {
+        doc.topics[i] = random.nextInt(NUM_TOPICS);
+      }
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  private static ParallelGibbsSampler makeSampler(
+      List<DocumentWritable> docs, int numWords, WordTopicCounts nwz,
+      int [] nz, Random random) {
+    int [][] counts = LdaTestUtil.recount(docs, numWords, NUM_TOPICS);
+    for (int w = 0; w < numWords; w++) {
+      for (int k = 0; k < NUM_TOPICS; k++) {
+        nwz.set(w, k, counts[w][k]);
+        nz[k] += counts[w][k];
+      }
+    }
+    return new ParallelGibbsSampler(nwz, nz, NUM_TOPICS, 0.5, 0.1, 3, random);
+  }
+
+  public void testCountsMatchTopicsAfterEachBatch() {
+    Random random = new Random(11);
+    List<DocumentWritable> docs = makeDocs(60, 20, NUM_WORDS, random);
+    WordTopicCounts nwz = WordTopicCounts.create(
+        WordTopicCounts.HEAP_STORAGE, NUM_WORDS, NUM_TOPICS);
+    int [] nz = new int[NUM_TOPICS];
+    ParallelGibbsSampler sampler =
+      makeSampler(docs, NUM_WORDS, nwz, nz, random);
+    int batchSize = 12;
+    double [] likelihoods = new double[batchSize];
+    for (int round = 0; round < 3; round++) {
+      for (int start = 0; start < docs.size(); start += batchSize) {
+        sampler.sampleDocuments(
+            docs.subList(start, start + batchSize), batchSize, likelihoods);
+        assertCounts(LdaTestUtil.recount(docs, NUM_WORDS, NUM_TOPICS),
+            nwz, nz);
+      }
+    }
+    sampler.close();
+  }
+
+  /**
+   * Over a sweep the workers touch most of a large vocabulary, but each keeps
+   * no more delta rows than the tokens of its largest share of a batch.
+   */
+  public void testDeltaRowsBoundedByBatch() {
+    int numWords = 2000;
+    Random random = new Random(12);
+    List<DocumentWritable> docs = makeDocs(400, 10, numWords, random);
+    WordTopicCounts nwz = WordTopicCounts.create(
+        WordTopicCounts.HEAP_STORAGE, numWords, NUM_TOPICS);
+    int [] nz = new int[NUM_TOPICS];
+    ParallelGibbsSampler sampler = makeSampler(docs, numWords, nwz, nz, random);
+    int numThreads = sampler.getNumThreads();
+    int batchSize = 5;
+    double [] likelihoods = new double[batchSize];
+    // Most tokens a worker has sampled in one batch, workers take documents
+    // in turns as in sampleDocuments.
+    int [] maxShardTokens = new int[numThreads];
+    for (int round = 0; round < 2; round++) {
+      for (int start = 0; start < docs.size(); start += batchSize) {
+        int bound = 0;
+        for (int t = 0; t < numThreads; t++) {
+          int tokens = 0;
+          for (int d = start + t; d < start + batchSize; d += numThreads) {
+            tokens += docs.get(d).getNumWords();
+          }
+          maxShardTokens[t] = Math.max(maxShardTokens[t], tokens);
+          bound += maxShardTokens[t];
+        }
+        sampler.sampleDocuments(
+            docs.subList(start, start + batchSize), batchSize, likelihoods);
+        assertTrue(sampler.getNumDeltaRows() + " rows, bound " + bound,
+            sampler.getNumDeltaRows() <= bound);
+        // The bound is far below one row per word and worker.
+        assertTrue(bound * 10 < numWords * numThreads);
+      }
+    }
+    assertCounts(LdaTestUtil.recount(docs, numWords, NUM_TOPICS), nwz, nz);
+    sampler.close();
+  }
+
+  private static void assertCounts(int [][] expected, WordTopicCounts nwz,
+      int [] nz) {
+    int [] expectedNz = new int[NUM_TOPICS];
+    for (int w = 0; w < expected.length; w++) {
+      for (int k = 0; k < NUM_TOPICS; k++) {
+        assertEquals("n(" + w + "," + k + ")", expected[w][k], nwz.get(w, k));
+        expectedNz[k] += expected[w][k];
+      }
+    }
+    for (int k = 0; k < NUM_TOPICS; k++) {
+      assertEquals("n(" + k + ")", expectedNz[k], nz[k]);
+    }
+  }
+}
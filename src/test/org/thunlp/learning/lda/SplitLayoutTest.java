@@ -0,0 +1,212 @@
+package org.thunlp.learning.lda;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Runs InitModelReducer and two iterations of GibbsSamplingReducer with the
+ * split layout, words in a side file and topics in the job output, and checks
+ * the words and topics stay aligned, also for keys shared by several
+ * documents whose topics come back in a different order.
+ */
+public class SplitLayoutTest extends TestCase {
+  private static final int NUM_TOPICS = 3;
+  private static final int NUM_WORDS = 8;
+  private static final int PARTITION = 3;
+
+  // Documents by key, in the order the shuffle gives them to InitModelReducer.
+  private static final String [] KEYS = {"a", "a", "b", "c", "c", "c"};
+  private static final int [][] DOCS = {
+    {0, 1, 1, 2},
+    {7, 3, 3, 4},
+    {5, 0},
+    {1, 2, 3, 4, 5},
+    {0, 0, 0},
+    {6, 2, 6, 7, 5},
+  };
+
+  private File dir;
+
+  protected void setUp() throws IOException {
+    dir = LdaTestUtil.createTempDir("lda-split-");
+  }
+
+  protected void tearDown() throws IOException {
+    LdaTestUtil.deleteDir(dir);
+  }
+
+  private JobConf jobConf() {
+    JobConf conf = new JobConf();
+    conf.setInt("num.topics", NUM_TOPICS);
+    conf.setInt("num.words", NUM_WORDS);
+    conf.setInt("mapred.task.partition", PARTITION);
+    conf.set("alpha", "0.5");
+    conf.set("beta", "0.1");
+    return conf;
+  }
+
+  public void testWordsAndTopicsStayAligned() throws IOException {
+    String words = new File(dir, "words").getPath();
+    JobConf conf = jobConf();
+    conf.set("output.nwz", new File(dir, "nwz.0").getPath());
+    conf.set("output.doc.words", words);
+    InitModelReducer init = new InitModelReducer();
+    init.configure(conf);
+    LdaTestUtil.ListCollector<Text, Writable> topics =
+      new LdaTestUtil.ListCollector<Text, Writable>();
+    for (int i = 0; i < DOCS.length;) {
+      Text key = new Text(KEYS[i]);
+      List<DocumentWritable> values = new ArrayList<DocumentWritable>();
+      for (; i < DOCS.length && KEYS[i].equals(key.toString()); i++) {
+        values.add(LdaTestUtil.makeDoc(DOCS[i]));
+      }
+      init.reduce(key, values.iterator(), topics, Reporter.NULL);
+    }
+    init.close();
+
+    Path wordsPart = new Path(words, String.format("part-%05d", PARTITION));
+    assertTrue(wordsPart + " missing",
+        new File(wordsPart.toString()).exists());
+    List<Text> wordKeys = new ArrayList<Text>();
+    List<DocumentWritable> docs = LdaTestUtil.readWords(wordsPart, wordKeys);
+    assertEquals(DOCS.length, docs.size());
+    for (int i = 0; i < DOCS.length; i++) {
+      assertEquals(KEYS[i], wordKeys.get(i).toString());
+      assertEquals(DOCS[i].length, docs.get(i).getNumWords());
+    }
+    assertAligned(docs, wordKeys, topics,
+        LdaTestUtil.readNwz(new Path(dir.getPath(), "nwz.0"),
+            NUM_WORDS, NUM_TOPICS));
+
+    for (int iteration = 1; iteration <= 2; iteration++) {
+      Path inputNwz = new Path(dir.getPath(), "nwz." + (iteration - 1));
+      Path deltaNwz = new Path(dir.getPath(), "delta." + iteration);
+      conf = jobConf();
+      conf.set("input.nwz", inputNwz.toString());
+      conf.set("output.nwz", deltaNwz.toString());
+      conf.set("doc.words", words);
+      GibbsSamplingReducer sampler = new GibbsSamplingReducer();
+      sampler.configure(conf);
+      LdaTestUtil.ListCollector<Text, Writable> sampled =
+        new LdaTestUtil.ListCollector<Text, Writable>();
+      for (Map.Entry<String, List<Writable>> e : shuffle(topics).entrySet()) {
+        sampler.reduce(new Text(e.getKey()), e.getValue().iterator(),
+            sampled, Reporter.NULL);
+      }
+      sampler.close();
+
+      int [][] nwz = LdaTestUtil.readNwz(inputNwz, NUM_WORDS, NUM_TOPICS);
+      int [][] delta = LdaTestUtil.readNwz(deltaNwz, NUM_WORDS, NUM_TOPICS);
+      for (int w = 0; w < NUM_WORDS; w++) {
+        for (int k = 0; k < NUM_TOPICS; k++) {
+          nwz[w][k] += delta[w][k];
+        }
+      }
+      assertAligned(docs, wordKeys, sampled, nwz);
+      writeNwz(new Path(dir.getPath(), "nwz." + iteration), nwz);
+      topics = sampled;
+    }
+  }
+
+  /**
+   * Group the values by key, and reverse the values of each key, the shuffle
+   * does not keep their order.
+   */
+  private static Map<String, List<Writable>> shuffle(
+      LdaTestUtil.ListCollector<Text, Writable> output) {
+    Map<String, List<Writable>> groups =
+      new TreeMap<String, List<Writable>>();
+    for (int i = 0; i < output.keys.size(); i++) {
+      String key = output.keys.get(i).toString();
+      if (!groups.containsKey(key)) {
+        groups.put(key, new ArrayList<Writable>());
+      }
+      groups.get(key).add(output.values.get(i));
+    }
+    for (List<Writable> values : groups.values()) {
+      Collections.reverse(values);
+    }
+    return groups;
+  }
+
+  /**
+   * Give each document of the words file the topics of the same key and
+   * sequence number, and check their counts are nwz.
+   */
+  private static void assertAligned(List<DocumentWritable> docs,
+      List<Text> keys, LdaTestUtil.ListCollector<Text, Writable> topics,
+      int [][] nwz) {
+    assertEquals(docs.size(), topics.values.size());
+    Map<String, List<TopicAssignmentWritable>> byKey =
+      new TreeMap<String, List<TopicAssignmentWritable>>();
+    for (int i = 0; i < topics.keys.size(); i++) {
+      String key = topics.keys.get(i).toString();
+      if (!byKey.containsKey(key)) {
+        byKey.put(key, new ArrayList<TopicAssignmentWritable>());
+      }
+      byKey.get(key).add((TopicAssignmentWritable) topics.values.get(i));
+    }
+    List<DocumentWritable> joined = new ArrayList<DocumentWritable>();
+    int sequence = 0;
+    for (int i = 0; i < docs.size(); i++) {
+      String key = keys.get(i).toString();
+      sequence = i > 0 && keys.get(i - 1).toString().equals(key) ?
+          sequence + 1 : 0;
+      TopicAssignmentWritable assignment = null;
+      for (Iterator<TopicAssignmentWritable> it = byKey.get(key).iterator();
+          it.hasNext();) {
+        TopicAssignmentWritable a = it.next();
+        if (a.getSequence() == sequence) {
+          assertNull("sequence " + sequence + " twice for " + key, assignment);
+          assignment = a;
+        }
+      }
+      assertNotNull("no topics for " + key + " #" + sequence, assignment);
+      DocumentWritable doc = new DocumentWritable();
+      doc.set(docs.get(i));
+      assertEquals(doc.getNumWords(), assignment.getNumTopics());
+      System.arraycopy(assignment.topics, 0, doc.topics, 0,
+          doc.getNumWords());
+      joined.add(doc);
+    }
+    int [][] expected = LdaTestUtil.recount(joined, NUM_WORDS, NUM_TOPICS);
+    for (int w = 0; w < NUM_WORDS; w++) {
+      for (int k = 0; k < NUM_TOPICS; k++) {
+        assertEquals("n(" + w + "," + k + ")", expected[w][k], nwz[w][k]);
+      }
+    }
+  }
+
+  private static void writeNwz(Path dir, int [][] nwz) throws IOException {
+    JobConf conf = new JobConf();
+    SequenceFile.Writer writer = SequenceFile.createWriter(
+        FileSystem.get(conf), conf,
+        new Path(dir, "part-00000"), IntWritable.class,
+        WordInfoWritable.class);
+    WordInfoWritable row = new WordInfoWritable(NUM_TOPICS);
+    for (int w = 0; w < nwz.length; w++) {
+      for (int k = 0; k < NUM_TOPICS; k++) {
+        row.setTopicCount(k, nwz[w][k]);
+      }
+      writer.append(new IntWritable(w), row);
+    }
+    writer.close();
+  }
+}
@@ -0,0 +1,142 @@
+package org.thunlp.learning.lda;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Warm start from a model whose topics each own a block of words, against a
+ * new vocabulary with the words in another order and some unknown words.
+ */
+public class WarmStartTest extends TestCase {
+  private static final int NUM_TOPICS = 3;
+  private static final int WORDS_PER_TOPIC = 10;
+  private static final int NUM_UNKNOWN = 5;
+
+  private File dir;
+  private LdaModel model;
+  // Words of the new model; the old words in reverse order, then unknowns.
+  private String [] vocabulary;
+
+  protected void setUp() throws IOException {
+    dir = LdaTestUtil.createTempDir("lda-warm-");
+    File file = new File(dir, "model");
+    Writer writer =
+      new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    writer.write("0.5\n0.0001\n" + NUM_TOPICS + "\n1\n");
+    for (int w = 0; w < NUM_TOPICS * WORDS_PER_TOPIC; w++) {
+      writer.write("w" + w);
+      for (int k = 0; k < NUM_TOPICS; k++) {
+        writer.write(k == w / WORDS_PER_TOPIC ? " 100" : " 0");
+      }
+      writer.write("\n");
+    }
+    writer.close();
+    model = new LdaModel();
+    model.loadModel(file.getPath());
+
+    int numOld = NUM_TOPICS * WORDS_PER_TOPIC;
+    vocabulary = new String[numOld + NUM_UNKNOWN];
+    for (int w = 0; w < numOld; w++) {
+      vocabulary[w] = "w" + (numOld - 1 - w);
+    }
+    for (int w = 0; w < NUM_UNKNOWN; w++) {
+      vocabulary[numOld + w] = "new" + w;
+    }
+  }
+
+  protected void tearDown() throws IOException {
+    LdaTestUtil.deleteDir(dir);
+  }
+
+  /**
+   * The topic of the old model owning a word of the new vocabulary, -1 for
+   * unknown words.
+   */
+  private int plantedTopic(int word) {
+    if (word >= NUM_TOPICS * WORDS_PER_TOPIC) {
+      return -1;
+    }
+    return Integer.parseInt(vocabulary[word].substring(1)) / WORDS_PER_TOPIC;
+  }
+
+  /**
+   * A document of 20 known words of one topic and 4 unknown words.
+   */
+  private DocumentWritable makeDoc(int topic, Random random) {
+    int [] words = new int[24];
+    for (int i = 0; i < 20; i++) {
+      int old = topic * WORDS_PER_TOPIC + random.nextInt(WORDS_PER_TOPIC);
+      words[i] = NUM_TOPICS * WORDS_PER_TOPIC - 1 - old;
+    }
+    for (int i = 20; i < words.length; i++) {
+      words[i] = NUM_TOPICS * WORDS_PER_TOPIC + random.nextInt(NUM_UNKNOWN);
+    }
+    return LdaTestUtil.makeDoc(words);
+  }
+
+  public void testMapsVocabulary() {
+    WarmStart warmStart = new WarmStart(model, vocabulary,
+        WarmStart.PZW_MODE, 0, new Random(1));
+    assertEquals(NUM_TOPICS * WORDS_PER_TOPIC, warmStart.getNumKnownWords());
+  }
+
+  public void testPzwKeepsTopicsOfKnownWords() {
+    Random random = new Random(2);
+    WarmStart warmStart = new WarmStart(model, vocabulary,
+        WarmStart.PZW_MODE, 0, random);
+    for (int d = 0; d < 30; d++) {
+      DocumentWritable doc = makeDoc(d % NUM_TOPICS, random);
+      warmStart.assignTopics(doc);
+      for (int i = 0; i < doc.getNumWords(); i++) {
+        int planted = plantedTopic(doc.words[i]);
+        if (planted >= 0) {
+          assertEquals(planted, doc.topics[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * With foldin, most unknown words follow the topic of their document.
+   */
+  public void testFoldInUnknownWordsFollowDocument() {
+    Random random = new Random(3);
+    WarmStart warmStart = new WarmStart(model, vocabulary,
+        WarmStart.FOLDIN_MODE, 2, random);
+    int numUnknown = 0;
+    int numFollowing = 0;
+    for (int d = 0; d < 60; d++) {
+      int topic = d % NUM_TOPICS;
+      DocumentWritable doc = makeDoc(topic, random);
+      warmStart.assignTopics(doc);
+      for (int i = 0; i < doc.getNumWords(); i++) {
+        int planted = plantedTopic(doc.words[i]);
+        if (planted >= 0) {
+          assertEquals(planted, doc.topics[i]);
+        } else {
+          numUnknown++;
+          if (doc.topics[i] == topic) {
+            numFollowing++;
+          }
+        }
+      }
+    }
+    // Random topics would give about a third.
+    assertTrue(numFollowing + " of " + numUnknown,
+        numFollowing > numUnknown * 0.8);
+  }
+
+  public void testUnknownMode() {
+    try {
+      new WarmStart(model, vocabulary, "random", 0, new Random());
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}